@@ -1,6 +1,7 @@
 import java.io.*;
 import com.google.gson.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -13,17 +14,77 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class AggregationServer {
     private SocketServer socketServer;
+    // the non-blocking engine serving the port instead of socketServer, or null
+    private final NioSocketServer nioServer;
     private Lamport clock;
     private int port;
-    private boolean isDown;
+    private volatile boolean isDown;
     private LinkedBlockingQueue<Socket> reqQueue;
-    private static DatabaseManagement db = DatabaseManagement.initialize();
+    private final DatabaseManagement db;
     private long EXPIRY = 40000; // 40 seconds
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    private final int workerCount;
+    private final boolean virtualThreads;
+    private ExecutorService workers;
+    private volatile Thread dispatcher;
+    private static final double EWMA_WEIGHT = 0.2;
+    // content type of a batch GET answered with one reading per line
+    static final String NDJSON = "application/x-ndjson";
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private volatile double serviceTimeEwma;
+    private int idleTimeout = SocketServer.DEFAULT_IDLE_TIMEOUT;
+    private int maxRequestsPerConnection = SocketServer.DEFAULT_MAX_REQUESTS;
+    private final Set<Socket> openConnections = ConcurrentHashMap.newKeySet();
 
     public AggregationServer(SocketServer socketServer) {
+        this(socketServer, DEFAULT_WORKERS, false);
+    }
+
+    /**
+     * @param socketServer The socket engine used by this server.
+     * @param workerCount Number of worker threads taking requests from the queue.
+     * @param virtualThreads When true every request runs on its own virtual thread and workerCount is ignored.
+     *                       Falls back to a platform thread per request on JDKs without virtual threads.
+     */
+    public AggregationServer(SocketServer socketServer, int workerCount, boolean virtualThreads) {
+        this(socketServer, workerCount, virtualThreads, DatabaseManagement.initialize());
+    }
+
+    /**
+     * @param socketServer The socket engine used by this server.
+     * @param workerCount Number of worker threads taking requests from the queue.
+     * @param virtualThreads See AggregationServer(SocketServer, int, boolean).
+     * @param db The store this replica reads and writes, shared with the other replicas.
+     */
+    public AggregationServer(SocketServer socketServer, int workerCount, boolean virtualThreads, DatabaseManagement db) {
+        this(socketServer, null, workerCount, virtualThreads, db);
+    }
+
+    /**
+     * Serves the port with the non-blocking engine, requests are processed on the engine's workers.
+     * @param nioServer The engine, started and closed by this server.
+     */
+    public AggregationServer(NioSocketServer nioServer) {
+        this(nioServer, DatabaseManagement.initialize());
+    }
+
+    /**
+     * @param nioServer The engine, started and closed by this server.
+     * @param db The store this replica reads and writes, shared with the other replicas.
+     */
+    public AggregationServer(NioSocketServer nioServer, DatabaseManagement db) {
+        this(null, nioServer, DEFAULT_WORKERS, false, db);
+    }
+
+    private AggregationServer(SocketServer socketServer, NioSocketServer nioServer, int workerCount,
+                              boolean virtualThreads, DatabaseManagement db) {
+        this.db = db;
         this.socketServer = socketServer;
+        this.nioServer = nioServer;
         this.clock = new Lamport();
         this.reqQueue = new LinkedBlockingQueue<>();
+        this.workerCount = Math.max(1, workerCount);
+        this.virtualThreads = virtualThreads;
     }
 
    
@@ -35,7 +96,6 @@ public class AggregationServer {
     public boolean isUp() {
         try {
             Socket ping = new Socket();
-            System.out.println("ping to server: " + this.port);
             ping.connect(new InetSocketAddress("localhost", this.port), 1000); // 1 second timeout
             ping.close();
             return true;
@@ -44,6 +104,26 @@ public class AggregationServer {
         }
     }
 
+    /**
+     * Configures keep-alive connections, for clients that send Connection: keep-alive.
+     * On the blocking engine a kept connection holds its worker while it waits for the next request,
+     * use virtual threads or the non-blocking engine for many idle connections.
+     * @param idleTimeout Milliseconds to wait for the next request before closing the connection.
+     * @param maxRequestsPerConnection Requests served on one connection before it is closed.
+     */
+    public void setKeepAlive(int idleTimeout, int maxRequestsPerConnection) {
+        this.idleTimeout = Math.max(1, idleTimeout);
+        this.maxRequestsPerConnection = Math.max(1, maxRequestsPerConnection);
+    }
+
+    /**
+     * Checks whether stop() has been called on this server, without touching the network.
+     * @return true if the server has been stopped.
+     */
+    public boolean isStopped() {
+        return this.isDown;
+    }
+
     /**
      * Starts the AggregationServer on the specified port.
      * Initializes the server socket and begins processing client requests.
@@ -52,19 +132,104 @@ public class AggregationServer {
     public void start(int port) {
         System.out.println("AggregationServer started on: " + port);
         this.port = port;
+        if (this.nioServer != null) {
+            this.nioServer.start(port);
+            this.serveNonBlocking(this.nioServer);
+            return;
+        }
         this.socketServer.start(port);
+        this.dispatcher = Thread.currentThread();
         try {
-            while (!this.isDown) {
-                Socket clientSocket = this.reqQueue.poll(10, TimeUnit.MILLISECONDS);
-                if (clientSocket != null) {
-                    handleData(clientSocket);
+            if (this.virtualThreads) {
+                this.workers = newVirtualThreadExecutor();
+                while (!this.isDown) {
+                    Socket clientSocket = this.reqQueue.take();
+                    this.workers.execute(() -> handleData(clientSocket));
+                }
+            } else {
+                this.workers = Executors.newFixedThreadPool(this.workerCount);
+                for (int i = 0; i < this.workerCount; i++) {
+                    this.workers.execute(this::processQueue);
+                }
+                while (!this.isDown && !this.workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // workers exit when stop() shuts the pool down
                 }
             }
+        } catch (InterruptedException | RejectedExecutionException e) {
+            // interrupted or pool shut down by stop()
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // stop() may have run before the socket was opened, make sure it does not stay up
+            this.socketServer.close();
+            if (this.workers != null) {
+                this.workers.shutdownNow();
+            }
+            this.closeQueuedSockets();
+        }
+    }
+
+    /**
+     * Worker loop, blocks on the queue until a socket is handed over.
+     */
+    private void processQueue() {
+        try {
+            while (!this.isDown) {
+                handleData(this.reqQueue.take());
+            }
+        } catch (InterruptedException e) {
+            // pool shut down by stop()
         }
     }
 
+    /**
+     * Creates an executor that starts a virtual thread per task.
+     * Looked up reflectively so the code still compiles and runs on JDKs before 21.
+     * @return The virtual thread executor, or a thread per task executor when unavailable.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available, using a thread per request");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Closes sockets still waiting in the queue after the server stopped, so their clients do not hang.
+     */
+    private void closeQueuedSockets() {
+        Socket pending;
+        while ((pending = this.reqQueue.poll()) != null) {
+            try {
+                pending.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Serves this server's own port with the non-blocking engine.
+     * Every accepted connection gets the Lamport greeting, and requests are processed on the engine's workers.
+     * @param nioServer The started non-blocking engine.
+     */
+    private void serveNonBlocking(NioSocketServer nioServer) {
+        nioServer.serve(new NioSocketServer.Handler() {
+            @Override
+            public String onConnect(NioSocketServer.Connection connection) {
+                System.out.println(port + " received connection: " + connection.getRemoteAddress());
+                return greeting() + "\r\n";
+            }
+
+            @Override
+            public String handle(NioSocketServer.Connection connection, HttpRequest request) {
+                return normalizeReq(request);
+            }
+        });
+    }
+
     /**
      * Accepts a new client connection and updates the Lamport clock.
      * @param clientSocket The newly connected client socket.
@@ -73,18 +238,63 @@ public class AggregationServer {
     public int accept(Socket clientSocket) {
         try {
             System.out.println(this.port + " received socket: " + clientSocket);
-            this.reqQueue.put(clientSocket);
-            String c = "Lamport: " + this.clock.getTime();
+            // greet before a worker can take the socket, a single round trip request may be answered
+            // and the socket closed as soon as it is queued
             PrintWriter send = new PrintWriter(clientSocket.getOutputStream(), true);
-            send.println(c);
+            send.println(this.greeting());
             send.flush();
-            this.clock.tick();
+            this.reqQueue.put(clientSocket);
             return this.clock.getTime();
         } catch (IOException | InterruptedException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Builds the Lamport line pushed to a client when it connects and ticks the clock for the event.
+     * @return The greeting line without a line terminator.
+     */
+    public String greeting() {
+        this.syncWithStore();
+        return "Lamport: " + this.clock.getAndTick();
+    }
+
+    /**
+     * Moves the clock past the highest Lamport time in the shared store.
+     * Replicas take turns serving clients, so data written through another replica must not look
+     * like it comes from this replica's future.
+     */
+    private void syncWithStore() {
+        int highestStoredLamport = db.getHighestLamportClock();
+        if (highestStoredLamport >= this.clock.getTime()) {
+            this.clock.adjust(highestStoredLamport);
+        }
+    }
+
+    /**
+     * Number of requests waiting in the queue or being processed by this server.
+     * Used by the least outstanding routing policy.
+     * @return The outstanding request count.
+     */
+    public int getOutstandingRequests() {
+        return this.reqQueue.size() + this.activeRequests.get();
+    }
+
+    /**
+     * Exponentially weighted moving average of the time spent processing a request.
+     * Used by the latency weighted routing policy.
+     * @return The average service time in milliseconds, 0 before the first request.
+     */
+    public double getServiceTimeEwma() {
+        return this.serviceTimeEwma;
+    }
+
+    private synchronized void recordServiceTime(double millis) {
+        this.serviceTimeEwma = this.serviceTimeEwma == 0
+                ? millis
+                : EWMA_WEIGHT * millis + (1 - EWMA_WEIGHT) * this.serviceTimeEwma;
+    }
+
     /**
      * Retrieves the current Lamport clock time of the server.
      * @return The current Lamport clock time.
@@ -95,22 +305,36 @@ public class AggregationServer {
 
     /**
      * Handles incoming data from a client socket.
-     * Processes the request and sends an appropriate response.
+     * Processes the request and sends an appropriate response. A client asking for keep-alive gets its
+     * following requests served on the same connection until it closes it, goes idle for the idle
+     * timeout, or reaches the per-connection request limit.
      * @param clientSocket The client socket to handle.
      */
     public void handleData(Socket clientSocket) {
+        this.openConnections.add(clientSocket);
         try {
-            String req = this.socketServer.request(clientSocket);
-            System.out.println(req);
-            if (req != null) {
+            HttpRequest req = this.socketServer.readRequest(clientSocket);
+            int served = 0;
+            while (req != null) {
+                served++;
+                System.out.println(req.getMethod() + " " + req.getPath());
+                boolean keepAlive = req.isKeepAlive() && served < this.maxRequestsPerConnection && !this.isDown;
                 String responseData = normalizeReq(req);
                 System.out.println("Response data to client: " + responseData);
-                this.socketServer.response(responseData, clientSocket);
-                
+                if (!keepAlive) {
+                    // a client that asked for keep-alive is told the connection is closing
+                    this.socketServer.response(req.isKeepAlive()
+                            ? SocketServer.withConnectionHeader(responseData, false) : responseData, clientSocket);
+                    break;
+                }
+                this.socketServer.write(SocketServer.withConnectionHeader(responseData, true), clientSocket);
+                clientSocket.setSoTimeout(this.idleTimeout);
+                req = this.socketServer.readNextRequest(clientSocket);
             }
         } catch(Exception e) {
             e.printStackTrace();
         } finally {
+            this.openConnections.remove(clientSocket);
             try {
                 clientSocket.close();
             } catch (IOException e) {
@@ -126,35 +350,36 @@ public class AggregationServer {
      * @return The response to be sent back to the client.
     */
     public String normalizeReq(String requestData) {
-        String[] lines = requestData.split("\r\n");
-        String requestType = lines[0].split(" ")[0].trim();
-
-        Map<String, String> headers = new HashMap<>();
-        StringBuilder contentBuilder = new StringBuilder();
-
-        boolean readingContent = false;
-
-        for (int i = 1; i < lines.length; i++) {
-            if (!readingContent) {
-                if (lines[i].isEmpty()) {
-                    readingContent = true;
-                } else {
-                    String[] headerParts = lines[i].split(": ", 2);
-                    headers.put(headerParts[0], headerParts[1]);
-                }
-            } else {
-                contentBuilder.append(lines[i]);
-            }
+        HttpRequest request;
+        try {
+            request = HttpParser.parse(requestData);
+        } catch (IOException e) {
+            return formatRes("400 Bad Request", null);
         }
+        return this.normalizeReq(request);
+    }
 
-        String content = contentBuilder.toString();
-        switch (requestType.toUpperCase()) {
-            case "GET":
-            return handleGetRequest(headers);
-            case "PUT":
-            return handlePutRequest(content, headers);
-            default:
-            return formatRes("400 Bad Request", null);
+    /**
+     * Processes a request parsed by HttpParser.
+     * Determines the request type (GET or PUT) and calls appropriate handlers.
+     * @param request The parsed request.
+     * @return The response to be sent back to the client.
+     */
+    public String normalizeReq(HttpRequest request) {
+        this.activeRequests.incrementAndGet();
+        long startTime = System.nanoTime();
+        try {
+            switch (request.getMethod().toUpperCase()) {
+                case "GET":
+                return handleGetRequest(request.getHeaders());
+                case "PUT":
+                return handlePutRequest(request.getBodyAsString(), request.getHeaders());
+                default:
+                return formatRes("400 Bad Request", null);
+            }
+        } finally {
+            this.activeRequests.decrementAndGet();
+            this.recordServiceTime((System.nanoTime() - startTime) / 1_000_000.0);
         }
     }
 
@@ -168,23 +393,47 @@ public class AggregationServer {
     private String handlePutRequest(String content, Map<String, String> headers) {
         try {
             this.ensureClockConsistency();
-            JsonObject jsonData = JsonHandling.convertObject(content, JsonObject.class);
+            JsonElement body = JsonHandling.convertObject(content, JsonElement.class);
+            if (body != null && body.isJsonArray()) {
+                return this.handleBatchPut(body.getAsJsonArray(), headers);
+            }
+            JsonObject jsonData = body.getAsJsonObject();
             String id = getIdData(jsonData);
             if (id == null && id.isEmpty()) {
                 return formatRes("500 Internal Server Error", null);
             }
             
             String source = headers.get("Source");
+            Integer baseVersion = null;
+            if (headers.get("Base-Version") != null) {
+                try {
+                    baseVersion = Integer.parseInt(headers.get("Base-Version").trim());
+                } catch (NumberFormatException e) {
+                    return formatRes("400 Bad Request", null);
+                }
+                if (baseVersion < 0) {
+                    return formatRes("400 Bad Request", null);
+                }
+            }
+            int lamport = this.getLamport(headers);
             long currTime = System.currentTimeMillis();
             Long latest = db.getSenderTimestamp(source);
 
-            db.saveTime(source, currTime);
-            WeatherFormat newWeatherData = new WeatherFormat(this.getLamport(headers), source, jsonData);
-            db.saveData(id, newWeatherData);
+            WeatherFormat newWeatherData = new WeatherFormat(lamport, source, jsonData);
+            if (baseVersion != null) {
+                if (db.saveDelta(id, newWeatherData, baseVersion, currTime) == null) {
+                    return formatRes("409 Conflict", null);
+                }
+            } else {
+                db.saveTime(source, currTime);
+                if (!db.saveData(id, newWeatherData)) {
+                    return formatRes("500 Internal Server Error", null);
+                }
+            }
             
             if (latest == null || (currTime - latest) > EXPIRY) {
-                return formatRes("201 HTTP_CREATED", null);
-            } else return formatRes("200 OK", null);
+                return formatSaved("201 HTTP_CREATED", lamport);
+            } else return formatSaved("200 OK", lamport);
             
         } catch (Exception e) {
             System.out.println(e);
@@ -192,6 +441,73 @@ public class AggregationServer {
         }
     }
 
+    /**
+     * Handles a batch PUT, a JSON array of readings sent by one content server in one request.
+     * The sender ticks its clock once per record: record i has the Lamport time LamportClock + i and the
+     * clock receives the time of the last record. A sender that sends LamportSynced: false gets the times
+     * from the server clock instead, see getLamport. The sender time is saved once and the readings are saved
+     * with one log commit per shard, see DatabaseManagement.saveBatch.
+     * @param records The readings, each a JSON object with an id.
+     * @param headers The headers of the PUT request.
+     * @return 201 or 200 as for a single PUT when a reading was saved, 400 if LamportClock is missing or
+     *         invalid or no record has an id, and 500 if none could be saved, with a JSON array of the id,
+     *         Lamport time and status of each record.
+     */
+    private String handleBatchPut(JsonArray records, Map<String, String> headers) {
+        String source = headers.get("Source");
+        int first;
+        try {
+            first = Integer.parseInt(headers.get("LamportClock").trim());
+        } catch (NullPointerException | NumberFormatException e) {
+            return formatRes("400 Bad Request", null);
+        }
+        if (first < 0) {
+            return formatRes("400 Bad Request", null);
+        }
+        if (!isSynced(headers)) {
+            // as for a single PUT the records are versioned from the server clock, past the stored data
+            this.syncWithStore();
+            first = this.clock.receive(Math.max(first, this.clock.getTime()));
+        }
+        this.clock.receive(first + Math.max(0, records.size() - 1));
+
+        JsonArray results = new JsonArray();
+        List<Integer> positions = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        List<WeatherFormat> readings = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            JsonObject result = new JsonObject();
+            JsonElement record = records.get(i);
+            JsonElement id = record.isJsonObject() ? record.getAsJsonObject().get("id") : null;
+            if (id != null && id.isJsonPrimitive() && !id.getAsString().isEmpty()) {
+                result.addProperty("id", id.getAsString());
+                positions.add(i);
+                ids.add(id.getAsString());
+                readings.add(new WeatherFormat(first + i, source, record.getAsJsonObject()));
+            }
+            result.addProperty("lamport", first + i);
+            result.addProperty("status", 400);
+            results.add(result);
+        }
+        if (ids.isEmpty()) {
+            return formatBody("400 Bad Request", "application/json", results.toString());
+        }
+
+        long currTime = System.currentTimeMillis();
+        Long latest = db.getSenderTimestamp(source);
+        db.saveTime(source, currTime);
+        boolean created = latest == null || (currTime - latest) > EXPIRY;
+        boolean[] saved = db.saveBatch(ids, readings);
+        boolean any = false;
+        for (int i = 0; i < saved.length; i++) {
+            any |= saved[i];
+            int status = !saved[i] ? 500 : created ? 201 : 200;
+            results.get(positions.get(i)).getAsJsonObject().addProperty("status", status);
+        }
+        String status = !any ? "500 Internal Server Error" : created ? "201 HTTP_CREATED" : "200 OK";
+        return formatBody(status, "application/json", results.toString());
+    }
+
     /**
      * Ensures consistency of the Lamport clock with stored data.
      * @return true if the clock was adjusted, false otherwise.
@@ -217,12 +533,18 @@ public class AggregationServer {
         boolean isUpdateLamport = this.ensureClockConsistency();
         int lamport = this.getLamport(headers);
         int updatedLamport = isUpdateLamport ? Math.max(this.clock.getTime(), lamport) : lamport;
+        if (headers.get("Aggregate") != null) {
+            return this.handleAggregateRequest(headers);
+        }
+        if (headers.get("StationIDs") != null) {
+            return this.handleBatchRequest(headers, updatedLamport);
+        }
         String stationId = headers.get("StationID") != null ? headers.get("StationID") : db.getStationID();
         if(stationId == null) return formatRes("204 No Content", null);
         System.out.println("Latest Station ID: " + stationId);
-        LinkedList<WeatherFormat> data = db.getWeatherData(stationId);
+        StationHistory data = db.getWeatherData(stationId);
         if(data == null) return formatRes("204 No Content", null);
-        WeatherFormat latestData = data.stream().filter(d -> d.getLamport() <= updatedLamport).max(Comparator.comparingInt(WeatherFormat::getLamport)).orElse(null);
+        WeatherFormat latestData = data.latestAtOrBefore(updatedLamport);
         System.out.println("Latest: " + latestData);
         
         if (latestData != null) {
@@ -232,6 +554,102 @@ public class AggregationServer {
         }
     }
 
+    /**
+     * Handles a GET with an Aggregate header: count, min, max and average of numeric fields over a window,
+     * for one station (StationID) or for every station, with the stations combined under "all".
+     * The window is the last Window ms of saved readings (the last hour by default), or the Lamport times
+     * from LamportFrom to LamportTo when either is given. The answer comes from the rollups kept by
+     * DatabaseManagement, no stored reading is read.
+     * @param headers The headers of the GET request, Aggregate lists the fields or is * for all of them.
+     * @return The aggregates with the window they cover, 204 if no station has readings in it.
+     */
+    private String handleAggregateRequest(Map<String, String> headers) {
+        List<String> fields = new ArrayList<>();
+        String requested = headers.get("Aggregate").trim();
+        if (requested.isEmpty() || requested.equals("*")) {
+            fields.addAll(Rollups.FIELDS);
+        } else {
+            for (String field : requested.split(",")) {
+                if (!Rollups.FIELDS.contains(field.trim())) {
+                    return formatRes("400 Bad Request", null);
+                }
+                fields.add(field.trim());
+            }
+        }
+        Rollups.Window window;
+        try {
+            if (headers.get("LamportFrom") != null || headers.get("LamportTo") != null) {
+                window = Rollups.Window.byLamport(Long.parseLong(headers.getOrDefault("LamportFrom", "0")),
+                        Long.parseLong(headers.getOrDefault("LamportTo", String.valueOf(Integer.MAX_VALUE))));
+            } else {
+                long now = System.currentTimeMillis();
+                window = Rollups.Window.byTime(now - Long.parseLong(headers.getOrDefault("Window",
+                        String.valueOf(Rollups.HORIZON))), now);
+            }
+        } catch (NumberFormatException e) {
+            return formatRes("400 Bad Request", null);
+        }
+
+        Map<String, Rollups.Aggregate> aggregates = db.aggregate(headers.get("StationID"), window);
+        if (aggregates.isEmpty()) {
+            return formatRes("204 No Content", null);
+        }
+        JsonObject stations = new JsonObject();
+        for (Map.Entry<String, Rollups.Aggregate> entry : new TreeMap<>(aggregates).entrySet()) {
+            stations.add(entry.getKey(), entry.getValue().toJson(fields));
+        }
+        JsonObject result = new JsonObject();
+        result.add("window", window.toJson());
+        result.add("stations", stations);
+        result.add("all", Rollups.combine(aggregates.values()).toJson(fields));
+        return formatRes("200 OK", result);
+    }
+
+    /**
+     * Handles a GET with a StationIDs header: the latest reading of several stations in one response.
+     * Every station is looked up against the same Lamport time, so the readings are those a client with
+     * that clock may see, whatever is saved while the response is built.
+     * The readings are a JSON array, or one JSON object per line (NDJSON) when the request has
+     * Accept: application/x-ndjson, written compactly in the order the stations were asked for.
+     * @param headers The headers of the GET request, StationIDs lists the stations or is * for all of them.
+     * @param lamport The Lamport time to look up the stations at.
+     * @return The readings found, 204 if none of the stations has one.
+     */
+    private String handleBatchRequest(Map<String, String> headers, int lamport) {
+        String requested = headers.get("StationIDs").trim();
+        Collection<String> stationIds;
+        if (requested.equals("*")) {
+            stationIds = new TreeSet<>(db.getWeatherData().keySet());
+        } else {
+            stationIds = new LinkedHashSet<>();
+            for (String stationId : requested.split(",")) {
+                if (!stationId.trim().isEmpty()) {
+                    stationIds.add(stationId.trim());
+                }
+            }
+        }
+        boolean ndjson = NDJSON.equalsIgnoreCase(headers.get("Accept"));
+        JsonArray readings = new JsonArray();
+        StringBuilder lines = new StringBuilder();
+        for (String stationId : stationIds) {
+            StationHistory history = db.getWeatherData(stationId);
+            WeatherFormat reading = history == null ? null : history.latestAtOrBefore(lamport);
+            if (reading == null || reading.getData() == null) {
+                continue;
+            }
+            if (ndjson) {
+                lines.append(reading.getData()).append('\n');
+            } else {
+                readings.add(reading.getData());
+            }
+        }
+        if (readings.isEmpty() && lines.length() == 0) {
+            return formatRes("204 No Content", null);
+        }
+        return ndjson ? formatBody("200 OK", NDJSON, lines.toString())
+                : formatBody("200 OK", "application/json", readings.toString());
+    }
+
     /**
      * Extracts the station ID from the JSON data.
      * @param jsonData The JSON object containing weather data.
@@ -259,16 +677,32 @@ public class AggregationServer {
 
     /**
      * Extracts and updates the Lamport clock value from request headers.
+     * A client in single round trip mode that has not seen a server clock yet sends LamportSynced: false,
+     * its own clock then says nothing about the stored data. Such a request gets its time from the
+     * server clock, moved past the store first, so its PUT is newer than every stored reading and its
+     * GET reads everything stored.
      * @param headers The request headers.
-     * @return The updated Lamport clock value.
+     * @return The Lamport time of the request, the version of the reading for a PUT.
      */
     public int getLamport(Map<String, String> headers) {
         int lamport = Integer.parseInt(headers.getOrDefault("LamportClock", "-1"));
-        this.clock.adjust(lamport);
-        this.clock.tick();
+        if (!isSynced(headers)) {
+            this.syncWithStore();
+            return this.clock.receive(Math.max(lamport, this.clock.getTime()));
+        }
+        this.clock.receive(lamport);
         return lamport;
     }
 
+    /**
+     * Whether the sender's clock was synchronised with a server before the request.
+     * @param headers The request headers.
+     * @return false if the request says LamportSynced: false.
+     */
+    static boolean isSynced(Map<String, String> headers) {
+        return !"false".equalsIgnoreCase(headers.get("LamportSynced"));
+    }
+
     /**
      * Formats the HTTP response with appropriate headers and body.
      * @param status The HTTP status code and message.
@@ -276,29 +710,81 @@ public class AggregationServer {
      * @return The formatted HTTP response as a string.
      */
     private String formatRes(String status, JsonObject jsonData) {
+        if (jsonData != null) {
+            return formatBody(status, "application/json", JsonHandling.prettier(jsonData));
+        }
         StringBuilder res = new StringBuilder();
 
         res.append("HTTP/1.1 ").append(status).append("\r\n");
         res.append("Lamport: ").append(this.clock.getTime()).append("\r\n");
-        if (jsonData != null) {
-            String prettyData = JsonHandling.prettier(jsonData);
-            res.append("Content-Type: application/json\r\n");
-            res.append("Content-Length: ").append(prettyData.length()).append("\r\n");
-            res.append("\r\n");
-            res.append(prettyData);
-        } else {
-            res.append("\r\n");
-        }
+        res.append("\r\n");
 
         return res.toString();
     }
 
+    /**
+     * Formats the answer to a saved PUT. The Version header carries the Lamport time the server gave the
+     * reading, which is not the sender's LamportClock when the sender was not synced, and is the
+     * Base-Version of the sender's next delta.
+     * @param status The HTTP status code and message.
+     * @param version The Lamport time of the saved reading.
+     * @return The formatted HTTP response as a string.
+     */
+    private String formatSaved(String status, int version) {
+        StringBuilder res = new StringBuilder();
+
+        res.append("HTTP/1.1 ").append(status).append("\r\n");
+        res.append("Lamport: ").append(this.clock.getTime()).append("\r\n");
+        res.append("Version: ").append(version).append("\r\n");
+        res.append("\r\n");
+
+        return res.toString();
+    }
+
+    /**
+     * Formats an HTTP response with a body.
+     * @param status The HTTP status code and message.
+     * @param contentType The type of the body.
+     * @param body The body.
+     * @return The formatted HTTP response as a string.
+     */
+    private String formatBody(String status, String contentType, String body) {
+        StringBuilder res = new StringBuilder();
+
+        res.append("HTTP/1.1 ").append(status).append("\r\n");
+        res.append("Lamport: ").append(this.clock.getTime()).append("\r\n");
+        res.append("Content-Type: ").append(contentType).append("\r\n");
+        res.append("Content-Length: ").append(body.getBytes(StandardCharsets.UTF_8).length).append("\r\n");
+        res.append("\r\n");
+        res.append(body);
+        return res.toString();
+    }
+
     /**
      * Stops the AggregationServer and releases resources.
      */
     public void stop() {
         this.isDown = true;
-        this.socketServer.close();
+        if (this.nioServer != null) {
+            this.nioServer.close();
+        } else {
+            this.socketServer.close();
+        }
+        // kept-alive connections are waiting in a blocking read, closing them releases their workers
+        for (Socket connection : this.openConnections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (this.workers != null) {
+            this.workers.shutdownNow();
+        }
+        Thread dispatcherThread = this.dispatcher;
+        if (dispatcherThread != null) {
+            dispatcherThread.interrupt();
+        }
         System.out.println("Stop AggregationServer on port " + this.port);
     }
 
@@ -311,8 +797,10 @@ public class AggregationServer {
 
     public static void main(String[] args) {
         int port = 4000;
-        SocketServer socketServer = new SocketServer();
-        AggregationServer aggregationServer = new AggregationServer(socketServer);
+        // "nio" serves the port directly with the non-blocking engine
+        boolean useNio = args.length > 0 && "nio".equalsIgnoreCase(args[0]);
+        AggregationServer aggregationServer = useNio ? new AggregationServer(new NioSocketServer())
+                : new AggregationServer(new SocketServer());
         aggregationServer.start(port);
         
     }
@@ -1,7 +1,9 @@
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -137,6 +139,224 @@ public class AggregationServer_Test {
         }
         throw new IllegalArgumentException("No valid JSON found in response");
     }
+    @Test
+    void testAggregateRequest() {
+        MockSocketServer mockSocket = new MockSocketServer();
+        AggregationServer server = new AggregationServer(mockSocket);
+        server.clearData();
+        String[][] readings = {{"AGG60901", "10.5", "1"}, {"AGG60901", "14.5", "2"}, {"AGG60902", "30", "3"}};
+        for (String[] reading : readings) {
+            String body = "{\"id\":\"" + reading[0] + "\",\"air_temp\":\"" + reading[1] + "\",\"press\":1010}";
+            server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + body.length() + "\r\nLamportClock: "
+                    + reading[2] + "\r\nSource: TestSource\r\n\r\n" + body);
+        }
+
+        String one = server.normalizeReq("GET /data.json HTTP/1.1\r\nStationID: AGG60901\r\nAggregate: air_temp\r\n"
+                + "Window: 60000\r\nLamportClock: 4\r\n\r\n");
+        assertTrue(one.contains("200 OK"), one);
+        JsonObject station = JsonParser.parseString(extractJsonFromResponse(one)).getAsJsonObject()
+                .getAsJsonObject("stations").getAsJsonObject("AGG60901").getAsJsonObject("air_temp");
+        assertEquals(2, station.get("count").getAsInt());
+        assertEquals(10.5, station.get("min").getAsDouble());
+        assertEquals(14.5, station.get("max").getAsDouble());
+        assertEquals(12.5, station.get("avg").getAsDouble());
+
+        String all = server.normalizeReq("GET /data.json HTTP/1.1\r\nAggregate: air_temp,press\r\nLamportFrom: 0\r\n"
+                + "LamportClock: 5\r\n\r\n");
+        JsonObject json = JsonParser.parseString(extractJsonFromResponse(all)).getAsJsonObject();
+        assertEquals("lamport", json.getAsJsonObject("window").get("by").getAsString());
+        assertEquals(2, json.getAsJsonObject("stations").size());
+        assertEquals(3, json.getAsJsonObject("all").getAsJsonObject("air_temp").get("count").getAsInt());
+        assertEquals(30, json.getAsJsonObject("all").getAsJsonObject("air_temp").get("max").getAsDouble());
+        assertEquals(1010, json.getAsJsonObject("all").getAsJsonObject("press").get("avg").getAsDouble());
+
+        assertTrue(server.normalizeReq("GET /data.json HTTP/1.1\r\nAggregate: humidity\r\n\r\n").contains("400 Bad Request"));
+        assertTrue(server.normalizeReq("GET /data.json HTTP/1.1\r\nAggregate: *\r\nStationID: AGG60999\r\n\r\n")
+                .contains("204 No Content"));
+        server.clearData();
+        server.stop();
+    }
+
+    @Test
+    void testBatchGetRequest() {
+        MockSocketServer mockSocket = new MockSocketServer();
+        AggregationServer server = new AggregationServer(mockSocket);
+        server.clearData();
+        String[][] readings = {{"BAT60901", "10", "1"}, {"BAT60902", "20", "2"}, {"BAT60903", "30", "3"}, {"BAT60901", "11", "8"}};
+        for (String[] reading : readings) {
+            String body = "{\"id\":\"" + reading[0] + "\",\"air_temp\":\"" + reading[1] + "\"}";
+            server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + body.length() + "\r\nLamportClock: "
+                    + reading[2] + "\r\nSource: TestSource\r\n\r\n" + body);
+        }
+
+        // every station is read at clock 5, the reading saved at 8 is not visible yet
+        String response = server.normalizeReq("GET /data.json HTTP/1.1\r\nStationIDs: BAT60903,BAT60999,BAT60901\r\n"
+                + "LamportClock: 5\r\n\r\n");
+        assertTrue(response.contains("200 OK"), response);
+        JsonArray array = JsonParser.parseString(extractBody(response)).getAsJsonArray();
+        assertEquals(2, array.size());
+        assertEquals("BAT60903", array.get(0).getAsJsonObject().get("id").getAsString());
+        assertEquals("10", array.get(1).getAsJsonObject().get("air_temp").getAsString());
+
+        String all = server.normalizeReq("GET /data.json HTTP/1.1\r\nStationIDs: *\r\nAccept: application/x-ndjson\r\n"
+                + "LamportClock: 9\r\n\r\n");
+        assertTrue(all.contains("Content-Type: application/x-ndjson"), all);
+        String[] lines = extractBody(all).split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("11", JsonParser.parseString(lines[0]).getAsJsonObject().get("air_temp").getAsString());
+
+        assertTrue(server.normalizeReq("GET /data.json HTTP/1.1\r\nStationIDs: BAT60999\r\nLamportClock: 9\r\n\r\n")
+                .contains("204 No Content"));
+        server.clearData();
+        server.stop();
+    }
+
+    @Test
+    void testBatchPutRequest() {
+        MockSocketServer mockSocket = new MockSocketServer();
+        AggregationServer server = new AggregationServer(mockSocket);
+        server.clearData();
+        String source = "BatchSource" + System.nanoTime();
+        String body = "[{\"id\":\"PUT60901\",\"air_temp\":\"10\"},{\"air_temp\":\"15\"},{\"id\":\"PUT60902\",\"air_temp\":\"20\"}]";
+        String response = server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + body.length()
+                + "\r\nLamportClock: 10\r\nSource: " + source + "\r\n\r\n" + body);
+        assertTrue(response.contains("201 HTTP_CREATED"), response);
+        JsonArray results = JsonParser.parseString(extractBody(response)).getAsJsonArray();
+        assertEquals(3, results.size());
+        assertEquals(201, results.get(0).getAsJsonObject().get("status").getAsInt());
+        assertEquals(400, results.get(1).getAsJsonObject().get("status").getAsInt());
+        assertEquals("PUT60902", results.get(2).getAsJsonObject().get("id").getAsString());
+        assertEquals(12, results.get(2).getAsJsonObject().get("lamport").getAsInt());
+
+        // one tick per record, the clock is past the last record's time
+        assertEquals(10, DatabaseManagement.initialize().getWeatherData("PUT60901").peek().getLamport());
+        assertEquals(12, DatabaseManagement.initialize().getWeatherData("PUT60902").peek().getLamport());
+        int clock = Integer.parseInt(response.split("Lamport: ")[1].split("\r\n")[0]);
+        assertTrue(clock > 12, response);
+
+        String again = "[{\"id\":\"PUT60901\",\"air_temp\":\"11\"}]";
+        String updated = server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + again.length()
+                + "\r\nLamportClock: 20\r\nSource: " + source + "\r\n\r\n" + again);
+        assertTrue(updated.contains("200 OK"), updated);
+        assertEquals(2, DatabaseManagement.initialize().getWeatherData("PUT60901").size());
+
+        // without a usable clock the records cannot be versioned
+        for (String clockHeader : new String[] {"", "LamportClock: abc\r\n", "LamportClock: -3\r\n"}) {
+            String noClock = server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + again.length()
+                    + "\r\n" + clockHeader + "Source: " + source + "\r\n\r\n" + again);
+            assertTrue(noClock.startsWith("HTTP/1.1 400 Bad Request"), noClock);
+        }
+        assertEquals(2, DatabaseManagement.initialize().getWeatherData("PUT60901").size());
+
+        // an unsynced sender's records are newer than everything stored
+        String unsynced = server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + body.length()
+                + "\r\nLamportClock: 1\r\nLamportSynced: false\r\nSource: " + source + "\r\n\r\n" + body);
+        JsonArray versions = JsonParser.parseString(extractBody(unsynced)).getAsJsonArray();
+        int base = versions.get(0).getAsJsonObject().get("lamport").getAsInt();
+        assertTrue(base > 20, unsynced);
+        assertEquals(base + 2, versions.get(2).getAsJsonObject().get("lamport").getAsInt());
+        assertEquals(base + 2, DatabaseManagement.initialize().getWeatherData("PUT60902").latestAtOrBefore(Integer.MAX_VALUE).getLamport());
+
+        String invalid = "[{\"air_temp\":\"11\"}]";
+        assertTrue(server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + invalid.length()
+                + "\r\nLamportClock: 30\r\nSource: " + source + "\r\n\r\n" + invalid).contains("400 Bad Request"));
+        server.clearData();
+        server.stop();
+    }
+
+    @Test
+    void testDeltaPutRequest() {
+        MockSocketServer mockSocket = new MockSocketServer();
+        AggregationServer server = new AggregationServer(mockSocket);
+        server.clearData();
+        String full = "{\"id\":\"DEL60901\",\"name\":\"Adelaide\",\"state\":\"SA\",\"air_temp\":\"13.3\",\"cloud\":\"Sunny\"}";
+        assertTrue(server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + full.length()
+                + "\r\nLamportClock: 3\r\nSource: DeltaSource\r\n\r\n" + full).contains("201"));
+        String other = "{\"id\":\"DEL60901\",\"air_temp\":\"40\"}";
+        server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + other.length()
+                + "\r\nLamportClock: 4\r\nSource: OtherSource\r\n\r\n" + other);
+
+        // the base is the sender's own latest reading, whatever other senders saved since
+        String delta = "{\"id\":\"DEL60901\",\"air_temp\":\"14.1\",\"cloud\":null}";
+        String response = server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + delta.length()
+                + "\r\nLamportClock: 6\r\nSource: DeltaSource\r\nBase-Version: 3\r\n\r\n" + delta);
+        assertTrue(response.contains("200 OK"), response);
+        JsonObject merged = DatabaseManagement.initialize().getWeatherData("DEL60901").latestFrom("DeltaSource").getData();
+        assertEquals(6, DatabaseManagement.initialize().getWeatherData("DEL60901").latestFrom("DeltaSource").getLamport());
+        assertEquals("Adelaide", merged.get("name").getAsString());
+        assertEquals("14.1", merged.get("air_temp").getAsString());
+        assertFalse(merged.has("cloud"));
+
+        // the base 3 is no longer the sender's latest reading
+        String stale = server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + delta.length()
+                + "\r\nLamportClock: 8\r\nSource: DeltaSource\r\nBase-Version: 3\r\n\r\n" + delta);
+        assertTrue(stale.contains("409 Conflict"), stale);
+        assertTrue(server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + delta.length()
+                + "\r\nLamportClock: 8\r\nSource: NewSource\r\nBase-Version: 6\r\n\r\n" + delta).contains("409 Conflict"));
+        // a rejected delta does not count as a sign of life from its sender
+        assertNull(DatabaseManagement.initialize().getSenderTimestamp("NewSource"));
+        for (String base : new String[] {"abc", "-1", ""}) {
+            String bad = server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + delta.length()
+                    + "\r\nLamportClock: 9\r\nSource: DeltaSource\r\nBase-Version: " + base + "\r\n\r\n" + delta);
+            assertTrue(bad.contains("400 Bad Request"), bad);
+        }
+        assertEquals(3, DatabaseManagement.initialize().getWeatherData("DEL60901").size());
+        server.clearData();
+        server.stop();
+    }
+
+    @Test
+    void testUsesTheDatabaseItIsGiven(@TempDir Path tempDir) {
+        DatabaseManagement mapped = new DatabaseManagement(4, tempDir.toString(), StorageShard.Backend.MAPPED);
+        AggregationServer server = new AggregationServer(new MockSocketServer(), 1, false, mapped);
+        String body = "{\"id\":\"OWN60901\",\"air_temp\":\"10\"}";
+        assertTrue(server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + body.length()
+                + "\r\nLamportClock: 1\r\nSource: OwnSource\r\n\r\n" + body).contains("201"));
+        assertEquals(1, mapped.getWeatherData("OWN60901").size());
+        assertNull(DatabaseManagement.initialize().getWeatherData("OWN60901"));
+        assertTrue(Files.exists(tempDir.resolve("shard-3")));
+        server.stop();
+        mapped.close();
+    }
+
+    @Test
+    void testUnsyncedRequestsUseTheServerClock() {
+        MockSocketServer mockSocket = new MockSocketServer();
+        AggregationServer server = new AggregationServer(mockSocket);
+        server.clearData();
+        String old = "{\"id\":\"SYN60901\",\"lat\":\"-34.9\"}";
+        server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + old.length()
+                + "\r\nLamportClock: 50\r\nSource: SyncedSource\r\n\r\n" + old);
+
+        // a fresh single round trip client reads what is stored, whatever its own clock says
+        String read = server.normalizeReq("GET /data.json HTTP/1.1\r\nStationID: SYN60901\r\nLamportClock: 1\r\n"
+                + "LamportSynced: false\r\n\r\n");
+        assertTrue(read.contains("-34.9"), read);
+
+        String fresh = "{\"id\":\"SYN60901\",\"lat\":\"40\"}";
+        String saved = server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + fresh.length()
+                + "\r\nLamportClock: 1\r\nSource: FreshSource\r\nLamportSynced: false\r\n\r\n" + fresh);
+        WeatherFormat stored = DatabaseManagement.initialize().getWeatherData("SYN60901").latestFrom("FreshSource");
+        assertTrue(stored.getLamport() > 50, "The unsynced PUT is newer than the stored reading: " + stored.getLamport());
+        // the answer carries the version the server gave the reading, the base of the sender's next delta
+        assertTrue(saved.contains("\r\nVersion: " + stored.getLamport() + "\r\n"), saved);
+        String delta = "{\"id\":\"SYN60901\",\"air_temp\":\"12\"}";
+        String merged = server.normalizeReq("PUT /data.json HTTP/1.1\r\nContent-Length: " + delta.length()
+                + "\r\nLamportClock: " + (stored.getLamport() + 2) + "\r\nSource: FreshSource\r\nBase-Version: "
+                + stored.getLamport() + "\r\n\r\n" + delta);
+        assertTrue(merged.contains("200 OK"), merged);
+        stored = DatabaseManagement.initialize().getWeatherData("SYN60901").latestFrom("FreshSource");
+        String latest = server.normalizeReq("GET /data.json HTTP/1.1\r\nStationID: SYN60901\r\nLamportClock: "
+                + (stored.getLamport() + 1) + "\r\n\r\n");
+        assertTrue(latest.contains("\"40\""), latest);
+        server.clearData();
+        server.stop();
+    }
+
+    private String extractBody(String response) {
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
     @Test
     void testHandlePutRequest() {
         MockSocketServer mockSocket = new MockSocketServer();
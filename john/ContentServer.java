@@ -1,5 +1,9 @@
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 
 public class ContentServer {
@@ -7,12 +11,43 @@ public class ContentServer {
     private SocketServer socketServer;
     private String source;
     private JsonObject data;
+    private List<JsonObject> batch = new ArrayList<>();
     private boolean isClosed;
+    private boolean singleRoundTrip;
+    // whether the clock has been set from a server clock, a greeting or a response
+    private boolean synced;
+    private boolean delta;
+    // the reading the server last acknowledged and its Lamport time, the base of the next delta
+    private JsonObject acked;
+    private int ackedVersion;
 
     public ContentServer(SocketServer socket) {
+        this(socket, false);
+    }
+
+    /**
+     * @param socket The socket handler used to reach the aggregation server.
+     * @param singleRoundTrip When true the PUT is sent without waiting for the Lamport greeting,
+     *                        and the clock is synchronised from the response header instead.
+     *                        A socket handler with keep-alive only waits for the greeting when it opens
+     *                        a new connection, and sends directly on the reused one.
+     */
+    public ContentServer(SocketServer socket, boolean singleRoundTrip) {
+        this(socket, singleRoundTrip, false);
+    }
+
+    /**
+     * @param socket The socket handler used to reach the aggregation server.
+     * @param singleRoundTrip See ContentServer(SocketServer, boolean).
+     * @param delta When true an upload after an acknowledged one only sends the fields that changed since,
+     *              see uploadData.
+     */
+    public ContentServer(SocketServer socket, boolean singleRoundTrip, boolean delta) {
         this.source = UUID.randomUUID().toString();
         this.socketServer = socket;
         this.clock = new Lamport();
+        this.singleRoundTrip = singleRoundTrip;
+        this.delta = delta;
     }
 
     /**
@@ -32,57 +67,60 @@ public class ContentServer {
         }
     }
 
+    /**
+     * Loads the readings of a batch upload from several files.
+     * A file holds one or more readings in the format of isLoadFileSuccess, separated by blank lines.
+     * @param filePaths The files containing weather data.
+     * @return true if every file was loaded and converted, false otherwise.
+     */
+    public boolean isLoadBatchSuccess(List<String> filePaths) {
+        List<JsonObject> readings = new ArrayList<>();
+        try {
+            for (String filePath : filePaths) {
+                for (String record : JsonHandling.read(filePath).split("\n\\s*\n")) {
+                    if (!record.isBlank()) {
+                        readings.add(JsonHandling.convertTextToJson(record.strip()));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Error on loading file " + e.getMessage());
+            return false;
+        }
+        this.batch = readings;
+        return true;
+    }
+
     /**
      * Uploads weather data to the aggregation server.
      * Implements retry logic and Lamport clock synchronization.
+     * In delta mode, once the server acknowledged a reading, the next upload sends the id and the fields
+     * that changed since (removed ones as null) with Base-Version set to the acknowledged reading's Lamport
+     * time, taken from the Version header of the server's answer. When the server answers 409 the base is
+     * out of date and the full reading is sent.
      * @param serverName The hostname of the aggregation server.
      * @param portNumber The port number of the aggregation server.
      */
     public void uploadData(String serverName, int portNumber) {
         try {
             System.out.println("Upload data: ");
-            int lamportClockServer = this.socketServer.initializeSocketandGetLamport(serverName, portNumber);
-            System.out.println("lamport data: ");
-            this.clock.adjust(lamportClockServer);
-            System.out.println("Updated Lamport clock 1: " + this.clock.getTime());
-            String dataString = JsonHandling.prettier(this.data);
-            
-            String putRequest = "PUT /data.json HTTP/1.1\r\n" +
-                            "Content-Length: " + dataString.length() + "\r\n" +
-                            "LamportClock: " + this.clock.getTime() + "\r\n" +
-                            "Source: " + this.source + "\r\n" +
-                            "\r\n" +
-                            dataString;
-            String res = this.socketServer.requestAndGetData(serverName, portNumber, putRequest, true);
-            System.out.println("Response data: ");
-            System.out.println(res);
+            JsonObject changes = this.delta && this.acked != null ? this.changesSinceAcked() : null;
+            String res = changes != null
+                    ? this.put(serverName, portNumber, changes.toString(), 1, this.ackedVersion)
+                    : this.put(serverName, portNumber, JsonHandling.prettier(this.data), 1, null);
+            if (res != null && changes != null && res.split(" ")[1].equals("409")) {
+                System.out.println("Base version out of date, sending the full reading.");
+                this.acked = null;
+                res = this.put(serverName, portNumber, JsonHandling.prettier(this.data), 1, null);
+            }
             if (res != null) {
-                String[] lines = res.split("\r\n");
-                for (String line : lines) {
-                    if (line.startsWith("Lamport: ")) {
-                        int serverClock = Integer.parseInt(line.split(": ")[1]);
-                        this.clock.adjust(serverClock);
-                        System.out.println("serverClock: " + serverClock);
-                        System.out.println("Updated Lamport clock 2: " + this.clock.getTime());
-                        break;
-                    }
-                }
-                
+                this.reportStatus(res);
                 String statusCode = res.split(" ")[1];
-                switch (statusCode) {
-                    case "200":
-                    case "201":
-                        System.out.println("Weather data uploaded successfully.");
-                        break;
-                    case "503":
-                        System.out.println("Service Unavailable.");
-                        break;
-                    case "500":
-                        System.out.println("Technical error");
-                        break;
-                    default:
-                        System.out.println("Unexpected response: " + res);
-                        break;
+                if (statusCode.equals("200") || statusCode.equals("201")) {
+                    // the server may have versioned the reading from its own clock, its answer says how
+                    Integer version = versionOf(res);
+                    this.acked = version != null ? this.data.deepCopy() : null;
+                    this.ackedVersion = version != null ? version : 0;
                 }
             }
         } catch (Exception e) {
@@ -91,6 +129,155 @@ public class ContentServer {
         } 
     }
 
+    /**
+     * Uploads the readings loaded by isLoadBatchSuccess in one PUT, a JSON array of the readings.
+     * The clock ticks once per reading, the first reading carries the LamportClock header and the
+     * server gives reading i the time LamportClock + i.
+     * Retries like uploadData when the server cannot be reached.
+     * @param serverName The hostname of the aggregation server.
+     * @param portNumber The port number of the aggregation server.
+     * @return The status the server gave each reading, null without a readable answer.
+     */
+    public JsonArray uploadBatch(String serverName, int portNumber) {
+        try {
+            JsonArray readings = new JsonArray();
+            this.batch.forEach(readings::add);
+            System.out.println("Upload batch of " + readings.size() + " readings");
+            String res = this.put(serverName, portNumber, readings.toString(), readings.size(), null);
+            if (res == null) {
+                return null;
+            }
+            this.reportStatus(res);
+            int body = res.indexOf("\r\n\r\n");
+            String content = body < 0 ? "" : res.substring(body + 4).trim();
+            return content.startsWith("[") ? JsonHandling.convertObject(content, JsonArray.class) : null;
+        } catch (Exception e) {
+            System.out.println("Retrying batch to server...");
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException ex) {
+                System.out.println("Retry error: " + ex.getMessage());
+                return null;
+            }
+            return uploadBatch(serverName, portNumber);
+        }
+    }
+
+    /**
+     * The id and the fields of the reading that differ from the acknowledged one, removed fields as null.
+     */
+    private JsonObject changesSinceAcked() {
+        JsonObject changes = new JsonObject();
+        changes.add("id", this.data.get("id"));
+        for (Map.Entry<String, JsonElement> field : this.data.entrySet()) {
+            if (!field.getValue().equals(this.acked.get(field.getKey()))) {
+                changes.add(field.getKey(), field.getValue());
+            }
+        }
+        for (String field : this.acked.keySet()) {
+            if (!this.data.has(field)) {
+                changes.add(field, JsonNull.INSTANCE);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Sends a PUT and synchronises the clock with the server's answer.
+     * @param body The readings to send.
+     * @param records How many readings the body holds, the clock ticks once for each.
+     * @param baseVersion The Lamport time of the reading a delta body applies to, null for a full reading.
+     * @return The server's answer, null if there was none.
+     */
+    private String put(String serverName, int portNumber, String body, int records, Integer baseVersion) throws Exception {
+        // a kept-alive connection already synced the clock from its greeting when it was opened
+        boolean direct = this.singleRoundTrip
+                || (this.socketServer.isKeepAlive() && this.socketServer.isConnectedTo(serverName, portNumber));
+        if (direct) {
+            this.clock.tick();
+        } else {
+            int lamportClockServer = this.socketServer.initializeSocketandGetLamport(serverName, portNumber);
+            System.out.println("lamport data: ");
+            this.clock.adjust(lamportClockServer);
+            this.synced = true;
+        }
+        int first = this.clock.getTime();
+        for (int i = 1; i < records; i++) {
+            this.clock.tick();
+        }
+        System.out.println("Updated Lamport clock 1: " + this.clock.getTime());
+
+        String putRequest = "PUT /data.json HTTP/1.1\r\n" +
+                        "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
+                        "LamportClock: " + first + "\r\n" +
+                        // the server versions the reading from its own clock
+                        (this.synced ? "" : "LamportSynced: false\r\n") +
+                        "Source: " + this.source + "\r\n" +
+                        (baseVersion != null ? "Base-Version: " + baseVersion + "\r\n" : "") +
+                        (this.socketServer.isKeepAlive() ? "Connection: keep-alive\r\n" : "") +
+                        "\r\n" +
+                        body;
+        String res = direct || this.socketServer.isKeepAlive()
+                ? this.socketServer.sendRequest(serverName, portNumber, putRequest, true)
+                : this.socketServer.requestAndGetData(serverName, portNumber, putRequest, true);
+        System.out.println("Response data: ");
+        System.out.println(res);
+        if (res != null) {
+            String[] lines = res.split("\r\n");
+            for (String line : lines) {
+                if (line.startsWith("Lamport: ")) {
+                    int serverClock = Integer.parseInt(line.split(": ")[1]);
+                    this.clock.adjust(serverClock);
+                    this.synced = true;
+                    System.out.println("serverClock: " + serverClock);
+                    System.out.println("Updated Lamport clock 2: " + this.clock.getTime());
+                    break;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The Lamport time the server gave a saved reading, from the Version header of its answer.
+     * @param res The server's answer.
+     * @return The version, null if the answer has none.
+     */
+    private static Integer versionOf(String res) {
+        for (String line : res.split("\r\n")) {
+            if (line.isEmpty()) {
+                break;
+            }
+            if (line.startsWith("Version: ")) {
+                try {
+                    return Integer.parseInt(line.substring("Version: ".length()).trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void reportStatus(String res) {
+        String statusCode = res.split(" ")[1];
+        switch (statusCode) {
+            case "200":
+            case "201":
+                System.out.println("Weather data uploaded successfully.");
+                break;
+            case "503":
+                System.out.println("Service Unavailable.");
+                break;
+            case "500":
+                System.out.println("Technical error");
+                break;
+            default:
+                System.out.println("Unexpected response: " + res);
+                break;
+        }
+    }
+
     /**
      * Implements retry logic for uploading data to the server.
      * Waits for a specified time before attempting to upload again.
@@ -142,21 +329,43 @@ public class ContentServer {
             return;
         }
         String serverName = args[0];
-        String file = args[2];
+        List<String> files = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                files.add(args[i]);
+            }
+        }
+        boolean singleRoundTrip = Arrays.asList(args).contains("--single-rtt");
+        boolean keepAlive = Arrays.asList(args).contains("--keep-alive");
+        boolean delta = Arrays.asList(args).contains("--delta");
 
-        SocketServer socketHandler = new SocketServer();
-        ContentServer server = new ContentServer(socketHandler);
+        SocketServer socketHandler = new SocketServer(keepAlive);
+        ContentServer server = new ContentServer(socketHandler, singleRoundTrip, delta);
 
-        if (!server.isLoadFileSuccess(file)) {
-            System.out.println("Error: Failed to load data from " + file);
-            return;
+        // several files, or the --batch flag, send every reading of the files in one PUT
+        boolean batch = files.size() > 1 || Arrays.asList(args).contains("--batch");
+        if (batch) {
+            if (!server.isLoadBatchSuccess(files)) {
+                System.out.println("Error: Failed to load data from " + files);
+                return;
+            }
+            server.uploadBatch(serverName, port);
+        } else {
+            if (files.isEmpty() || !server.isLoadFileSuccess(files.get(0))) {
+                System.out.println("Error: Failed to load data from " + files);
+                return;
+            }
+            server.uploadData(serverName, port);
         }
-        server.uploadData(serverName, port);
 
         Thread monitorThread = new Thread(() -> {
             Scanner scanner = new Scanner(System.in);
             while (true) {
                 String input = scanner.nextLine();
+                // reads the file again and uploads it, as a delta with --delta
+                if ("UPLOAD".equalsIgnoreCase(input) && !batch && server.isLoadFileSuccess(files.get(0))) {
+                    server.uploadData(serverName, port);
+                }
                 if ("SHUTDOWN".equalsIgnoreCase(input)) {
                     // shutdown();
                     scanner.close();
@@ -1,12 +1,18 @@
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 class ContentServer_Test {
     private ContentServer contentServer;
@@ -60,6 +66,87 @@ class ContentServer_Test {
         assertTrue(sentData.startsWith("PUT /data.json HTTP/1.1\r\n"));
     }
 
+    @Test
+    void testUploadDataSingleRoundTrip() {
+        MockSocketServer singleRttSocket = new MockSocketServer();
+        ContentServer singleRttServer = new ContentServer(singleRttSocket, true);
+        singleRttSocket.setPreparedResponse("HTTP/1.1 201 Created\r\nLamport: 5\r\n\r\n");
+        singleRttServer.isLoadFileSuccess("data1_0.txt");
+        singleRttServer.uploadData("localhost", 4567);
+        String sentData = singleRttSocket.getLastRequest();
+        assertNotNull(sentData);
+        assertTrue(sentData.startsWith("PUT /data.json HTTP/1.1\r\n"));
+        assertTrue(sentData.contains("LamportClock: 1\r\n"));
+        assertEquals(1, singleRttSocket.getRequestCount(), "No separate Lamport handshake should be made");
+    }
+
+    @Test
+    void testUploadBatch(@TempDir Path tempDir) throws Exception {
+        Path gateway = tempDir.resolve("gateway.txt");
+        Files.write(gateway, (JsonHandling.read("data1_0.txt") + "\n" + "id:IDS60902\nair_temp:12.5\n").getBytes());
+        assertTrue(contentServer.isLoadBatchSuccess(List.of(gateway.toString(), "data1_0.txt")));
+
+        MockSocketServer singleRttSocket = new MockSocketServer();
+        ContentServer singleRttServer = new ContentServer(singleRttSocket, true);
+        singleRttSocket.setPreparedResponse("HTTP/1.1 201 HTTP_CREATED\r\nLamport: 5\r\nContent-Type: application/json\r\n\r\n"
+                + "[{\"id\":\"IDS60901\",\"lamport\":1,\"status\":201},{\"id\":\"IDS60902\",\"lamport\":2,\"status\":201},"
+                + "{\"id\":\"IDS60901\",\"lamport\":3,\"status\":201}]");
+        assertTrue(singleRttServer.isLoadBatchSuccess(List.of(gateway.toString(), "data1_0.txt")));
+        JsonArray results = singleRttServer.uploadBatch("localhost", 4567);
+        assertEquals(3, results.size());
+        assertEquals(201, results.get(2).getAsJsonObject().get("status").getAsInt());
+
+        String sentData = singleRttSocket.getLastRequest();
+        assertTrue(sentData.contains("LamportClock: 1\r\n"), "The first record carries the clock");
+        JsonArray sent = JsonParser.parseString(sentData.substring(sentData.indexOf("\r\n\r\n") + 4)).getAsJsonArray();
+        assertEquals(3, sent.size());
+        assertEquals("12.5", sent.get(1).getAsJsonObject().get("air_temp").getAsString());
+        assertEquals(1, singleRttSocket.getRequestCount(), "The readings should be sent in one request");
+        singleRttServer.shutdown();
+    }
+
+    @Test
+    void testUploadDelta(@TempDir Path tempDir) throws Exception {
+        Path file = tempDir.resolve("station.txt");
+        Files.write(file, "id:IDS60901\nname:Adelaide\nstate:SA\nair_temp:13.3\ncloud:Sunny\n".getBytes());
+        MockSocketServer deltaSocket = new MockSocketServer();
+        ContentServer deltaServer = new ContentServer(deltaSocket, true, true);
+        // the client is not synced, the server versions the reading from its own clock
+        deltaSocket.setPreparedResponse("HTTP/1.1 201 HTTP_CREATED\r\nLamport: 3\r\nVersion: 3\r\n\r\n");
+        assertTrue(deltaServer.isLoadFileSuccess(file.toString()));
+        deltaServer.uploadData("localhost", 4567);
+        assertFalse(deltaSocket.getLastRequest().contains("Base-Version"), "Nothing acknowledged yet, the first upload is full");
+
+        Files.write(file, "id:IDS60901\nname:Adelaide\nstate:SA\nair_temp:14.1\n".getBytes());
+        assertTrue(deltaServer.isLoadFileSuccess(file.toString()));
+        deltaSocket.setPreparedResponse("HTTP/1.1 200 OK\r\nLamport: 6\r\nVersion: 6\r\n\r\n");
+        deltaServer.uploadData("localhost", 4567);
+        String sent = deltaSocket.getLastRequest();
+        assertTrue(sent.contains("Base-Version: 3\r\n"), sent);
+        JsonObject changes = JsonParser.parseString(sent.substring(sent.indexOf("\r\n\r\n") + 4)).getAsJsonObject();
+        assertEquals(3, changes.size(), "Only the id and the changed fields are sent: " + changes);
+        assertEquals("14.1", changes.get("air_temp").getAsString());
+        assertTrue(changes.get("cloud").isJsonNull());
+
+        // a stale base is answered with 409 and the full reading is sent again
+        deltaSocket.setPreparedResponse("HTTP/1.1 409 Conflict\r\nLamport: 9\r\n\r\n");
+        int requests = deltaSocket.getRequestCount();
+        deltaServer.uploadData("localhost", 4567);
+        assertEquals(requests + 2, deltaSocket.getRequestCount());
+        assertFalse(deltaSocket.getLastRequest().contains("Base-Version"));
+        assertTrue(deltaSocket.getLastRequest().contains("\"name\""));
+
+        // an answer without a version acknowledges nothing to build a delta on
+        deltaSocket.setPreparedResponse("HTTP/1.1 200 OK\r\nLamport: 12\r\nVersion: 12\r\n\r\n");
+        deltaServer.uploadData("localhost", 4567);
+        deltaSocket.setPreparedResponse("HTTP/1.1 200 OK\r\nLamport: 14\r\n\r\n");
+        deltaServer.uploadData("localhost", 4567);
+        assertTrue(deltaSocket.getLastRequest().contains("Base-Version: 12\r\n"));
+        deltaServer.uploadData("localhost", 4567);
+        assertFalse(deltaSocket.getLastRequest().contains("Base-Version"));
+        deltaServer.shutdown();
+    }
+
     @Test
     void testRetryUpload() {
         mockSocket.setLamportClockToReturn(1);
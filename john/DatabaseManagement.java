@@ -1,180 +1,412 @@
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
-import com.google.gson.reflect.TypeToken;
-
-import java.lang.reflect.Type;
 
+/**
+ * Weather data shared by every AggregationServer replica.
+ * The data is split into shards by the hash of the station ID, and sender timestamps by the hash of the
+ * sender ID. Each shard has its own lock, snapshot files, write-ahead log and expiry timer (see StorageShard),
+ * so saves to different shards do not wait on each other, and shards are checkpointed, recovered and expired
+ * in parallel. With one shard the files are kept in data/ itself, with more each shard has data/shard-N/.
+ * The shards persist their changes with the JSON or the MAPPED backend, see StorageShard.
+ */
 public class DatabaseManagement {
-    private static final long EXPIRE_SAVE = 30000;
-
-    private static final String MAIN_DATA = "data" + File.separator + "data.json";
-    private static final String MAIN_DATA_BACKUP = "data" + File.separator + "data_backup.json";
-    private static final String SENDER_FILE_PATH = "data" + File.separator + "sender.json";
-    private static final String SENDER_FILE_PATH_BACKUP = "data" + File.separator + "sender_backup.json";
-    private String latestStationID;
-    private Map<String, LinkedList<WeatherFormat>> weatherData = new ConcurrentHashMap<>();
-    private Map<String, Long> senderTimestamp = new ConcurrentHashMap<>();
+    public static final int DEFAULT_SHARDS = 1;
+    private static final String DATA_DIRECTORY = "data";
+    private volatile String latestStationID;
     private static DatabaseManagement db;
-    private ScheduledExecutorService updateDataSchedule = Executors.newScheduledThreadPool(1);
+    private final StorageShard[] shards;
+    private final StorageShard.Backend backend;
+    private final ScheduledExecutorService updateDataSchedule;
+    // how long loading the shards took and the heap used at most meanwhile
+    private long loadNanos;
+    private long loadPeakHeap;
+    // windowed aggregates of the saved readings, updated by saveData
+    private final Rollups rollups = new Rollups();
+
+    /**
+     * Creates the shards and loads them in parallel.
+     * @param shardCount Number of shards, the same count has to be used to find the data again after a restart.
+     * @param directory Directory of the data files.
+     * @param backend How the shards persist their changes.
+     */
+    DatabaseManagement(int shardCount, String directory, StorageShard.Backend backend) {
+        int count = Math.max(1, shardCount);
+        this.backend = backend;
+        // expiry and checkpoints of different shards run side by side
+        this.updateDataSchedule = Executors.newScheduledThreadPool(2 * count);
+        this.shards = new StorageShard[count];
+        for (int i = 0; i < count; i++) {
+            String shardDirectory = count == 1 ? directory : directory + File.separator + "shard-" + i;
+            this.shards[i] = new StorageShard(shardDirectory, this.updateDataSchedule, this::expireSender, backend);
+        }
+        List<Callable<Boolean>> loads = new ArrayList<>();
+        for (StorageShard shard : this.shards) {
+            loads.add(() -> {
+                shard.loadData();
+                return true;
+            });
+        }
+        long started = System.nanoTime();
+        List<MemoryPoolMXBean> heap = heapPools();
+        heap.forEach(MemoryPoolMXBean::resetPeakUsage);
+        this.runOnShards(loads);
+        this.loadNanos = System.nanoTime() - started;
+        this.loadPeakHeap = heap.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+        // loaded readings count as saved now, as they do for the retention's age limit
+        long now = System.currentTimeMillis();
+        for (StorageShard shard : this.shards) {
+            for (Map.Entry<String, StationHistory> entry : shard.getWeatherData().entrySet()) {
+                for (WeatherFormat reading : entry.getValue()) {
+                    this.rollups.add(entry.getKey(), reading, now);
+                }
+            }
+        }
+        for (StorageShard shard : this.shards) {
+            shard.startMaintenance();
+        }
+        System.out.println("Loaded " + this.getLoadStats());
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                heap.add(pool);
+            }
+        }
+        return heap;
+    }
 
     /**
      * Singleton instance getter for DatabaseManagement.
      * Ensures only one instance of the database is created and used throughout the application.
-     * @return The singleton instance of DatabaseManagement.
+     * @return The singleton instance, created with one shard and the JSON backend if it does not exist yet.
      */
-    private DatabaseManagement() {
-        if (db != null) {
-            throw new RuntimeException("use get db method");
+    public static synchronized DatabaseManagement initialize() {
+        if (db == null) {
+            db = new DatabaseManagement(DEFAULT_SHARDS, DATA_DIRECTORY, StorageShard.Backend.JSON);
         }
-        this.loadData();
-        updateDataSchedule.scheduleAtFixedRate(this::updateData, 0, 5, TimeUnit.SECONDS);
+        return db;
     }
 
-    public static DatabaseManagement initialize() {
+    /**
+     * Singleton instance getter that picks the shard count and backend when the instance is first created.
+     * @param shardCount Number of shards.
+     * @param backend How the shards persist their changes.
+     * @return The singleton instance of DatabaseManagement.
+     * @throws IllegalStateException If the instance already exists with another shard count or backend.
+     */
+    public static synchronized DatabaseManagement initialize(int shardCount, StorageShard.Backend backend) {
         if (db == null) {
-            db = new DatabaseManagement();
+            db = new DatabaseManagement(shardCount, DATA_DIRECTORY, backend);
+        } else if (db.getShardCount() != Math.max(1, shardCount) || db.getBackend() != backend) {
+            throw new IllegalStateException("The database already exists with " + db.getShardCount()
+                    + " shards and the " + db.getBackend() + " backend");
         }
-       return db;
+        return db;
+    }
+
+    /**
+     * Number of shards the data is split into.
+     * @return The shard count.
+     */
+    public int getShardCount() {
+        return this.shards.length;
     }
-    
 
     /**
-     * Loads data from persistent storage into memory.
-     * Retrieves weather data and sender timestamps from JSON files, handling potential file errors.
+     * How the shards persist their changes.
+     * @return The backend.
      */
-    public void loadData() {
-        Map<String, LinkedList<WeatherFormat>> loadedWeatherData = loadDataFromFile(MAIN_DATA, MAIN_DATA_BACKUP, 
-            new TypeToken<ConcurrentHashMap<String, LinkedList<WeatherFormat>>>(){}.getType());
+    public StorageShard.Backend getBackend() {
+        return this.backend;
+    }
 
-        Map<String, Long> loadedSenderTimestamp = loadDataFromFile(SENDER_FILE_PATH, SENDER_FILE_PATH_BACKUP, 
-            new TypeToken<ConcurrentHashMap<String, Long>>(){}.getType());
+    private StorageShard shardFor(String key) {
+        return this.shards[Math.floorMod(key.hashCode(), this.shards.length)];
+    }
 
-        if (loadedWeatherData != null) {
-            this.weatherData = loadedWeatherData;
+    /**
+     * Runs a task per shard on the shared pool and waits for all of them.
+     * @return true if any task returned true.
+     */
+    private boolean runOnShards(List<Callable<Boolean>> tasks) {
+        if (tasks.size() == 1) {
+            try {
+                return tasks.get(0).call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
         }
-
-        if (loadedSenderTimestamp != null) {
-            this.senderTimestamp = loadedSenderTimestamp;
+        boolean any = false;
+        try {
+            for (Future<Boolean> result : this.updateDataSchedule.invokeAll(tasks)) {
+                any |= result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
+        return any;
     }
 
     /**
-     * Retrieves the highest Lamport clock value from stored weather data.
-     * Used to maintain clock consistency across the distributed system.
-     * @return The highest Lamport clock value found in the stored data.
+     * Selects when the write-ahead logs are forced to disk.
+     * ALWAYS syncs each group commit before its writers are released, INTERVAL syncs at most every
+     * syncInterval ms and OS leaves it to the operating system.
+     * @param syncPolicy The policy, ALWAYS by default.
+     * @param syncInterval Milliseconds between two syncs for INTERVAL.
      */
-    public int getHighestLamportClock() {
-        int highestLamport = 0;
-        for (LinkedList<WeatherFormat> dataList : weatherData.values()) {
-            for (WeatherFormat data : dataList) {
-                highestLamport = Math.max(highestLamport, data.getLamport());
-            }
+    public void setSyncPolicy(WriteAheadLog.SyncPolicy syncPolicy, long syncInterval) {
+        for (StorageShard shard : this.shards) {
+            shard.setSyncPolicy(syncPolicy, syncInterval);
         }
-        return highestLamport;
     }
 
     /**
-     * Generic method to load data from a file with error handling and backup support.
-     * @param filePath The primary file path to load from.
-     * @param backupFilePath The backup file path to use if the primary fails.
-     * @param type The type of data to deserialize into.
-     * @return The deserialized data of type T, or null if loading fails.
+     * Group commit metrics of the write-ahead logs, summed over the shards. Shards with the MAPPED backend
+     * force their segments without group commit and are not counted.
+     * @return One line with the policy, batch sizes and commit latencies.
      */
-    private <T> T loadDataFromFile(String filePath, String backupFilePath, Type type) {
-        try {
-            File file = new File(filePath);
-            if (!file.exists()) {
-                file.getParentFile().mkdirs();
-                file.createNewFile();
-                Files.write(Paths.get(filePath), "{}".getBytes());
+    public String getCommitStats() {
+        long batches = 0;
+        double batchTotal = 0;
+        double commitTotal = 0;
+        int maxBatch = 0;
+        double maxCommit = 0;
+        for (StorageShard shard : this.shards) {
+            WriteAheadLog log = shard.getLog();
+            if (log == null) {
+                continue;
             }
+            long shardBatches = log.getCommittedBatches();
+            batches += shardBatches;
+            batchTotal += log.getAverageBatchSize() * shardBatches;
+            commitTotal += log.getAverageCommitLatency() * shardBatches;
+            maxBatch = Math.max(maxBatch, log.getMaxBatchSize());
+            maxCommit = Math.max(maxCommit, log.getMaxCommitLatency());
+        }
+        return String.format("log policy=%s shards=%d batches=%d avgBatch=%.2f maxBatch=%d avgCommit=%.2fms maxCommit=%.2fms",
+                this.shards[0].getSyncPolicy(), this.shards.length, batches,
+                batches == 0 ? 0 : batchTotal / batches, maxBatch, batches == 0 ? 0 : commitTotal / batches, maxCommit);
+    }
 
-            String jsonData = new String(Files.readAllBytes(Paths.get(filePath)));
-            return JsonHandling.convertObject(jsonData, type);
-        } catch (IOException e) {
-            System.out.println("Error reading from main file: " + e.getMessage());
-            System.out.println("Attempting to read from backup file...");
-            try {
-                String backupData = new String(Files.readAllBytes(Paths.get(backupFilePath)));
-                return JsonHandling.convertObject(backupData, type);
-            } catch (IOException ex) {
-                System.out.println("Error reading from backup file: " + ex.getMessage());
-                return null;
-            }
+    /**
+     * Retrieves the highest Lamport clock value from stored weather data.
+     * Used to maintain clock consistency across the distributed system.
+     * Each shard keeps its own highest, so this costs one read per shard.
+     * @return The highest Lamport clock value found in the stored data.
+     */
+    public int getHighestLamportClock() {
+        int highest = 0;
+        for (StorageShard shard : this.shards) {
+            highest = Math.max(highest, shard.getHighestLamportClock());
         }
+        return highest;
     }
 
     /**
-     * Saves new weather data to the database.
-     * Updates both in-memory data structures and persists to file.
+     * Saves new weather data to the database, in the shard of its station.
+     * The reading is committed to that shard's write-ahead log before this returns. When the sender's
+     * timestamp is kept by another shard that shard's log is flushed too, so the time saved before the
+     * reading is as durable as the reading. The reading is then added to the rollups of aggregate().
      * @param key The station ID or unique identifier for the weather data.
      * @param data The WeatherFormat object containing the new data.
+     * @return true once the reading, and the sender time saved before it, are committed to the log.
      */
-    public void saveData(String key, WeatherFormat data) {
-        try {
-            this.weatherData.computeIfAbsent(key, e -> new LinkedList<>()).add(data);
-            this.latestStationID = key;
-            this.saveWeatherData();
-            this.saveSenderData();
-        } catch (Exception e) {
-            e.printStackTrace();
+    public boolean saveData(String key, WeatherFormat data) {
+        StorageShard shard = this.shardFor(key);
+        if (!shard.saveData(key, data)) {
+            return false;
+        }
+        this.rollups.add(key, data, System.currentTimeMillis());
+        this.latestStationID = key;
+        if (data.getSource() != null && this.shardFor(data.getSource()) != shard) {
+            try {
+                this.shardFor(data.getSource()).sync();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return false;
+            }
         }
+        return true;
     }
 
     /**
-     * Persists the current weather data to file.
-     * Ensures data durability across server restarts.
+     * Saves a delta PUT merged onto the sender's reading with the Lamport time baseVersion, see
+     * StorageShard.saveDelta. The base is checked under the station's shard lock, so a stale base is
+     * never merged. The sender's timestamp is only saved for a merged delta, a rejected one does not
+     * keep the sender alive, and the sender's shard is flushed so the timestamp is committed too.
+     * @param key The station ID.
+     * @param delta The changed fields, with the Lamport time and sender of the new reading.
+     * @param baseVersion The Lamport time of the reading the delta was made against.
+     * @param receivedAt The time saved as the sender's latest timestamp.
+     * @return The merged reading once it is committed, null if the sender's latest reading is not the base.
+     * @throws IOException If the reading could not be committed.
      */
-    public void saveWeatherData() {
-        try {
-            String jsonWeatherData = JsonHandling.convertJSON(this.weatherData);
-            Files.write(Paths.get(MAIN_DATA_BACKUP), jsonWeatherData.getBytes());
-            Files.move(Paths.get(MAIN_DATA_BACKUP), Paths.get(MAIN_DATA), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-        } catch (Exception e) {
-            // e.printStackTrace();
+    public WeatherFormat saveDelta(String key, WeatherFormat delta, int baseVersion, long receivedAt) throws IOException {
+        WeatherFormat merged = this.shardFor(key).saveDelta(key, delta, baseVersion);
+        if (merged == null) {
+            return null;
+        }
+        this.rollups.add(key, merged, System.currentTimeMillis());
+        this.latestStationID = key;
+        if (merged.getSource() != null) {
+            this.saveTime(merged.getSource(), receivedAt);
+            this.shardFor(merged.getSource()).sync();
         }
+        return merged;
     }
 
     /**
-     * Persists the current sender timestamp data to file.
-     * Helps track the last update time for each content server.
+     * Saves the readings of a batch PUT. Each shard saves its part of the batch with one log commit,
+     * and the sender's shard is flushed once if it holds none of the readings.
+     * @param keys The station ID of each reading.
+     * @param data The readings, in the order they are applied.
+     * @return Whether each reading is committed, a reading fails with the rest of its shard's part.
      */
-    public void saveSenderData() {
-        try {
-            String jsonSenderData = JsonHandling.convertJSON(new ConcurrentHashMap<>(senderTimestamp));
-            Files.write(Paths.get(SENDER_FILE_PATH_BACKUP), jsonSenderData.getBytes());
-            Files.move(Paths.get(SENDER_FILE_PATH_BACKUP), Paths.get(SENDER_FILE_PATH), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-        } catch (Exception e) {
-            // e.printStackTrace();
+    public boolean[] saveBatch(List<String> keys, List<WeatherFormat> data) {
+        boolean[] saved = new boolean[keys.size()];
+        Map<StorageShard, List<Integer>> byShard = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            byShard.computeIfAbsent(this.shardFor(keys.get(i)), s -> new ArrayList<>()).add(i);
+        }
+        Set<String> sources = new HashSet<>();
+        for (Map.Entry<StorageShard, List<Integer>> part : byShard.entrySet()) {
+            List<String> partKeys = new ArrayList<>();
+            List<WeatherFormat> partData = new ArrayList<>();
+            for (int i : part.getValue()) {
+                partKeys.add(keys.get(i));
+                partData.add(data.get(i));
+            }
+            if (!part.getKey().saveBatch(partKeys, partData)) {
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            for (int i : part.getValue()) {
+                saved[i] = true;
+                this.rollups.add(keys.get(i), data.get(i), now);
+                if (data.get(i).getSource() != null) {
+                    sources.add(data.get(i).getSource());
+                }
+            }
+        }
+        for (int i = saved.length - 1; i >= 0; i--) {
+            if (saved[i]) {
+                this.latestStationID = keys.get(i);
+                break;
+            }
         }
+        for (String source : sources) {
+            if (!byShard.containsKey(this.shardFor(source))) {
+                try {
+                    this.shardFor(source).sync();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Arrays.fill(saved, false);
+                }
+            }
+        }
+        return saved;
     }
 
     /**
-     * Updates the last timestamp for a given sender (content server).
+     * Updates the last timestamp for a given sender (content server), in the shard of the sender.
      * Used to track active content servers and manage data expiration.
+     * The timestamp is queued for the write-ahead log without waiting, it is committed with the
+     * reading saved right after it.
      * @param key The identifier for the content server.
      * @param value The timestamp of the last update from this server.
      */
     public void saveTime(String key, long value) {
-        System.out.println("Saving timestampe: " + key + " " + value);
-        this.senderTimestamp.put(key, value);
+        this.shardFor(key).saveTime(key, value);
     }
 
     /**
      * Retrieves all weather data stored in the database.
-     * @return A map of station IDs to their respective weather data lists.
+     * @return A map of station IDs to their respective weather histories, gathered from every shard.
+     */
+    public Map<String, StationHistory> getWeatherData() {
+        if (this.shards.length == 1) {
+            return this.shards[0].getWeatherData();
+        }
+        Map<String, StationHistory> all = new HashMap<>();
+        for (StorageShard shard : this.shards) {
+            all.putAll(shard.getWeatherData());
+        }
+        return all;
+    }
+
+    /**
+     * Sets how much history every station keeps, stations over the new limits drop their oldest readings now.
+     * @param retention The limits by count, age and estimated size.
+     */
+    public void setRetention(StationHistory.Retention retention) {
+        for (StorageShard shard : this.shards) {
+            shard.setRetention(retention);
+        }
+    }
+
+    /**
+     * Estimated memory held by each station's history.
+     * @return Station IDs mapped to their estimated size in bytes.
+     */
+    public Map<String, Long> getStationMemory() {
+        Map<String, Long> memory = new TreeMap<>();
+        for (Map.Entry<String, StationHistory> entry : this.getWeatherData().entrySet()) {
+            memory.put(entry.getKey(), entry.getValue().getEstimatedBytes());
+        }
+        return memory;
+    }
+
+    /**
+     * Startup recovery metrics, summed over the shards that were loaded in parallel.
+     * The peak heap adds up the peaks of each heap pool since loading began, which may have been reached
+     * at different moments, so it is an upper bound of the heap used at once.
+     * @return One line with the records and bytes read, the load time, throughput and peak heap.
+     */
+    public String getLoadStats() {
+        long records = 0;
+        long bytes = 0;
+        for (StorageShard shard : this.shards) {
+            records += shard.getLoadedRecords();
+            bytes += shard.getLoadedBytes();
+        }
+        double seconds = this.loadNanos / 1e9;
+        return String.format("records=%d bytes=%d time=%.2fms records/s=%.0f MB/s=%.2f peakHeap=%.1fMB",
+                records, bytes, this.loadNanos / 1e6, seconds == 0 ? 0 : records / seconds,
+                seconds == 0 ? 0 : bytes / seconds / (1 << 20), this.loadPeakHeap / (double) (1 << 20));
+    }
+
+    /**
+     * Memory use of the stored readings.
+     * @return One line with the station, reading and eviction counts and the estimated bytes held.
      */
-    public Map<String, LinkedList<WeatherFormat>> getWeatherData() {
-        return this.weatherData;
+    public String getMemoryStats() {
+        long readings = 0;
+        long bytes = 0;
+        long evicted = 0;
+        int stations = 0;
+        for (StorageShard shard : this.shards) {
+            for (StationHistory history : shard.getWeatherData().values()) {
+                readings += history.size();
+                bytes += history.getEstimatedBytes();
+                evicted += history.getEvicted();
+                stations++;
+            }
+        }
+        return String.format("stations=%d readings=%d estimatedBytes=%d evicted=%d",
+                stations, readings, bytes, evicted);
     }
 
     /**
@@ -183,68 +415,124 @@ public class DatabaseManagement {
      * @return The timestamp of the last update from the specified sender.
      */
     public Long getSenderTimestamp(String k) {
-        return this.senderTimestamp.get(k);
+        return this.shardFor(k).getSenderTimestamp(k);
     }
 
     /**
      * Retrieves the ID of the most recently updated weather station.
+     * After a restart, until the next save, this is the last station a shard replayed from its log.
      * @return The station ID of the last updated weather data.
      */
     public String getStationID() {
-        return this.latestStationID;
+        if (this.latestStationID != null) {
+            return this.latestStationID;
+        }
+        for (StorageShard shard : this.shards) {
+            if (shard.getStationID() != null) {
+                return shard.getStationID();
+            }
+        }
+        return null;
     }
 
     /**
     * Retrieves weather data for a specific station.
     * @param key The station ID to retrieve data for.
-    * @return A LinkedList of WeatherFormat objects for the specified station.
+    * @return The station's readings, oldest first, or null if none is stored.
     */
-    public LinkedList<WeatherFormat> getWeatherData(String key) {
-        return this.weatherData.get(key);
+    public StationHistory getWeatherData(String key) {
+        return this.shardFor(key).getWeatherData().get(key);
     }
 
     /**
-     * Periodically updates the database by removing expired data.
-     * Removes data from content servers that haven't sent updates within the expiration period.
+     * Count, minimum, maximum and average of the numeric fields of the readings saved in a window, from
+     * the rollups kept as readings are saved, see Rollups. Readings of expired senders are not counted,
+     * and stations that no longer have data are left out.
+     * @param station A station ID, or null for every station.
+     * @param window A span of ingest times or of Lamport times.
+     * @return The aggregates of each station with readings in the window.
      */
-    public void updateData(){
-        try {
-            System.out.println("Updating data, will remove data...");
-            long currtime = System.currentTimeMillis();
-            ArrayList<String> sendersInvalid = new ArrayList<>();
-            for (String key : this.senderTimestamp.keySet()) {
-                long lastTime = this.senderTimestamp.get(key);
-                if (currtime - lastTime > EXPIRE_SAVE) {
-                    this.senderTimestamp.remove(key);
-                    sendersInvalid.add(key);
-                }
-            }
+    public Map<String, Rollups.Aggregate> aggregate(String station, Rollups.Window window) {
+        return this.rollups.query(station, window, key -> {
+            StationHistory history = this.getWeatherData(key);
+            return history != null && !history.isEmpty();
+        });
+    }
 
-            for (String stationID :this.weatherData.keySet()) {
-                LinkedList<WeatherFormat> data = this.weatherData.get(stationID);
-                data.removeIf(d -> sendersInvalid.contains(d.getSource()));
-                if (data.isEmpty()) {
-                    this.weatherData.remove(stationID);
-                    
-                }
-            }
-            this.saveWeatherData();
-            this.saveSenderData();
-        } catch (Exception e) {
-           throw new RuntimeException("Error updating data: " + e.getMessage());
+    /**
+     * Removes the data of content servers that haven't sent updates within the expiration period.
+     * Each shard runs this on its own when the earliest deadline of its senders is due, calling it
+     * expires whatever is due in every shard now.
+     */
+    public void updateData() {
+        for (StorageShard shard : this.shards) {
+            shard.updateData();
+        }
+    }
+
+    /**
+     * Drops an expired sender's readings from every shard, each under its own lock, and from the rollups.
+     * @param source The sender.
+     * @param expiredAt The time the sender was found expired.
+     */
+    private void expireSender(String source, long expiredAt) {
+        for (StorageShard shard : this.shards) {
+            shard.expireReadings(source, expiredAt);
+        }
+        this.rollups.removeSource(source);
+    }
+
+    /**
+     * Drops readings older than the retention's age limit, when one is set.
+     */
+    public void evictAged() {
+        for (StorageShard shard : this.shards) {
+            shard.evictAged();
         }
     }
 
     /**
-     * Clears all data from the database.
+     * Writes a snapshot of every shard that changed since its last one, the shards in parallel.
+     * @return true if any snapshot was written.
+     */
+    public boolean checkpoint() {
+        List<Callable<Boolean>> checkpoints = new ArrayList<>();
+        for (StorageShard shard : this.shards) {
+            checkpoints.add(shard::checkpoint);
+        }
+        return this.runOnShards(checkpoints);
+    }
+
+    /**
+     * Size of the write-ahead logs, or mapped segments, on disk.
+     * @return The bytes logged since the last checkpoint of each shard, or stored since its last compaction.
+     */
+    public long getLogSize() {
+        long size = 0;
+        for (StorageShard shard : this.shards) {
+            size += shard.getLogSize();
+        }
+        return size;
+    }
+
+    /**
+     * Clears all data from the database, including the write-ahead logs.
      * Used for resetting the database or in testing scenarios.
      */
     public void clear(){
-        try {
-            this.weatherData.clear();
-            this.senderTimestamp.clear();
-        } catch (Exception e) {
-            e.printStackTrace();
+        for (StorageShard shard : this.shards) {
+            shard.clear();
+        }
+        this.rollups.clear();
+    }
+
+    /**
+     * Stops the maintenance of every shard and closes their logs. Only used for instances that are not the singleton.
+     */
+    void close() {
+        this.updateDataSchedule.shutdownNow();
+        for (StorageShard shard : this.shards) {
+            shard.close();
         }
     }
 }
@@ -2,12 +2,20 @@ import static org.junit.Assert.assertNull;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -15,6 +23,9 @@ import java.nio.file.Paths;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonObject;
 
 public class DatabaseManagement_Test {
     private DatabaseManagement db;
@@ -68,7 +79,7 @@ public class DatabaseManagement_Test {
         WeatherFormat data = new WeatherFormat(1, "1", null);
 
         db.saveData(key, data);
-        LinkedList<WeatherFormat> getData = db.getWeatherData(key);
+        StationHistory getData = db.getWeatherData(key);
 
         assertNotNull(getData);
         assertFalse(getData.isEmpty());
@@ -86,4 +97,266 @@ public class DatabaseManagement_Test {
         assertNotNull(t);
         assertEquals(timestamp, t);
     }
+
+    @Test
+    public void testSaveAppendsToLog() {
+        db.clear();
+
+        db.saveTime("test2", System.currentTimeMillis());
+        db.saveData("TestStation2", new WeatherFormat(2, "test2", null));
+
+        // each save appends a record instead of rewriting the data files
+        assertTrue(db.getLogSize() > 0);
+        db.clear();
+        assertEquals(0, db.getLogSize());
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        db.saveTime("test3", System.currentTimeMillis());
+        db.saveData("TestStation3", new WeatherFormat(3, "test3", null));
+        // the background checkpointer may have taken this one already
+        db.checkpoint();
+
+        assertEquals(0, db.getLogSize(), "Segments covered by the snapshot should be dropped");
+        assertTrue(new String(Files.readAllBytes(Paths.get(DATA_DIR, "data.json"))).contains("TestStation3"));
+        assertFalse(db.checkpoint(), "Nothing changed, no snapshot should be written");
+    }
+
+    @Test
+    public void testHighestLamportFollowsExpiry() {
+        db.clear();
+        long now = System.currentTimeMillis();
+        db.saveTime("fresh", now);
+        db.saveData("TestStation4", new WeatherFormat(5, "fresh", null));
+        db.saveTime("stale", now);
+        db.saveData("TestStation5", new WeatherFormat(9, "stale", null));
+        assertEquals(9, db.getHighestLamportClock());
+
+        // the reading holding the highest time expires, the next highest takes over
+        db.saveTime("stale", now - 60000);
+        db.updateData();
+        assertNull(db.getWeatherData("TestStation5"));
+        assertEquals(5, db.getHighestLamportClock());
+
+        db.clear();
+        assertEquals(0, db.getHighestLamportClock());
+    }
+
+    @Test
+    public void testExpiredSenderLeavesTheAggregates() {
+        db.clear();
+        long now = System.currentTimeMillis();
+        db.saveTime("fresh", now);
+        db.saveTime("stale", now);
+        for (int i = 0; i < 4; i++) {
+            JsonObject data = new JsonObject();
+            data.addProperty("air_temp", i % 2 == 0 ? 10 + i : 40 + i);
+            db.saveData("TestStation7", new WeatherFormat(i + 1, i % 2 == 0 ? "fresh" : "stale", data));
+        }
+        Rollups.Window window = Rollups.Window.byTime(now - 60000, now + 60000);
+        assertEquals(4, db.aggregate("TestStation7", window).get("TestStation7").getCount("air_temp"));
+
+        // the station still has the fresh sender's readings, only the stale sender's leave its aggregates
+        db.saveTime("stale", now - 60000);
+        db.updateData();
+        Rollups.Aggregate left = db.aggregate("TestStation7", window).get("TestStation7");
+        assertEquals(2, left.getCount("air_temp"));
+        assertEquals(12, left.getMax("air_temp"));
+        assertEquals(2, Rollups.combine(db.aggregate(null, window).values()).getCount("air_temp"));
+        db.clear();
+    }
+
+    @Test
+    public void testExpiryRunsAtDeadline() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        // due in about 300 ms, well before any fixed sweep would come round
+        db.saveTime("leaving", now - 30000 + 300);
+        db.saveData("TestStation6", new WeatherFormat(6, "leaving", null));
+        db.saveTime("staying", now);
+        db.saveData("TestStation6", new WeatherFormat(7, "staying", null));
+
+        Thread.sleep(1500);
+        assertNull(db.getSenderTimestamp("leaving"));
+        StationHistory left = db.getWeatherData("TestStation6");
+        assertEquals(1, left.size(), "Only the expired sender's reading should be removed");
+        assertEquals("staying", left.peek().getSource());
+    }
+
+    @Test
+    void testShards(@TempDir Path tempDir) throws InterruptedException {
+        DatabaseManagement sharded = new DatabaseManagement(4, tempDir.toString(), StorageShard.Backend.JSON);
+        long now = System.currentTimeMillis();
+        sharded.saveTime("leaving", now - 30000 + 300);
+        sharded.saveTime("staying", now);
+        for (int i = 0; i < 20; i++) {
+            sharded.saveData("Station" + i, new WeatherFormat(i + 1, i % 2 == 0 ? "leaving" : "staying", null));
+        }
+        assertEquals(4, sharded.getShardCount());
+        assertEquals(20, sharded.getHighestLamportClock());
+        assertEquals(20, sharded.getWeatherData().size());
+        assertTrue(sharded.checkpoint());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(Files.exists(tempDir.resolve("shard-" + i).resolve("data.json")));
+        }
+
+        // the sender's timestamp is in one shard, its readings are dropped from all of them
+        Thread.sleep(1500);
+        assertNull(sharded.getSenderTimestamp("leaving"));
+        assertEquals(10, sharded.getWeatherData().size());
+        assertNull(sharded.getWeatherData("Station0"));
+        assertEquals(20, sharded.getHighestLamportClock());
+        sharded.saveData("Station21", new WeatherFormat(21, "staying", null));
+        sharded.close();
+
+        // the snapshots and the log written after them are recovered shard by shard
+        DatabaseManagement reopened = new DatabaseManagement(4, tempDir.toString(), StorageShard.Backend.JSON);
+        // the expiry that was not checkpointed is redone once every shard is loaded
+        Thread.sleep(500);
+        assertEquals(11, reopened.getWeatherData().size());
+        assertEquals(21, reopened.getHighestLamportClock());
+        assertEquals(Long.valueOf(now), reopened.getSenderTimestamp("staying"));
+        reopened.close();
+    }
+
+    @Test
+    void testInitializeKeepsItsSettings() {
+        DatabaseManagement instance = DatabaseManagement.initialize();
+        assertSame(instance, DatabaseManagement.initialize(instance.getShardCount(), instance.getBackend()));
+        assertThrows(IllegalStateException.class,
+                () -> DatabaseManagement.initialize(instance.getShardCount() + 3, instance.getBackend()),
+                "Another shard count must not be ignored");
+        StorageShard.Backend other = instance.getBackend() == StorageShard.Backend.JSON
+                ? StorageShard.Backend.MAPPED : StorageShard.Backend.JSON;
+        assertThrows(IllegalStateException.class, () -> DatabaseManagement.initialize(instance.getShardCount(), other));
+    }
+
+    @Test
+    void testSaveBatch(@TempDir Path tempDir) {
+        DatabaseManagement batched = new DatabaseManagement(1, tempDir.toString(), StorageShard.Backend.JSON);
+        batched.saveTime("batching", System.currentTimeMillis());
+        List<String> keys = new ArrayList<>();
+        List<WeatherFormat> readings = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            keys.add("Station" + (i % 5));
+            readings.add(new WeatherFormat(i + 1, "batching", null));
+        }
+        boolean[] saved = batched.saveBatch(keys, readings);
+        for (boolean one : saved) {
+            assertTrue(one);
+        }
+        String stats = batched.getCommitStats();
+        int maxBatch = Integer.parseInt(stats.split("maxBatch=")[1].split(" ")[0]);
+        assertTrue(maxBatch >= 50, "The readings should be committed together: " + stats);
+        assertEquals(50, batched.getHighestLamportClock());
+        assertEquals("Station4", batched.getStationID());
+        batched.close();
+
+        DatabaseManagement reopened = new DatabaseManagement(1, tempDir.toString(), StorageShard.Backend.JSON);
+        assertEquals(10, reopened.getWeatherData("Station3").size());
+        assertEquals(50, reopened.getHighestLamportClock());
+        reopened.close();
+    }
+
+    @Test
+    void testSaveDeltaChecksTheBase(@TempDir Path tempDir) throws Exception {
+        for (StorageShard.Backend backend : StorageShard.Backend.values()) {
+            Path directory = tempDir.resolve(backend.name());
+            DatabaseManagement deltas = new DatabaseManagement(1, directory.toString(), backend);
+            JsonObject full = new JsonObject();
+            full.addProperty("name", "Adelaide");
+            full.addProperty("air_temp", "13.3");
+            assertTrue(deltas.saveData("Station", new WeatherFormat(3, "delta", full)));
+
+            // deltas against the same base race, only one of them is merged
+            long now = System.currentTimeMillis();
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<WeatherFormat>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                JsonObject delta = new JsonObject();
+                delta.addProperty("air_temp", String.valueOf(20 + i));
+                WeatherFormat reading = new WeatherFormat(4 + i, "delta", delta);
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return deltas.saveDelta("Station", reading, 3, now + reading.getLamport());
+                }));
+            }
+            start.countDown();
+            int merged = 0;
+            for (Future<WeatherFormat> result : results) {
+                if (result.get() != null) {
+                    merged++;
+                    assertEquals("Adelaide", result.get().getData().get("name").getAsString());
+                }
+            }
+            pool.shutdown();
+            assertEquals(1, merged);
+            assertEquals(2, deltas.getWeatherData("Station").size());
+            long mergedAt = deltas.getSenderTimestamp("delta");
+            assertTrue(mergedAt > now, "The merged delta saves the sender's timestamp");
+            // a rejected delta does not touch the sender's timestamp
+            assertNull(deltas.saveDelta("Missing", new WeatherFormat(20, "delta", new JsonObject()), 3, now + 5000));
+            assertNull(deltas.saveDelta("Station", new WeatherFormat(21, "stale", new JsonObject()), 3, now + 5000));
+            assertEquals(mergedAt, deltas.getSenderTimestamp("delta"));
+            assertNull(deltas.getSenderTimestamp("stale"));
+            deltas.close();
+
+            DatabaseManagement reopened = new DatabaseManagement(1, directory.toString(), backend);
+            assertEquals(2, reopened.getWeatherData("Station").size());
+            assertEquals("Adelaide", reopened.getWeatherData("Station").latestFrom("delta").getData().get("name").getAsString());
+            reopened.close();
+        }
+    }
+
+    @Test
+    void testMappedBackend(@TempDir Path tempDir) throws InterruptedException {
+        DatabaseManagement mapped = new DatabaseManagement(2, tempDir.toString(), StorageShard.Backend.MAPPED);
+        long now = System.currentTimeMillis();
+        JsonObject data = new JsonObject();
+        data.addProperty("air_temp", "13.3");
+        mapped.saveTime("leaving", now - 30000 + 300);
+        mapped.saveData("TestStation7", new WeatherFormat(7, "leaving", data));
+        mapped.saveTime("staying", now);
+        mapped.saveData("TestStation8", new WeatherFormat(8, "staying", data));
+        assertEquals("13.3", mapped.getWeatherData("TestStation8").peek().getData().get("air_temp").getAsString());
+        Thread.sleep(1500);
+        assertNull(mapped.getWeatherData("TestStation7"));
+        mapped.close();
+
+        // the segments are mapped again, the expiry is stored with them
+        DatabaseManagement reopened = new DatabaseManagement(2, tempDir.toString(), StorageShard.Backend.MAPPED);
+        assertNull(reopened.getWeatherData("TestStation7"));
+        StationHistory kept = reopened.getWeatherData("TestStation8");
+        assertTrue(kept.peek() instanceof MappedSegmentStore.Reading);
+        assertEquals("13.3", kept.peek().getData().get("air_temp").getAsString());
+        assertEquals(8, reopened.getHighestLamportClock());
+        assertEquals(Long.valueOf(now), reopened.getSenderTimestamp("staying"));
+        reopened.close();
+    }
+
+    @Test
+    void testMappedCompaction(@TempDir Path tempDir) {
+        DatabaseManagement mapped = new DatabaseManagement(1, tempDir.toString(), StorageShard.Backend.MAPPED);
+        mapped.setSyncPolicy(WriteAheadLog.SyncPolicy.OS, 0);
+        mapped.setRetention(new StationHistory.Retention(5, 0, 0));
+        mapped.saveTime("compacting", System.currentTimeMillis());
+        JsonObject data = new JsonObject();
+        data.addProperty("name", "Adelaide (West Terrace /  ngayirdapira)");
+        for (int i = 1; i <= 12000; i++) {
+            mapped.saveData("TestStation9", new WeatherFormat(i, "compacting", data));
+        }
+        long before = mapped.getLogSize();
+        assertTrue(mapped.checkpoint(), "Mostly dropped readings, the segments should be compacted");
+        assertTrue(mapped.getLogSize() < before / 100);
+        assertFalse(mapped.checkpoint(), "Nothing changed since the compaction");
+        mapped.close();
+
+        DatabaseManagement reopened = new DatabaseManagement(1, tempDir.toString(), StorageShard.Backend.MAPPED);
+        reopened.setRetention(new StationHistory.Retention(5, 0, 0));
+        assertEquals(5, reopened.getWeatherData("TestStation9").size());
+        assertEquals(12000, reopened.getHighestLamportClock());
+        assertEquals(11996, reopened.getWeatherData("TestStation9").peek().getLamport());
+        reopened.close();
+    }
 }
@@ -1,16 +1,36 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 public class GETClient {
     private SocketServer server;
     private String clientId;
     private Lamport clock;
+    private boolean singleRoundTrip;
+    // whether the clock has been set from a server clock, a greeting or a response
+    private boolean synced;
 
     public GETClient(SocketServer server){
+        this(server, false);
+    }
+
+    /**
+     * @param server The socket handler used to reach the aggregation server.
+     * @param singleRoundTrip When true the GET is sent without waiting for the Lamport greeting,
+     *                        and the clock is synchronised from the response header instead.
+     *                        A socket handler with keep-alive only waits for the greeting when it opens
+     *                        a new connection, and sends directly on the reused one.
+     */
+    public GETClient(SocketServer server, boolean singleRoundTrip){
         this.server = server;
         this.clock = new Lamport();
         this.clientId = UUID.randomUUID().toString();
+        this.singleRoundTrip = singleRoundTrip;
     }
 
     /**
@@ -22,18 +42,77 @@ public class GETClient {
      * @return A JsonObject containing the weather data, or null if the request failed.
      */
     public JsonObject sendRequest(String serverName, int port, String stationID) {
-        JsonObject response = null;
+        String res = this.exchange(serverName, port, stationID != null ? "StationID: " + stationID + "\r\n" : "");
+        if (res == null) {
+            return null;
+        }
+        try {
+            return JsonHandling.parseJSONObject(JsonHandling.extractJSONContent(res));
+        } catch (JsonParseException e) {
+            System.out.println("Error parsing the server's JSON response: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Asks for the latest reading of several stations in one request, all looked up by the server
+     * at the client's current Lamport time.
+     * @param serverName The hostname of the aggregation server.
+     * @param port The port number of the aggregation server.
+     * @param stationIDs The IDs of the weather stations to query, null or empty for every station.
+     * @return The readings found, in the order asked for, or null if the request failed or none was found.
+     */
+    public List<JsonObject> sendBatchRequest(String serverName, int port, List<String> stationIDs) {
+        String stations = stationIDs == null || stationIDs.isEmpty() ? "*" : String.join(",", stationIDs);
+        String res = this.exchange(serverName, port, "StationIDs: " + stations + "\r\n");
+        if (res == null) {
+            return null;
+        }
+        try {
+            int body = res.indexOf("\r\n\r\n");
+            List<JsonObject> readings = new ArrayList<>();
+            for (JsonElement reading : JsonParser.parseString(res.substring(body + 4)).getAsJsonArray()) {
+                readings.add(reading.getAsJsonObject());
+            }
+            return readings;
+        } catch (JsonParseException | IllegalStateException e) {
+            System.out.println("Error parsing the server's JSON response: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Sends a GET with the given headers, retrying when the server cannot be reached.
+     * @param serverName The hostname of the aggregation server.
+     * @param port The port number of the aggregation server.
+     * @param stationHeaders Header lines that select the stations, each ending with CRLF.
+     * @return The response, or null if there was none or it had no content.
+     */
+    private String exchange(String serverName, int port, String stationHeaders) {
         int retry = 0;
         while (retry < 3) {
             try {
-                int getLamportServer = server.initializeSocketandGetLamport(serverName, port);
-                this.clock.adjust(getLamportServer);
+                // a kept-alive connection already synced the clock from its greeting when it was opened
+                boolean direct = this.singleRoundTrip
+                        || (this.server.isKeepAlive() && this.server.isConnectedTo(serverName, port));
+                if (direct) {
+                    this.clock.tick();
+                } else {
+                    int getLamportServer = server.initializeSocketandGetLamport(serverName, port);
+                    this.clock.adjust(getLamportServer);
+                    this.synced = true;
+                }
                 String getRequest = "GET /data.json HTTP/1.1\r\n" +
                                     "LamportClock: " + this.clock.getTime() + "\r\n" +
+                                    // the server reads at its own clock
+                                    (this.synced ? "" : "LamportSynced: false\r\n") +
                                     "Source: " + this.clientId + "\r\n" +
-                                    (stationID != null ? "StationID: " + stationID + "\r\n" : "") +
+                                    stationHeaders +
+                                    (this.server.isKeepAlive() ? "Connection: keep-alive\r\n" : "") +
                                     "\r\n";
-                String res = this.server.requestAndGetData(serverName, port, getRequest, false);
+                String res = direct || this.server.isKeepAlive()
+                        ? this.server.sendRequest(serverName, port, getRequest, false)
+                        : this.server.requestAndGetData(serverName, port, getRequest, false);
                 System.out.println(res);
                 if (res == null) {
                     System.out.println("Error: No response received from the server.");
@@ -43,6 +122,13 @@ public class GETClient {
     
                 String[] responseLines = res.split("\r\n");
                 String statusLine = responseLines.length > 0 ? responseLines[0] : "";
+                for (String line : responseLines) {
+                    if (line.startsWith("Lamport: ")) {
+                        this.clock.adjust(Integer.parseInt(line.split(": ")[1].trim()));
+                        this.synced = true;
+                        break;
+                    }
+                }
     
                 switch (statusLine) {
                     case "HTTP/1.1 204 No Content":
@@ -56,12 +142,7 @@ public class GETClient {
                     default:
                         break;
                 }
-    
-                response = JsonHandling.parseJSONObject(JsonHandling.extractJSONContent(res));
-                return response;
-            } catch (JsonParseException e) {
-                System.out.println("Error parsing the server's JSON response: " + e.getMessage());
-                return null;
+                return res;
             } catch(Exception e) {
                 if (++retry < 3) {
                     System.out.println("Retrying request to server...");
@@ -110,16 +191,42 @@ public class GETClient {
     }
     
     public static void main(String[] args) {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean singleRoundTrip = arguments.remove("--single-rtt");
+        boolean keepAlive = arguments.remove("--keep-alive");
         String stationID = null;
-        if (args.length == 2) {
-            stationID = args[1];
+        if (arguments.size() == 2) {
+            stationID = arguments.get(1);
         }
-        String[] serverInfo = getServerInfo(args[0]);
+        String[] serverInfo = getServerInfo(arguments.get(0));
         String serverName = serverInfo[0];
         int port = Integer.parseInt(serverInfo[1]);
-        SocketServer socketServer = new SocketServer();
-        GETClient client = new GETClient(socketServer);
+        SocketServer socketServer = new SocketServer(keepAlive);
+        GETClient client = new GETClient(socketServer, singleRoundTrip);
         System.out.println("Connecting: " + serverName + ":" + port);
+        // several stations, a comma separated list or * are fetched in one batch request
+        if (arguments.size() > 2 || (stationID != null && (stationID.contains(",") || stationID.equals("*")))) {
+            List<String> stationIDs = new ArrayList<>();
+            for (String argument : arguments.subList(1, arguments.size())) {
+                for (String id : argument.split(",")) {
+                    if (!id.isEmpty() && !id.equals("*")) {
+                        stationIDs.add(id);
+                    }
+                }
+            }
+            List<JsonObject> readings = client.sendBatchRequest(serverName, port, stationIDs);
+            if (readings != null) {
+                try {
+                    for (JsonObject reading : readings) {
+                        System.out.println();
+                        System.out.println(JsonHandling.convertJSONToText(reading));
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException("Error while converting JSON to text.", e);
+                }
+            }
+            return;
+        }
         JsonObject response = client.sendRequest(serverName, port, stationID);
         if (response != null) {
             try {
@@ -1,6 +1,8 @@
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
+import java.util.List;
+
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -41,6 +43,24 @@ class GETClient_Test {
         assertEquals(23.5, response.get("air_temp").getAsDouble(), 0.001);
     }
 
+    @Test
+    void testSendRequestSingleRoundTrip() {
+        GETClient singleRttClient = new GETClient(mockSocket, true);
+        String mockResponse = "HTTP/1.1 200 OK\r\n" +
+                              "Lamport: 7\r\n" +
+                              "Content-Type: application/json\r\n" +
+                              "\r\n" +
+                              "{\"id\":\"IDS60901\",\"name\":\"Test Station\",\"air_temp\":23.5}";
+        mockSocket.setPreparedResponse(mockResponse);
+
+        JsonObject response = singleRttClient.sendRequest("localhost", 4567, "IDS60901");
+
+        assertEquals(1, mockSocket.getRequestCount(), "No separate Lamport handshake should be made");
+        assertTrue(mockSocket.getLastRequest().startsWith("GET /data.json HTTP/1.1\r\n"));
+        assertNotNull(response);
+        assertEquals("IDS60901", response.get("id").getAsString());
+    }
+
     @Test
     void testSendRequestNoContent() {
         // Prepare mock response
@@ -67,6 +87,28 @@ class GETClient_Test {
         assertNull(response);
     }
 
+    @Test
+    void testSendBatchRequest() {
+        String mockResponse = "HTTP/1.1 200 OK\r\n" +
+                              "Lamport: 9\r\n" +
+                              "Content-Type: application/json\r\n" +
+                              "\r\n" +
+                              "[{\"id\":\"IDS60901\",\"air_temp\":23.5},{\"id\":\"IDS60902\",\"air_temp\":11}]";
+        mockSocket.setPreparedResponse(mockResponse);
+
+        List<JsonObject> readings = client.sendBatchRequest("localhost", 4567, List.of("IDS60901", "IDS60902", "IDS60903"));
+
+        assertTrue(mockSocket.getLastRequest().contains("StationIDs: IDS60901,IDS60902,IDS60903\r\n"));
+        assertFalse(mockSocket.getLastRequest().contains("StationID: "));
+        assertNotNull(readings);
+        assertEquals(2, readings.size());
+        assertEquals("IDS60902", readings.get(1).get("id").getAsString());
+
+        mockSocket.setPreparedResponse("HTTP/1.1 204 No Content\r\n\r\n");
+        assertNull(client.sendBatchRequest("localhost", 4567, null));
+        assertTrue(mockSocket.getLastRequest().contains("StationIDs: *\r\n"));
+    }
+
     @Test
     void testGetServerInfo() {
         String[] result = GETClient.getServerInfo("http://example.com:8080");
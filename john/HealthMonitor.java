@@ -0,0 +1,140 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background health checker for the AggregationServer replicas.
+ * Each replica is probed on its own schedule with AggregationServer.isUp(), and the result is kept
+ * as a cached up/down view so MainAggregationServer can pick a replica without opening a socket
+ * on the request path.
+ */
+public class HealthMonitor {
+    public static final long DEFAULT_INTERVAL = 1000; // 1 second
+    public static final int DEFAULT_FAILURE_THRESHOLD = 2;
+    public static final int DEFAULT_RECOVERY_THRESHOLD = 1;
+
+    /**
+     * Cached health of one replica, written by its probe and read by the request path.
+     */
+    private static class ReplicaHealth {
+        private volatile boolean up = true;
+        private volatile long lastProbe;
+        private int consecutiveFailures;
+        private int consecutiveSuccesses;
+    }
+
+    private final List<AggregationServer> servers;
+    private final long interval;
+    private final int failureThreshold;
+    private final int recoveryThreshold;
+    private final Map<AggregationServer, ReplicaHealth> health = new ConcurrentHashMap<>();
+    private ScheduledExecutorService probeSchedule;
+
+    public HealthMonitor(List<AggregationServer> servers) {
+        this(servers, DEFAULT_INTERVAL, DEFAULT_FAILURE_THRESHOLD, DEFAULT_RECOVERY_THRESHOLD);
+    }
+
+    /**
+     * @param servers The replicas to watch.
+     * @param interval Delay in milliseconds between two probes of the same replica.
+     * @param failureThreshold Consecutive failed probes before a replica is marked down.
+     * @param recoveryThreshold Consecutive successful probes before a down replica is marked up again.
+     */
+    public HealthMonitor(List<AggregationServer> servers, long interval, int failureThreshold, int recoveryThreshold) {
+        this.servers = servers;
+        this.interval = Math.max(1, interval);
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.recoveryThreshold = Math.max(1, recoveryThreshold);
+    }
+
+    /**
+     * Starts probing every replica in the background.
+     * Replicas are considered up until their probes say otherwise.
+     */
+    public void start() {
+        this.stop();
+        // one thread per replica so a probe waiting on its connect timeout does not delay the others
+        this.probeSchedule = Executors.newScheduledThreadPool(Math.max(1, this.servers.size()), r -> {
+            Thread t = new Thread(r, "health-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        for (AggregationServer server : this.servers) {
+            this.probeSchedule.scheduleWithFixedDelay(() -> this.probe(server), 0, this.interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background probes.
+     */
+    public void stop() {
+        if (this.probeSchedule != null) {
+            this.probeSchedule.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the cached view of a replica, never blocks.
+     * A replica stopped in this process is reported down straight away without waiting for a probe.
+     * @param server The replica to check.
+     * @return true if the replica is considered up.
+     */
+    public boolean isUp(AggregationServer server) {
+        return !server.isStopped() && this.state(server).up;
+    }
+
+    /**
+     * Marks a replica down right away, used when a request to it failed.
+     * It comes back once enough probes succeed.
+     * @param server The replica that failed.
+     */
+    public void reportFailure(AggregationServer server) {
+        ReplicaHealth state = this.state(server);
+        synchronized (state) {
+            state.consecutiveSuccesses = 0;
+            state.consecutiveFailures = this.failureThreshold;
+            state.up = false;
+        }
+    }
+
+    /**
+     * Time of the last probe of a replica.
+     * @param server The replica to check.
+     * @return The probe time in milliseconds, 0 if it has not been probed yet.
+     */
+    public long getLastProbe(AggregationServer server) {
+        return this.state(server).lastProbe;
+    }
+
+    /**
+     * Probes a replica once and updates its cached state.
+     * @param server The replica to probe.
+     */
+    public void probe(AggregationServer server) {
+        boolean reachable = server.isUp();
+        ReplicaHealth state = this.state(server);
+        synchronized (state) {
+            state.lastProbe = System.currentTimeMillis();
+            if (reachable) {
+                state.consecutiveFailures = 0;
+                if (!state.up && ++state.consecutiveSuccesses >= this.recoveryThreshold) {
+                    state.up = true;
+                    System.out.println("Replica on port " + server.getPort() + " is up");
+                }
+            } else {
+                state.consecutiveSuccesses = 0;
+                if (state.up && ++state.consecutiveFailures >= this.failureThreshold) {
+                    state.up = false;
+                    System.out.println("Replica on port " + server.getPort() + " is down");
+                }
+            }
+        }
+    }
+
+    private ReplicaHealth state(AggregationServer server) {
+        return this.health.computeIfAbsent(server, s -> new ReplicaHealth());
+    }
+}
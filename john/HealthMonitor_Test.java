@@ -0,0 +1,48 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class HealthMonitor_Test {
+
+    @Test
+    void testMarkedDownAfterFailureThreshold() {
+        // never started, so every probe fails to connect
+        AggregationServer server = new AggregationServer(new MockSocketServer());
+        List<AggregationServer> servers = new ArrayList<>();
+        servers.add(server);
+        HealthMonitor monitor = new HealthMonitor(servers, 1000, 2, 1);
+
+        assertTrue(monitor.isUp(server), "Replica should be considered up before any probe");
+        monitor.probe(server);
+        assertTrue(monitor.isUp(server), "One failed probe is below the threshold");
+        monitor.probe(server);
+        assertFalse(monitor.isUp(server), "Replica should be down after two failed probes");
+        assertTrue(monitor.getLastProbe(server) > 0);
+    }
+
+    @Test
+    void testRecoveryAndReportedFailure() throws InterruptedException {
+        AggregationServer server = new AggregationServer(new MockSocketServer());
+        List<AggregationServer> servers = new ArrayList<>();
+        servers.add(server);
+        HealthMonitor monitor = new HealthMonitor(servers, 1000, 1, 1);
+
+        int port = 4590;
+        new Thread(() -> server.start(port)).start();
+        Thread.sleep(500);
+        try {
+            monitor.reportFailure(server);
+            assertFalse(monitor.isUp(server), "A reported failure should mark the replica down at once");
+            monitor.probe(server);
+            assertTrue(monitor.isUp(server), "A successful probe should bring the replica back");
+
+            server.stop();
+            assertFalse(monitor.isUp(server), "A stopped replica should be down without a probe");
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Byte level parser for the requests sent by ContentServer and GETClient.
+ * The request line, headers and body are found in one pass over the bytes, and Content-Length is
+ * counted in bytes so non-ASCII bodies are read exactly. A parser keeps its buffer and header table
+ * between requests, so reading a request allocates little more than the HttpRequest itself.
+ * A parser is not thread-safe, SocketServer keeps one per thread.
+ */
+public class HttpParser {
+    private static final int INITIAL_BUFFER = 2048;
+    private static final int INITIAL_HEADERS = 16;
+    public static final int MAX_REQUEST = 1 << 20; // 1 MB
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER);
+    private int[] headerOffsets = new int[INITIAL_HEADERS * 4];
+    private int consumed;
+
+    /**
+     * Drops whatever is left from the previous connection.
+     */
+    public void reset() {
+        this.buffer.clear();
+        this.consumed = 0;
+    }
+
+    /**
+     * Reads the next request from a stream.
+     * Bytes received after the end of the request are kept for the next call on the same stream.
+     * The returned request points into this parser's buffer and is valid until the next call.
+     * @param in The stream to read from.
+     * @return The request, or null if the stream ended before any byte of a new request.
+     * @throws IOException If reading fails, the stream ends in the middle of a request, or the request is malformed.
+     */
+    public HttpRequest read(InputStream in) throws IOException {
+        this.compact();
+        while (true) {
+            HttpRequest request = this.parse(this.buffer.array(), 0, this.buffer.position());
+            if (request != null) {
+                this.consumed = request.getEnd();
+                return request;
+            }
+            if (!this.buffer.hasRemaining()) {
+                this.grow();
+            }
+            int read = in.read(this.buffer.array(), this.buffer.position(), this.buffer.remaining());
+            if (read == -1) {
+                if (onlyLineBreaks(this.buffer.array(), 0, this.buffer.position())) {
+                    return null;
+                }
+                throw new EOFException("Connection closed in the middle of a request");
+            }
+            this.buffer.position(this.buffer.position() + read);
+        }
+    }
+
+    /**
+     * Parses a request from a byte range.
+     * @param bytes The bytes to parse.
+     * @param offset Where the request starts.
+     * @param limit End of the received bytes.
+     * @return The request pointing into bytes, or null if the range does not hold a full request yet.
+     * @throws IOException If the request is malformed.
+     */
+    public HttpRequest parse(byte[] bytes, int offset, int limit) throws IOException {
+        return this.parse(bytes, offset, limit, false);
+    }
+
+    /**
+     * @param untilLimit When true the body is everything up to limit, whatever Content-Length says.
+     */
+    private HttpRequest parse(byte[] bytes, int offset, int limit, boolean untilLimit) throws IOException {
+        // line breaks left after the previous request, println adds one after the body
+        while (offset < limit && (bytes[offset] == '\r' || bytes[offset] == '\n')) {
+            offset++;
+        }
+        int lineEnd = indexOfLineEnd(bytes, offset, limit);
+        if (lineEnd < 0) {
+            return this.checkSize(offset, limit);
+        }
+        int methodEnd = indexOf(bytes, (byte) ' ', offset, lineEnd);
+        if (methodEnd <= offset) {
+            throw new IOException("Malformed request line");
+        }
+        int pathEnd = indexOf(bytes, (byte) ' ', methodEnd + 1, lineEnd);
+        if (pathEnd < 0) {
+            pathEnd = lineEnd;
+        }
+
+        int headerCount = 0;
+        int contentLength = 0;
+        int position = nextLine(bytes, lineEnd);
+        while (true) {
+            int end = indexOfLineEnd(bytes, position, limit);
+            if (end < 0) {
+                return this.checkSize(offset, limit);
+            }
+            if (end == position) {
+                position = nextLine(bytes, end);
+                break;
+            }
+            int colon = indexOf(bytes, (byte) ':', position, end);
+            if (colon < 0) {
+                throw new IOException("Malformed header");
+            }
+            int valueStart = skipSpaces(bytes, colon + 1, end);
+            int valueEnd = end;
+            while (valueEnd > valueStart && bytes[valueEnd - 1] == ' ') {
+                valueEnd--;
+            }
+            if (this.headerOffsets.length < (headerCount + 1) * 4) {
+                this.headerOffsets = Arrays.copyOf(this.headerOffsets, this.headerOffsets.length * 2);
+            }
+            int slot = headerCount * 4;
+            this.headerOffsets[slot] = position;
+            this.headerOffsets[slot + 1] = colon;
+            this.headerOffsets[slot + 2] = valueStart;
+            this.headerOffsets[slot + 3] = valueEnd;
+            headerCount++;
+            if (isContentLength(bytes, position, colon)) {
+                contentLength = parseLength(bytes, valueStart, valueEnd);
+            }
+            position = nextLine(bytes, end);
+        }
+
+        if (untilLimit) {
+            contentLength = limit - position;
+        }
+        int requestEnd = position + contentLength;
+        if (requestEnd - offset > MAX_REQUEST) {
+            throw new IOException("Request larger than " + MAX_REQUEST + " bytes");
+        }
+        if (requestEnd > limit) {
+            return null;
+        }
+        return new HttpRequest(bytes, offset, requestEnd - offset,
+                token(bytes, offset, methodEnd), token(bytes, methodEnd + 1, pathEnd),
+                this.headerOffsets, headerCount, position, contentLength);
+    }
+
+    /**
+     * Parses a request that was already read as text, the body is everything after the headers.
+     * @param request The raw request.
+     * @return The request, with its own copy of the bytes.
+     * @throws IOException If the request is malformed or its headers are incomplete.
+     */
+    public static HttpRequest parse(String request) throws IOException {
+        byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+        HttpParser parser = new HttpParser();
+        HttpRequest parsed = parser.parse(bytes, 0, bytes.length, true);
+        if (parsed == null) {
+            throw new EOFException("Incomplete request");
+        }
+        return parsed;
+    }
+
+    private HttpRequest checkSize(int offset, int limit) throws IOException {
+        if (limit - offset > MAX_REQUEST) {
+            throw new IOException("Request headers larger than " + MAX_REQUEST + " bytes");
+        }
+        return null;
+    }
+
+    /**
+     * Moves bytes left after the last request to the front of the buffer.
+     */
+    private void compact() {
+        if (this.consumed > 0) {
+            this.buffer.flip();
+            this.buffer.position(this.consumed);
+            this.buffer.compact();
+            this.consumed = 0;
+        }
+    }
+
+    private void grow() throws IOException {
+        if (this.buffer.capacity() >= MAX_REQUEST) {
+            throw new IOException("Request larger than " + MAX_REQUEST + " bytes");
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(this.buffer.capacity() * 2, MAX_REQUEST));
+        this.buffer.flip();
+        bigger.put(this.buffer);
+        this.buffer = bigger;
+    }
+
+    /**
+     * Finds the end of the line starting at from. Lines end with CRLF, a bare LF is accepted too.
+     * @return The index of the CR or LF ending the line, or -1 if the line is not complete.
+     */
+    private static int indexOfLineEnd(byte[] bytes, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (bytes[i] == '\n') {
+                return i > from && bytes[i - 1] == '\r' ? i - 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean onlyLineBreaks(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] != '\r' && bytes[i] != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int nextLine(byte[] bytes, int lineEnd) {
+        return bytes[lineEnd] == '\r' ? lineEnd + 2 : lineEnd + 1;
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(byte[] bytes, int from, int to) {
+        while (from < to && bytes[from] == ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean isContentLength(byte[] bytes, int start, int end) {
+        String name = "content-length";
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase((char) bytes[start + i]) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseLength(byte[] bytes, int start, int end) throws IOException {
+        if (start == end) {
+            throw new IOException("Empty Content-Length");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Invalid Content-Length");
+            }
+            value = value * 10 + digit;
+            if (value > MAX_REQUEST) {
+                throw new IOException("Request larger than " + MAX_REQUEST + " bytes");
+            }
+        }
+        return (int) value;
+    }
+
+    /**
+     * Decodes a token of the request line, the common methods are returned without allocating.
+     */
+    private static String token(byte[] bytes, int start, int end) {
+        if (end - start == 3 && bytes[start + 1] == 'E' && bytes[start + 2] == 'T') {
+            if (bytes[start] == 'G') return "GET";
+            if (bytes[start] == 'P') return "PUT";
+        }
+        return new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,84 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class HttpParser_Test {
+
+    private static String put(String body) {
+        return "PUT /data.json HTTP/1.1\r\n" +
+               "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
+               "LamportClock: 3\r\n" +
+               "Source: TestSource\r\n" +
+               "\r\n" +
+               body;
+    }
+
+    @Test
+    void testParsePut() throws IOException {
+        String body = "{\"id\":\"IDS60901\",\"name\":\"Test Station\"}";
+        byte[] bytes = put(body).getBytes(StandardCharsets.UTF_8);
+
+        HttpRequest request = new HttpParser().parse(bytes, 0, bytes.length);
+
+        assertNotNull(request);
+        assertEquals("PUT", request.getMethod());
+        assertEquals("/data.json", request.getPath());
+        assertEquals("3", request.getHeader("LamportClock"));
+        assertEquals("TestSource", request.getHeaders().get("source"), "Header lookups should ignore case");
+        assertNull(request.getHeader("StationID"));
+        assertEquals("-1", request.getHeaders().getOrDefault("StationID", "-1"));
+        assertEquals(body, request.getBodyAsString());
+        assertEquals(bytes.length, request.getLength());
+    }
+
+    @Test
+    void testNonAsciiBodyIsReadByBytes() throws IOException {
+        String body = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace /  ngayirdapira) \u00e9\u00e8 \u6c14\u8c61\"}";
+        String first = put(body);
+        String second = "GET /data.json HTTP/1.1\r\nStationID: IDS60901\r\n\r\n";
+        byte[] stream = (first + "\n" + second).getBytes(StandardCharsets.UTF_8);
+
+        HttpParser parser = new HttpParser();
+        ByteArrayInputStream in = new ByteArrayInputStream(stream);
+        HttpRequest put = parser.read(in);
+        assertEquals(body, put.getBodyAsString());
+        assertEquals(body.getBytes(StandardCharsets.UTF_8).length, put.getBodyLength());
+
+        // the next request on the same stream starts right after the body
+        HttpRequest get = parser.read(in);
+        assertEquals("GET", get.getMethod());
+        assertEquals("IDS60901", get.getHeader("StationID"));
+        assertEquals(0, get.getBodyLength());
+        assertNull(parser.read(in), "End of stream between requests should return null");
+    }
+
+    @Test
+    void testIncompleteAndMalformed() throws IOException {
+        byte[] bytes = put("{\"id\":\"IDS60901\"}").getBytes(StandardCharsets.UTF_8);
+        HttpParser parser = new HttpParser();
+
+        assertNull(parser.parse(bytes, 0, 20), "Partial headers are not a request yet");
+        assertNull(parser.parse(bytes, 0, bytes.length - 1), "Partial body is not a request yet");
+
+        ByteArrayInputStream truncated = new ByteArrayInputStream(bytes, 0, bytes.length - 1);
+        assertThrows(IOException.class, () -> new HttpParser().read(truncated));
+
+        byte[] malformed = "GARBAGE\r\nno header here\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> parser.parse(malformed, 0, malformed.length));
+    }
+
+    @Test
+    void testDetachKeepsRequest() throws IOException {
+        byte[] bytes = put("{\"id\":\"IDS60902\"}").getBytes(StandardCharsets.UTF_8);
+        HttpRequest detached = new HttpParser().parse(bytes, 0, bytes.length).detach();
+        Arrays.fill(bytes, (byte) 0);
+
+        assertEquals("TestSource", detached.getHeader("Source"));
+        assertEquals("{\"id\":\"IDS60902\"}", detached.getBodyAsString());
+    }
+}
@@ -0,0 +1,212 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A request parsed by HttpParser.
+ * Headers and body are not copied out of the bytes they were read from, they are looked up by offset
+ * when asked for. A request read through a reused parser is only valid until that parser reads the
+ * next request, call detach() to keep it longer.
+ */
+public class HttpRequest {
+    private final byte[] buffer;
+    private final int start;
+    private final int length;
+    private final String method;
+    private final String path;
+    private final int[] headerOffsets;
+    private final int headerCount;
+    private final int bodyStart;
+    private final int bodyLength;
+    private final Headers headers = new Headers();
+
+    /**
+     * @param buffer The bytes the request was parsed from.
+     * @param start Offset of the request line.
+     * @param length Length of the whole request, headers and body.
+     * @param method The request method.
+     * @param path The request path.
+     * @param headerOffsets Four offsets per header: name start, name end, value start, value end.
+     * @param headerCount Number of headers.
+     * @param bodyStart Offset of the body.
+     * @param bodyLength Length of the body in bytes.
+     */
+    HttpRequest(byte[] buffer, int start, int length, String method, String path,
+                int[] headerOffsets, int headerCount, int bodyStart, int bodyLength) {
+        this.buffer = buffer;
+        this.start = start;
+        this.length = length;
+        this.method = method;
+        this.path = path;
+        this.headerOffsets = headerOffsets;
+        this.headerCount = headerCount;
+        this.bodyStart = bodyStart;
+        this.bodyLength = bodyLength;
+    }
+
+    public String getMethod() {
+        return this.method;
+    }
+
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Read-only view of the headers. Lookups are case-insensitive and decode only the value asked for.
+     * @return The header view.
+     */
+    public Map<String, String> getHeaders() {
+        return this.headers;
+    }
+
+    /**
+     * Looks up a single header.
+     * @param name The header name, case-insensitive.
+     * @return The header value, or null if the header is missing.
+     */
+    public String getHeader(String name) {
+        int index = this.indexOf(name);
+        if (index < 0) {
+            return null;
+        }
+        int valueStart = this.headerOffsets[index * 4 + 2];
+        int valueEnd = this.headerOffsets[index * 4 + 3];
+        return new String(this.buffer, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether the client asked to keep the connection open for more requests.
+     * Clients of this system opt in with "Connection: keep-alive", anything else is closed after the response.
+     * @return true if the request carries Connection: keep-alive.
+     */
+    public boolean isKeepAlive() {
+        return "keep-alive".equalsIgnoreCase(this.getHeader("Connection"));
+    }
+
+    /**
+     * The body as a read-only slice of the bytes it was read from.
+     * @return The body bytes, empty when the request has no body.
+     */
+    public ByteBuffer getBody() {
+        return ByteBuffer.wrap(this.buffer, this.bodyStart, this.bodyLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Body length in bytes.
+     * @return The length of the body.
+     */
+    public int getBodyLength() {
+        return this.bodyLength;
+    }
+
+    /**
+     * Decodes the body as UTF-8.
+     * @return The body text, empty when the request has no body.
+     */
+    public String getBodyAsString() {
+        return new String(this.buffer, this.bodyStart, this.bodyLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Length of the whole request in bytes, headers and body.
+     * @return The request length.
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Offset just past the end of the request in the bytes it was parsed from.
+     * @return The end offset.
+     */
+    int getEnd() {
+        return this.start + this.length;
+    }
+
+    /**
+     * Copies the request into its own bytes so it stays valid after the parser moves on.
+     * @return A request that does not share bytes with the parser.
+     */
+    public HttpRequest detach() {
+        byte[] copy = Arrays.copyOfRange(this.buffer, this.start, this.start + this.length);
+        int[] offsets = new int[this.headerCount * 4];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = this.headerOffsets[i] - this.start;
+        }
+        return new HttpRequest(copy, 0, this.length, this.method, this.path, offsets, this.headerCount,
+                this.bodyStart - this.start, this.bodyLength);
+    }
+
+    /**
+     * The raw request as text, in the form normalizeReq(String) accepts.
+     * @return The request decoded as UTF-8.
+     */
+    @Override
+    public String toString() {
+        return new String(this.buffer, this.start, this.length, StandardCharsets.UTF_8);
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < this.headerCount; i++) {
+            int nameStart = this.headerOffsets[i * 4];
+            int nameEnd = this.headerOffsets[i * 4 + 1];
+            if (nameEnd - nameStart == name.length() && this.nameMatches(name, nameStart)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameMatches(String name, int offset) {
+        for (int j = 0; j < name.length(); j++) {
+            char expected = name.charAt(j);
+            char actual = (char) (this.buffer[offset + j] & 0xff);
+            if (Character.toLowerCase(expected) != Character.toLowerCase(actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Map view over the header offsets, the request handlers take headers as a Map.
+     */
+    private class Headers extends AbstractMap<String, String> {
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? getHeader((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && indexOf((String) key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return headerCount;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            List<Entry<String, String>> entries = new ArrayList<>(headerCount);
+            for (int i = 0; i < headerCount; i++) {
+                int nameStart = headerOffsets[i * 4];
+                int nameEnd = headerOffsets[i * 4 + 1];
+                int valueStart = headerOffsets[i * 4 + 2];
+                int valueEnd = headerOffsets[i * 4 + 3];
+                entries.add(new SimpleImmutableEntry<>(
+                        new String(buffer, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8),
+                        new String(buffer, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8)));
+            }
+            return new LinkedHashSet<>(entries);
+        }
+    }
+}
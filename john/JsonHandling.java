@@ -6,10 +6,13 @@ import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.Map.Entry;
 
 public class JsonHandling {
-    private static final Gson gson = new Gson();
+    // readings are written through getData(), a reading may keep its data outside the data field
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeHierarchyAdapter(WeatherFormat.class, new WeatherFormat.Adapter()).create();
 
     private JsonHandling() {}
 
@@ -20,7 +23,7 @@ public class JsonHandling {
 
         StringBuilder content = new StringBuilder();
 
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+        try (BufferedReader br = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
             String line;
             while ((line = br.readLine()) != null) {
                 content.append(line).append("\n");
@@ -20,6 +20,25 @@ public class Lamport {
         });
     }
 
+    /**
+     * Returns the current time and ticks the clock in one atomic step.
+     * Used when the value sent to a peer has to match the tick it caused under concurrent use.
+     * @return The time before the tick.
+     */
+    public int getAndTick() {
+        return time.getAndIncrement();
+    }
+
+    /**
+     * Applies a received timestamp and ticks for the receive event in one atomic step,
+     * the same result as adjust() followed by tick() without another thread interleaving.
+     * @param timeStampt The timestamp carried by the received message.
+     * @return The time after the receive event.
+     */
+    public int receive(int timeStampt) {
+        return time.updateAndGet(current -> Math.max(current, timeStampt + 1) + 1);
+    }
+
     public int getTime() {
         return time.get();
     }
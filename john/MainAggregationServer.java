@@ -4,6 +4,14 @@ import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
@@ -11,15 +19,98 @@ import com.google.gson.JsonSyntaxException;
 
 public class MainAggregationServer {
     private static final int PORT = 4567;
-    private int serverIndex = 0;
+
+    /**
+     * How a healthy replica is chosen for each client.
+     */
+    public enum RoutingPolicy {
+        /** Every healthy replica in turn. */
+        ROUND_ROBIN,
+        /** The replica with the fewest queued and in-progress requests. */
+        LEAST_OUTSTANDING,
+        /** Random pick weighted by the inverse of each replica's average service time. */
+        LATENCY_WEIGHTED
+    }
+
+    private final AtomicInteger serverIndex = new AtomicInteger();
+    private final RoutingPolicy routingPolicy;
+    private final Map<AggregationServer, AtomicLong> routedRequests = new ConcurrentHashMap<>();
+    public static final int DEFAULT_DISPATCHERS = 2;
+    public static final int DEFAULT_DISPATCH_CAPACITY = 1024;
+
+    /**
+     * An accepted client waiting for a dispatcher, with the time it was queued.
+     */
+    private static class PendingClient {
+        private final Socket socket;
+        private final long queuedAt = System.nanoTime();
+
+        private PendingClient(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    private boolean pinConnections = true;
+    private int dispatcherCount = DEFAULT_DISPATCHERS;
+    private BlockingQueue<PendingClient> dispatchQueue = new ArrayBlockingQueue<>(DEFAULT_DISPATCH_CAPACITY);
+    private ExecutorService dispatchers;
+    private final AtomicLong dispatchedClients = new AtomicLong();
+    private final AtomicLong rejectedClients = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
     private SocketServer socketServer;
+    // the non-blocking engine used for client connections instead of socketServer, or null
+    private final NioSocketServer nioServer;
     private List<AggregationServer> servers;
-    private boolean isDown;
+    private volatile boolean isDown;
     private static final String LAMPORT_FILE_PATH = "data" + File.separator + "lamport.json";
+    private static final String SERVICE_UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\n" +
+                                                      "Lamport: -1\r\n" +
+                                                      "\r\n";
     private Lamport globalLamport = new Lamport();
+    private HealthMonitor healthMonitor;
     public MainAggregationServer(SocketServer server, List<AggregationServer> servers) {
-        this.socketServer = server;
+        this(server, servers, new HealthMonitor(servers));
+    }
+
+    public MainAggregationServer(SocketServer server, List<AggregationServer> servers, HealthMonitor healthMonitor) {
+        this(server, servers, healthMonitor, RoutingPolicy.ROUND_ROBIN);
+    }
+
+    /**
+     * @param server The socket engine used for client connections.
+     * @param servers The replicas requests are routed to.
+     * @param healthMonitor Background checker whose cached view is used to pick a replica.
+     * @param routingPolicy How a replica is chosen among the healthy ones.
+     */
+    public MainAggregationServer(SocketServer server, List<AggregationServer> servers, HealthMonitor healthMonitor,
+                                 RoutingPolicy routingPolicy) {
+        this(server, null, servers, healthMonitor, routingPolicy);
+    }
+
+    public MainAggregationServer(NioSocketServer server, List<AggregationServer> servers) {
+        this(server, servers, new HealthMonitor(servers), RoutingPolicy.ROUND_ROBIN);
+    }
+
+    /**
+     * Accepts clients with the non-blocking engine, which can route every request of a kept-alive connection.
+     * @param server The engine used for client connections.
+     * @param servers The replicas requests are routed to.
+     * @param healthMonitor Background checker whose cached view is used to pick a replica.
+     * @param routingPolicy How a replica is chosen among the healthy ones.
+     */
+    public MainAggregationServer(NioSocketServer server, List<AggregationServer> servers, HealthMonitor healthMonitor,
+                                 RoutingPolicy routingPolicy) {
+        this(null, server, servers, healthMonitor, routingPolicy);
+    }
+
+    private MainAggregationServer(SocketServer socketServer, NioSocketServer nioServer, List<AggregationServer> servers,
+                                  HealthMonitor healthMonitor, RoutingPolicy routingPolicy) {
+        this.socketServer = socketServer;
+        this.nioServer = nioServer;
         this.servers = servers;
+        this.healthMonitor = healthMonitor;
+        this.routingPolicy = routingPolicy;
     }
 
     /**
@@ -28,13 +119,80 @@ public class MainAggregationServer {
      * @param port The port number on which to start the server.
      */
     public void start(int port) {
-        this.socketServer.start(port);
-        this.initializeAcceptThread();
+        this.healthMonitor.start();
+        if (this.nioServer != null) {
+            this.nioServer.start(port);
+            this.initializeEventLoopThread(this.nioServer);
+        } else {
+            this.socketServer.start(port);
+            this.initializeDispatchers();
+            this.initializeAcceptThread();
+        }
+    }
+
+    /**
+     * Chooses whether every request on a kept-alive connection goes to the replica picked when the client
+     * connected, or is routed again. Only the non-blocking engine can route per request, on the blocking
+     * engine the connection is handed to its replica and stays there.
+     * A pinned client whose replica goes down is moved to a healthy one.
+     * @param pinConnections true to keep a connection on one replica (the default).
+     */
+    public void setPinConnections(boolean pinConnections) {
+        this.pinConnections = pinConnections;
+    }
+
+    /**
+     * Configures the stage between the accept thread and the replicas. Must be called before start().
+     * @param dispatcherCount Number of threads handing accepted clients to replicas.
+     * @param queueCapacity Accepted clients that may wait for a dispatcher, more are answered with 503.
+     */
+    public void setDispatchStage(int dispatcherCount, int queueCapacity) {
+        this.dispatcherCount = Math.max(1, dispatcherCount);
+        this.dispatchQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    }
+
+    /**
+     * Runs the non-blocking engine on its own thread.
+     * A replica is chosen when the connection is accepted and the request is processed by that replica
+     * on the engine's worker pool, so a slow client never holds up the event loop.
+     * Kept-alive connections stay on that replica unless pinning is turned off.
+     * @param nioServer The started non-blocking engine.
+     */
+    private void initializeEventLoopThread(NioSocketServer nioServer) {
+        new Thread(() -> nioServer.serve(new NioSocketServer.Handler() {
+            @Override
+            public String onConnect(NioSocketServer.Connection connection) {
+                AggregationServer activeServer = getActiveServer();
+                if (activeServer == null) {
+                    connection.closeAfterWrite();
+                    return SERVICE_UNAVAILABLE;
+                }
+                connection.attach(activeServer);
+                String greeting = activeServer.greeting();
+                globalLamport.adjust(activeServer.getServerLamport());
+                return greeting + "\r\n";
+            }
+
+            @Override
+            public String handle(NioSocketServer.Connection connection, HttpRequest request) {
+                AggregationServer server = (AggregationServer) connection.attachment();
+                if (!pinConnections || server == null || !healthMonitor.isUp(server)) {
+                    server = getActiveServer();
+                    if (server == null) {
+                        connection.closeAfterWrite();
+                        return SERVICE_UNAVAILABLE;
+                    }
+                    connection.attach(server);
+                }
+                return server.normalizeReq(request);
+            }
+        })).start();
     }
 
     /**
      * Initializes a separate thread for accepting client connections.
-     * This allows the server to handle multiple connections concurrently.
+     * The thread only queues accepted sockets for the dispatchers, so a slow client or replica
+     * never holds up accepting the next connection.
      */
     private void initializeAcceptThread() {
         new Thread(() -> {
@@ -42,7 +200,7 @@ public class MainAggregationServer {
                 try {
                     Socket clientSocket = socketServer.accept();
                     if (clientSocket != null) {
-                        handleClientSocket(clientSocket);
+                        enqueueClient(clientSocket);
                     }
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -51,27 +209,167 @@ public class MainAggregationServer {
         }).start();
     }
 
+    /**
+     * Queues an accepted client for dispatch, or answers 503 straight away when the queue is full.
+     * @param clientSocket The accepted client socket.
+     */
+    private void enqueueClient(Socket clientSocket) {
+        if (!this.dispatchQueue.offer(new PendingClient(clientSocket))) {
+            this.rejectedClients.incrementAndGet();
+            this.socketServer.response(SERVICE_UNAVAILABLE, clientSocket);
+        }
+    }
+
+    /**
+     * Starts the dispatcher threads, each takes queued clients and hands them to a replica.
+     */
+    private void initializeDispatchers() {
+        this.dispatchers = Executors.newFixedThreadPool(this.dispatcherCount);
+        for (int i = 0; i < this.dispatcherCount; i++) {
+            this.dispatchers.execute(() -> {
+                try {
+                    while (!isDown) {
+                        PendingClient pending = dispatchQueue.take();
+                        recordQueueTime(System.nanoTime() - pending.queuedAt);
+                        handleClientSocket(pending.socket);
+                    }
+                } catch (InterruptedException e) {
+                    // stopped by shutdown()
+                }
+            });
+        }
+    }
+
+    private void recordQueueTime(long nanos) {
+        this.dispatchedClients.incrementAndGet();
+        this.totalQueueNanos.addAndGet(nanos);
+        this.maxQueueNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Number of accepted clients waiting for a dispatcher.
+     * @return The dispatch queue depth.
+     */
+    public int getDispatchQueueDepth() {
+        return this.dispatchQueue.size();
+    }
+
+    /**
+     * Number of clients answered with 503 because the dispatch queue was full.
+     * @return The rejected client count.
+     */
+    public long getRejectedClients() {
+        return this.rejectedClients.get();
+    }
+
+    /**
+     * Average time an accepted client waited for a dispatcher.
+     * @return The average queue time in milliseconds, 0 before the first dispatch.
+     */
+    public double getAverageQueueTime() {
+        long count = this.dispatchedClients.get();
+        return count == 0 ? 0 : this.totalQueueNanos.get() / 1_000_000.0 / count;
+    }
+
+    /**
+     * Longest time an accepted client waited for a dispatcher.
+     * @return The maximum queue time in milliseconds.
+     */
+    public double getMaxQueueTime() {
+        return this.maxQueueNanos.get() / 1_000_000.0;
+    }
+
     /**
      * Retrieves an active AggregationServer from the list of managed servers.
-     * Implements a simple round-robin load balancing strategy.
+     * The replica is chosen among the healthy ones with the configured routing policy.
+     * Reads the health monitor's cached view, so no connection is opened on the request path.
      * @return An active AggregationServer, or null if no servers are available.
      */
     public AggregationServer getActiveServer() {
         if (this.servers.isEmpty()) {
             return null;
         }
+        // the rotating start spreads ties between replicas for every policy
+        int start = Math.floorMod(this.serverIndex.getAndIncrement(), this.servers.size());
+        List<AggregationServer> healthy = new ArrayList<>(this.servers.size());
+        for (int i = 0; i < this.servers.size(); i++) {
+            AggregationServer server = this.servers.get((start + i) % this.servers.size());
+            if (this.healthMonitor.isUp(server)) {
+                healthy.add(server);
+            }
+        }
+        if (healthy.isEmpty()) {
+            return null;
+        }
+
         AggregationServer nextServer;
+        switch (this.routingPolicy) {
+            case LEAST_OUTSTANDING:
+                nextServer = Collections.min(healthy, Comparator.comparingInt(AggregationServer::getOutstandingRequests));
+                break;
+            case LATENCY_WEIGHTED:
+                nextServer = pickByLatency(healthy);
+                break;
+            case ROUND_ROBIN:
+            default:
+                nextServer = healthy.get(0);
+                break;
+        }
+        this.routedRequests.computeIfAbsent(nextServer, s -> new AtomicLong()).incrementAndGet();
+        return nextServer;
+    }
 
-        nextServer = this.servers.get(serverIndex);
-        for (int i = 0; i < this.servers.size(); i++) {
-            if (nextServer.isUp()) {
-                return nextServer;
+    /**
+     * Picks a replica at random, each weighted by the inverse of its average service time.
+     * Slow replicas still get some traffic so their average keeps being refreshed.
+     * @param healthy The healthy replicas, not empty.
+     * @return The chosen replica.
+     */
+    private AggregationServer pickByLatency(List<AggregationServer> healthy) {
+        double[] weights = new double[healthy.size()];
+        double total = 0;
+        for (int i = 0; i < healthy.size(); i++) {
+            weights[i] = 1.0 / (healthy.get(i).getServiceTimeEwma() + 1.0);
+            total += weights[i];
+        }
+        double pick = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < weights.length; i++) {
+            pick -= weights[i];
+            if (pick < 0) {
+                return healthy.get(i);
             }
-            serverIndex = (serverIndex + 1) % this.servers.size();
-            nextServer = this.servers.get(serverIndex);
         }
+        return healthy.get(healthy.size() - 1);
+    }
+
+    /**
+     * Number of clients routed to a replica since this server started.
+     * @param server The replica to check.
+     * @return The routed request count.
+     */
+    public long getRoutedRequests(AggregationServer server) {
+        AtomicLong count = this.routedRequests.get(server);
+        return count == null ? 0 : count.get();
+    }
 
-        return null;
+    /**
+     * Summary of the routing counters, one replica per line, followed by the dispatch stage.
+     * @return The port, routed count, outstanding requests and average service time of every replica.
+     */
+    public String getRoutingStats() {
+        StringBuilder stats = new StringBuilder("Routing policy: " + this.routingPolicy + "\n");
+        for (AggregationServer server : this.servers) {
+            stats.append(server.getPort())
+                 .append(" routed=").append(this.getRoutedRequests(server))
+                 .append(" outstanding=").append(server.getOutstandingRequests())
+                 .append(String.format(" ewma=%.2fms", server.getServiceTimeEwma()))
+                 .append("\n");
+        }
+        stats.append("dispatch queued=").append(this.getDispatchQueueDepth())
+             .append(" rejected=").append(this.getRejectedClients())
+             .append(String.format(" avgWait=%.2fms maxWait=%.2fms", this.getAverageQueueTime(), this.getMaxQueueTime()))
+             .append("\n");
+        return stats.toString();
     }
 
     /**
@@ -84,13 +382,15 @@ public class MainAggregationServer {
             AggregationServer activeServer = getActiveServer();
             
             if (activeServer != null) {
-                int latestLamportAS = activeServer.accept(client);
-                this.globalLamport.adjust(latestLamportAS);
+                try {
+                    int latestLamportAS = activeServer.accept(client);
+                    this.globalLamport.adjust(latestLamportAS);
+                } catch (RuntimeException e) {
+                    this.healthMonitor.reportFailure(activeServer);
+                    throw e;
+                }
             } else {
-                String res = "HTTP/1.1 503 Service Unavailable\r\n" +
-                                        "Lamport: -1\r\n" +
-                                        "\r\n";
-                this.socketServer.response(res, client);
+                this.socketServer.response(SERVICE_UNAVAILABLE, client);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -105,28 +405,128 @@ public class MainAggregationServer {
         System.out.println("Shutting down main...");
         this.isDown = true;
 
+        this.healthMonitor.stop();
         for (AggregationServer server : this.servers) {
             server.stop();
         }
 
-        this.socketServer.close();
+        if (this.nioServer != null) {
+            this.nioServer.close();
+        } else {
+            this.socketServer.close();
+        }
+        if (this.dispatchers != null) {
+            this.dispatchers.shutdownNow();
+        }
+        PendingClient pending;
+        while ((pending = this.dispatchQueue.poll()) != null) {
+            try {
+                pending.socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
         System.out.println("LoadBalancer and all managed AggregationServers have been shut down.");
     }
     public static void main(String[] args) {
-      SocketServer socket = new SocketServer();
+      // "nio" selects the non-blocking engine for the main server,
+      // "workers=N" and "virtual" configure how each replica processes its queue,
+      // "probe=MS" and "failures=N" configure the replica health checks,
+      // "routing=round_robin|least_outstanding|latency_weighted" selects the routing policy,
+      // "dispatchers=N" and "backlog=N" size the stage between accepting and routing clients,
+      // "keepalive=MS", "maxrequests=N" and "unpinned" configure kept-alive client connections,
+      // "fsync=always|os|MS" selects when the write-ahead log is forced to disk,
+      // "history=N", "historyage=MS" and "historybytes=N" bound the readings kept per station,
+      // "shards=N" splits the stored data into N independently persisted shards,
+      // "storage=json|mapped" selects how each shard persists its changes
+      boolean useNio = false;
+      boolean virtualThreads = false;
+      int workers = AggregationServer.DEFAULT_WORKERS;
+      long probeInterval = HealthMonitor.DEFAULT_INTERVAL;
+      int failureThreshold = HealthMonitor.DEFAULT_FAILURE_THRESHOLD;
+      RoutingPolicy routingPolicy = RoutingPolicy.ROUND_ROBIN;
+      int dispatcherCount = DEFAULT_DISPATCHERS;
+      int backlog = DEFAULT_DISPATCH_CAPACITY;
+      int idleTimeout = SocketServer.DEFAULT_IDLE_TIMEOUT;
+      int maxRequests = SocketServer.DEFAULT_MAX_REQUESTS;
+      boolean pinned = true;
+      WriteAheadLog.SyncPolicy syncPolicy = WriteAheadLog.SyncPolicy.ALWAYS;
+      long syncInterval = WriteAheadLog.DEFAULT_SYNC_INTERVAL;
+      int historyReadings = StationHistory.Retention.DEFAULT_MAX_READINGS;
+      long historyAge = StationHistory.Retention.DEFAULT_MAX_AGE;
+      long historyBytes = StationHistory.Retention.DEFAULT_MAX_BYTES;
+      int shards = DatabaseManagement.DEFAULT_SHARDS;
+      StorageShard.Backend backend = StorageShard.Backend.JSON;
+      for (String arg : args) {
+        if ("nio".equalsIgnoreCase(arg)) {
+          useNio = true;
+        } else if ("virtual".equalsIgnoreCase(arg)) {
+          virtualThreads = true;
+        } else if (arg.startsWith("workers=")) {
+          workers = Integer.parseInt(arg.substring("workers=".length()));
+        } else if (arg.startsWith("probe=")) {
+          probeInterval = Long.parseLong(arg.substring("probe=".length()));
+        } else if (arg.startsWith("failures=")) {
+          failureThreshold = Integer.parseInt(arg.substring("failures=".length()));
+        } else if (arg.startsWith("routing=")) {
+          routingPolicy = RoutingPolicy.valueOf(arg.substring("routing=".length()).toUpperCase());
+        } else if (arg.startsWith("dispatchers=")) {
+          dispatcherCount = Integer.parseInt(arg.substring("dispatchers=".length()));
+        } else if (arg.startsWith("backlog=")) {
+          backlog = Integer.parseInt(arg.substring("backlog=".length()));
+        } else if (arg.startsWith("keepalive=")) {
+          idleTimeout = Integer.parseInt(arg.substring("keepalive=".length()));
+        } else if (arg.startsWith("maxrequests=")) {
+          maxRequests = Integer.parseInt(arg.substring("maxrequests=".length()));
+        } else if ("unpinned".equalsIgnoreCase(arg)) {
+          pinned = false;
+        } else if (arg.startsWith("fsync=")) {
+          String value = arg.substring("fsync=".length());
+          if (value.chars().allMatch(Character::isDigit) && !value.isEmpty()) {
+            syncPolicy = WriteAheadLog.SyncPolicy.INTERVAL;
+            syncInterval = Long.parseLong(value);
+          } else {
+            syncPolicy = WriteAheadLog.SyncPolicy.valueOf(value.toUpperCase());
+          }
+        } else if (arg.startsWith("history=")) {
+          historyReadings = Integer.parseInt(arg.substring("history=".length()));
+        } else if (arg.startsWith("historyage=")) {
+          historyAge = Long.parseLong(arg.substring("historyage=".length()));
+        } else if (arg.startsWith("historybytes=")) {
+          historyBytes = Long.parseLong(arg.substring("historybytes=".length()));
+        } else if (arg.startsWith("shards=")) {
+          shards = Integer.parseInt(arg.substring("shards=".length()));
+        } else if (arg.startsWith("storage=")) {
+          backend = StorageShard.Backend.valueOf(arg.substring("storage=".length()).toUpperCase());
+        }
+      }
+      DatabaseManagement db = DatabaseManagement.initialize(shards, backend);
+      db.setSyncPolicy(syncPolicy, syncInterval);
+      db.setRetention(new StationHistory.Retention(historyReadings, historyAge, historyBytes));
       List<AggregationServer> servers = new ArrayList<>();
       int port = PORT;
       for (int i = 1; i < 4; i++) {
         int serverPort = port + i;
         SocketServer aggreSocket = new SocketServer();
-        AggregationServer aggreServer = new AggregationServer(aggreSocket);
+        AggregationServer aggreServer = new AggregationServer(aggreSocket, workers, virtualThreads, db);
+        aggreServer.setKeepAlive(idleTimeout, maxRequests);
         servers.add(aggreServer);
         new Thread(() -> {
           aggreServer.start(serverPort);
         }).start();
       }
-      MainAggregationServer mainServer = new MainAggregationServer(socket, servers);
+      HealthMonitor healthMonitor = new HealthMonitor(servers, probeInterval, failureThreshold, HealthMonitor.DEFAULT_RECOVERY_THRESHOLD);
+      MainAggregationServer mainServer;
+      if (useNio) {
+        NioSocketServer nioServer = new NioSocketServer();
+        nioServer.setKeepAlive(idleTimeout, maxRequests);
+        mainServer = new MainAggregationServer(nioServer, servers, healthMonitor, routingPolicy);
+      } else {
+        mainServer = new MainAggregationServer(new SocketServer(), servers, healthMonitor, routingPolicy);
+      }
+      mainServer.setDispatchStage(dispatcherCount, backlog);
+      mainServer.setPinConnections(pinned);
       mainServer.start(port);
     }
 }
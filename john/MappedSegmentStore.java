@@ -0,0 +1,546 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Storage of a shard's changes in memory-mapped segment files of a fixed size, the alternative to the
+ * write-ahead log and JSON snapshots.
+ * Every change is one record with a fixed header, appended at the end of the current segment. A stored
+ * reading is kept in memory as a Reading that only holds its Lamport time, sender and place in the
+ * segment; its JSON is decoded from the mapped bytes when it is asked for. A restart maps the segments
+ * and reads the record headers, it does not parse the stored JSON.
+ *
+ * Records that are no longer needed are dropped by compaction: beginBase() starts a new segment, the
+ * caller appends everything still live and endBase() deletes the segments before it. A base without its
+ * end, cut short by a crash, is ignored and removed on the next restart.
+ *
+ * Record layout, big-endian: int length, int crc, byte type, int lamport, long time, short key length,
+ * short source length (-1 for none), int data length (-1 for none), then the key and source in UTF-8
+ * and the data encoded by WeatherCodec. The length is written last, a record with length 0 ends a segment. The crc covers the bytes
+ * after it and is only checked in the newest segment, the older ones were forced before it was started.
+ */
+public class MappedSegmentStore {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20; // 64 MB
+    static final byte READING = 1;
+    static final byte TIME = 2;
+    static final byte REMOVE = 3;
+    static final byte BASE_START = 4;
+    static final byte BASE_END = 5;
+    private static final int HEADER = 4 + 4 + 1 + 4 + 8 + 2 + 2 + 4;
+
+    /**
+     * A reading whose JSON stays in the mapped segment until it is asked for.
+     */
+    public static class Reading extends WeatherFormat {
+        private final transient ByteBuffer segment;
+        private final transient int dataOffset;
+        private final transient int dataLength;
+        private final transient int recordLength;
+        private final transient long storedAt;
+
+        private Reading(int lamport, String source, ByteBuffer segment, int dataOffset, int dataLength,
+                        int recordLength, long storedAt) {
+            super(lamport, source, null);
+            this.segment = segment;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.recordLength = recordLength;
+            this.storedAt = storedAt;
+        }
+
+        /**
+         * Decodes the reading's JSON from the segment, a new object on every call.
+         * @return The reading's data, or null if it was stored without any.
+         */
+        @Override
+        public JsonObject getData() {
+            if (this.dataLength < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[this.dataLength];
+            this.segment.get(this.dataOffset, bytes);
+            return WeatherCodec.decode(bytes);
+        }
+
+        @Override
+        int dataLength() {
+            return Math.max(0, this.dataLength);
+        }
+
+        /**
+         * The time the reading was first stored, kept across restarts and compactions.
+         * @return Milliseconds since the epoch.
+         */
+        public long getStoredAt() {
+            return this.storedAt;
+        }
+
+        /**
+         * Bytes the reading's record takes in its segment.
+         * @return The record length.
+         */
+        public int getRecordLength() {
+            return this.recordLength;
+        }
+    }
+
+    /**
+     * Receives the records of the segments on replay, in the order they were appended.
+     */
+    public interface Visitor {
+        /**
+         * Called before the records of a base, whatever was received before is replaced by the base.
+         */
+        void reset();
+
+        void reading(String station, Reading reading);
+
+        void time(String source, long time);
+
+        void remove(String station, String source, long storedUntil);
+    }
+
+    private final Path directory;
+    private final String prefix;
+    private final int segmentSize;
+    private WriteAheadLog.SyncPolicy syncPolicy = WriteAheadLog.SyncPolicy.ALWAYS;
+    private long syncInterval = WriteAheadLog.DEFAULT_SYNC_INTERVAL;
+    private long lastSync = System.currentTimeMillis();
+
+    // guarded by this: every mapped segment by number, the one appended to and its end
+    private final TreeMap<Integer, MappedByteBuffer> mapped = new TreeMap<>();
+    private int segment;
+    private int position;
+    private int syncedPosition;
+    // bytes used by the segments before the current one
+    private long sealedBytes;
+    private int baseSegment = -1;
+
+    /**
+     * @param basePath Directory and name prefix of the segments, "data/store" maps data/store-000001.seg and on.
+     * @param segmentSize Size of each segment file in bytes, a record must fit in one.
+     */
+    public MappedSegmentStore(String basePath, int segmentSize) {
+        Path base = Paths.get(basePath).toAbsolutePath();
+        this.directory = base.getParent();
+        this.prefix = base.getFileName().toString() + "-";
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Selects when appended records are forced to disk, with the same policies as the write-ahead log.
+     * @param syncPolicy The policy.
+     * @param syncInterval Milliseconds between two forces for SyncPolicy.INTERVAL.
+     */
+    public synchronized void setSyncPolicy(WriteAheadLog.SyncPolicy syncPolicy, long syncInterval) {
+        this.syncPolicy = syncPolicy;
+        this.syncInterval = Math.max(1, syncInterval);
+    }
+
+    public synchronized WriteAheadLog.SyncPolicy getSyncPolicy() {
+        return this.syncPolicy;
+    }
+
+    /**
+     * Maps the segments on disk and passes their records to the visitor, from the last complete base on.
+     * Segments of a base that was never finished are deleted, and new records are appended after the
+     * last good record of the newest segment.
+     * Called once, before anything is appended.
+     * @param visitor Receives the records.
+     * @return The number of records replayed.
+     * @throws IOException If a segment could not be mapped.
+     */
+    public synchronized int replay(Visitor visitor) throws IOException {
+        List<Integer> numbers = this.segments();
+        for (int number : numbers) {
+            this.mapped.put(number, this.map(number));
+        }
+        // a base starts a segment, so its records are found by the first header of each segment
+        int end = numbers.size();
+        int replayed = 0;
+        int from;
+        while (true) {
+            from = 0;
+            for (int i = end - 1; i > 0; i--) {
+                if (this.typeAt(this.mapped.get(numbers.get(i)), 0) == BASE_START) {
+                    from = i;
+                    break;
+                }
+            }
+            visitor.reset();
+            replayed = 0;
+            boolean inBase = false;
+            boolean complete = true;
+            for (int i = from; i < end; i++) {
+                int number = numbers.get(i);
+                MappedByteBuffer buffer = this.mapped.get(number);
+                int at = 0;
+                while (true) {
+                    int length = this.recordLength(buffer, at, i == numbers.size() - 1);
+                    if (length == 0) {
+                        break;
+                    }
+                    byte type = buffer.get(at + 8);
+                    if (type == BASE_START) {
+                        inBase = true;
+                    } else if (type == BASE_END) {
+                        inBase = false;
+                    } else {
+                        this.visit(visitor, buffer, at, length);
+                        replayed++;
+                    }
+                    at += length;
+                }
+                this.position = at;
+                this.segment = number;
+            }
+            if (inBase && from > 0) {
+                complete = false;
+            }
+            if (complete) {
+                break;
+            }
+            // the newest base was cut short, go back to the state before it and drop it
+            System.out.println("Dropping unfinished store compaction from segment " + numbers.get(from));
+            for (int i = numbers.size() - 1; i >= from; i--) {
+                this.mapped.remove(numbers.get(i));
+                Files.deleteIfExists(this.segmentPath(numbers.get(i)));
+            }
+            numbers = new ArrayList<>(numbers.subList(0, from));
+            end = from;
+        }
+        // a base finished just before a crash, the segments it replaces were not deleted yet
+        for (int i = 0; i < from; i++) {
+            this.mapped.remove(numbers.get(i));
+            Files.deleteIfExists(this.segmentPath(numbers.get(i)));
+        }
+        if (this.mapped.isEmpty()) {
+            this.segment = 1;
+            this.position = 0;
+            this.mapped.put(this.segment, this.map(this.segment));
+        }
+        this.syncedPosition = this.position;
+        this.sealedBytes = 0;
+        for (Map.Entry<Integer, MappedByteBuffer> entry : this.mapped.entrySet()) {
+            if (entry.getKey() != this.segment) {
+                this.sealedBytes += this.usedBytes(entry.getValue());
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Appends a reading.
+     * @param station The station ID.
+     * @param reading The reading.
+     * @param storedAt The time the reading is stored.
+     * @return The stored reading, its data is read back from the segment.
+     * @throws IOException If a new segment could not be mapped.
+     */
+    public synchronized Reading appendReading(String station, WeatherFormat reading, long storedAt) throws IOException {
+        JsonObject data = reading.getData();
+        byte[] dataBytes = data == null ? null : WeatherCodec.encode(data);
+        int at = this.append(READING, reading.getLamport(), storedAt, station, reading.getSource(), dataBytes);
+        MappedByteBuffer buffer = this.mapped.get(this.segment);
+        return this.readingAt(buffer, at, buffer.getInt(at));
+    }
+
+    /**
+     * Appends a reading exactly as it is stored in another record, used by compaction.
+     * @param station The station ID.
+     * @param reading A reading read from this store.
+     * @return The copy.
+     * @throws IOException If a new segment could not be mapped.
+     */
+    public synchronized Reading copyReading(String station, Reading reading) throws IOException {
+        byte[] dataBytes = null;
+        if (reading.dataLength >= 0) {
+            dataBytes = new byte[reading.dataLength];
+            reading.segment.get(reading.dataOffset, dataBytes);
+        }
+        int at = this.append(READING, reading.getLamport(), reading.storedAt, station, reading.getSource(), dataBytes);
+        MappedByteBuffer buffer = this.mapped.get(this.segment);
+        return this.readingAt(buffer, at, buffer.getInt(at));
+    }
+
+    /**
+     * Appends a sender timestamp.
+     * @throws IOException If a new segment could not be mapped.
+     */
+    public synchronized void appendTime(String source, long time) throws IOException {
+        this.append(TIME, 0, time, source, null, null);
+    }
+
+    /**
+     * Appends the removal of a sender's readings from a station.
+     * @param storedUntil Only readings stored at or before this time were removed.
+     * @throws IOException If a new segment could not be mapped.
+     */
+    public synchronized void appendRemove(String station, String source, long storedUntil) throws IOException {
+        this.append(REMOVE, 0, storedUntil, station, source, null);
+    }
+
+    /**
+     * Starts a compaction in a new segment, the caller then appends every live record and calls endBase().
+     * @throws IOException If the new segment could not be mapped.
+     */
+    public synchronized void beginBase() throws IOException {
+        this.nextSegment();
+        this.baseSegment = this.segment;
+        this.append(BASE_START, 0, 0, "", null, null);
+    }
+
+    /**
+     * Completes a compaction: the base is forced to disk and the segments before it are deleted.
+     * @throws IOException If the base could not be forced.
+     */
+    public synchronized void endBase() throws IOException {
+        this.append(BASE_END, 0, 0, "", null, null);
+        this.force();
+        for (Integer number : new ArrayList<>(this.mapped.headMap(this.baseSegment).keySet())) {
+            this.sealedBytes -= this.usedBytes(this.mapped.remove(number));
+            // a reading still pointing into it keeps the mapping, the file is gone from the directory
+            Files.deleteIfExists(this.segmentPath(number));
+        }
+        this.baseSegment = -1;
+    }
+
+    /**
+     * Forces the appended records according to the sync policy. Called after a change, outside the caller's lock.
+     * @throws IOException If the segment could not be forced.
+     */
+    public synchronized void sync() throws IOException {
+        if (this.syncPolicy == WriteAheadLog.SyncPolicy.ALWAYS
+                || (this.syncPolicy == WriteAheadLog.SyncPolicy.INTERVAL
+                    && System.currentTimeMillis() - this.lastSync >= this.syncInterval)) {
+            this.force();
+        }
+    }
+
+    private void force() {
+        if (this.position > this.syncedPosition) {
+            this.mapped.get(this.segment).force(this.syncedPosition, this.position - this.syncedPosition);
+            this.syncedPosition = this.position;
+        }
+        this.lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Bytes used by records in the mapped segments.
+     * @return The used size, not counting the free end of the current segment.
+     */
+    public synchronized long size() {
+        return this.sealedBytes + this.position;
+    }
+
+    /**
+     * Number of segment files.
+     * @return The segment count.
+     */
+    public synchronized int getSegmentCount() {
+        return this.mapped.size();
+    }
+
+    /**
+     * Drops every record, used when the store is cleared.
+     * @throws IOException If the segments could not be deleted or a new one mapped.
+     */
+    public synchronized void truncate() throws IOException {
+        for (Integer number : new ArrayList<>(this.mapped.keySet())) {
+            Files.deleteIfExists(this.segmentPath(number));
+        }
+        this.mapped.clear();
+        this.segment++;
+        this.position = 0;
+        this.syncedPosition = 0;
+        this.sealedBytes = 0;
+        this.mapped.put(this.segment, this.map(this.segment));
+    }
+
+    /**
+     * Forces what was appended. The mappings stay until the readings using them are gone.
+     */
+    public synchronized void close() {
+        if (!this.mapped.isEmpty()) {
+            this.force();
+        }
+    }
+
+    /**
+     * Writes one record at the end of the current segment, starting a new segment if it does not fit.
+     * @return The offset of the record in the current segment.
+     */
+    private int append(byte type, int lamport, long time, String key, String source, byte[] data) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] sourceBytes = source == null ? null : source.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + keyBytes.length + (sourceBytes == null ? 0 : sourceBytes.length)
+                + (data == null ? 0 : data.length);
+        if (length > this.segmentSize) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a segment");
+        }
+        if (this.mapped.isEmpty()) {
+            throw new IllegalStateException("Store not replayed");
+        }
+        // a zero length after the last record ends a segment, so one always has to fit behind it
+        if (this.position + length + 4 > this.segmentSize) {
+            this.nextSegment();
+        }
+        MappedByteBuffer buffer = this.mapped.get(this.segment);
+        int at = this.position;
+        ByteBuffer record = buffer.duplicate();
+        record.position(at + 8);
+        record.put(type);
+        record.putInt(lamport);
+        record.putLong(time);
+        record.putShort((short) keyBytes.length);
+        record.putShort((short) (sourceBytes == null ? -1 : sourceBytes.length));
+        record.putInt(data == null ? -1 : data.length);
+        record.put(keyBytes);
+        if (sourceBytes != null) {
+            record.put(sourceBytes);
+        }
+        if (data != null) {
+            record.put(data);
+        }
+        buffer.putInt(at + 4, this.crc(buffer, at, length));
+        buffer.putInt(at, length);
+        this.position = at + length;
+        return at;
+    }
+
+    private void nextSegment() throws IOException {
+        // records of the old segment are on disk before anything lands in the new one
+        this.force();
+        this.sealedBytes += this.position;
+        this.segment++;
+        this.position = 0;
+        this.syncedPosition = 0;
+        this.mapped.put(this.segment, this.map(this.segment));
+    }
+
+    /**
+     * Length of the record at an offset, or 0 if the segment ends there.
+     * @param verify Whether to check the crc, a record failing it was torn by a crash.
+     */
+    private int recordLength(ByteBuffer buffer, int at, boolean verify) {
+        if (at + HEADER > buffer.capacity()) {
+            return 0;
+        }
+        int length = buffer.getInt(at);
+        if (length < HEADER || at + length > buffer.capacity()) {
+            return 0;
+        }
+        if (verify && buffer.getInt(at + 4) != this.crc(buffer, at, length)) {
+            System.out.println("Dropping damaged store record at " + at);
+            buffer.putInt(at, 0);
+            return 0;
+        }
+        return length;
+    }
+
+    private int crc(ByteBuffer buffer, int at, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer body = buffer.duplicate();
+        body.position(at + 8);
+        body.limit(at + length);
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private byte typeAt(ByteBuffer buffer, int at) {
+        return this.recordLength(buffer, at, false) == 0 ? 0 : buffer.get(at + 8);
+    }
+
+    private long usedBytes(ByteBuffer buffer) {
+        int at = 0;
+        int length;
+        while ((length = this.recordLength(buffer, at, false)) != 0) {
+            at += length;
+        }
+        return at;
+    }
+
+    private void visit(Visitor visitor, MappedByteBuffer buffer, int at, int length) {
+        byte type = buffer.get(at + 8);
+        long time = buffer.getLong(at + 13);
+        int keyLength = buffer.getShort(at + 21);
+        int sourceLength = buffer.getShort(at + 23);
+        String key = this.string(buffer, at + HEADER, keyLength);
+        String source = this.string(buffer, at + HEADER + keyLength, sourceLength);
+        if (type == READING) {
+            visitor.reading(key, this.readingAt(buffer, at, length));
+        } else if (type == TIME) {
+            visitor.time(key, time);
+        } else if (type == REMOVE) {
+            visitor.remove(key, source, time);
+        }
+    }
+
+    private Reading readingAt(MappedByteBuffer buffer, int at, int length) {
+        int lamport = buffer.getInt(at + 9);
+        long storedAt = buffer.getLong(at + 13);
+        int keyLength = buffer.getShort(at + 21);
+        int sourceLength = buffer.getShort(at + 23);
+        int dataLength = buffer.getInt(at + 25);
+        String source = this.string(buffer, at + HEADER + keyLength, sourceLength);
+        int dataOffset = at + HEADER + keyLength + Math.max(0, sourceLength);
+        return new Reading(lamport, source, buffer, dataOffset, dataLength, length, storedAt);
+    }
+
+    private String string(ByteBuffer buffer, int at, int length) {
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(at, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private MappedByteBuffer map(int number) throws IOException {
+        Files.createDirectories(this.directory);
+        try (FileChannel channel = FileChannel.open(this.segmentPath(number), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+        }
+    }
+
+    private Path segmentPath(int number) {
+        return this.directory.resolve(String.format("%s%06d.seg", this.prefix, number));
+    }
+
+    /**
+     * Numbers of the segment files on disk, in ascending order.
+     */
+    private List<Integer> segments() {
+        List<Integer> numbers = new ArrayList<>();
+        if (!Files.isDirectory(this.directory)) {
+            return numbers;
+        }
+        try (Stream<Path> files = Files.list(this.directory)) {
+            files.map(file -> file.getFileName().toString())
+                 .filter(name -> name.startsWith(this.prefix) && name.endsWith(".seg"))
+                 .map(name -> name.substring(this.prefix.length(), name.length() - ".seg".length()))
+                 .filter(number -> !number.isEmpty() && number.chars().allMatch(Character::isDigit))
+                 .forEach(number -> numbers.add(Integer.parseInt(number)));
+        } catch (IOException e) {
+            System.out.println("Error listing store segments: " + e.getMessage());
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+}
@@ -0,0 +1,186 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+public class MappedSegmentStore_Test {
+
+    /**
+     * Collects what a replay hands over.
+     */
+    private static class Collector implements MappedSegmentStore.Visitor {
+        private final List<String> stations = new ArrayList<>();
+        private final List<MappedSegmentStore.Reading> readings = new ArrayList<>();
+        private final Map<String, Long> times = new HashMap<>();
+        private final List<String> removed = new ArrayList<>();
+        private int resets;
+
+        @Override
+        public void reset() {
+            this.stations.clear();
+            this.readings.clear();
+            this.times.clear();
+            this.removed.clear();
+            this.resets++;
+        }
+
+        @Override
+        public void reading(String station, MappedSegmentStore.Reading reading) {
+            this.stations.add(station);
+            this.readings.add(reading);
+        }
+
+        @Override
+        public void time(String source, long time) {
+            this.times.put(source, time);
+        }
+
+        @Override
+        public void remove(String station, String source, long storedUntil) {
+            this.removed.add(station + "/" + source + "/" + storedUntil);
+        }
+    }
+
+    private static WeatherFormat reading(int lamport, String source, String temperature) {
+        JsonObject data = new JsonObject();
+        data.addProperty("id", "IDS60901");
+        data.addProperty("air_temp", temperature);
+        return new WeatherFormat(lamport, source, data);
+    }
+
+    private static MappedSegmentStore open(Path dir, int segmentSize) throws IOException {
+        MappedSegmentStore store = new MappedSegmentStore(dir.resolve("store").toString(), segmentSize);
+        store.replay(new Collector());
+        return store;
+    }
+
+    @Test
+    void testAppendAndReplay(@TempDir Path tempDir) throws IOException {
+        MappedSegmentStore store = open(tempDir, 4096);
+        store.appendTime("ContentServer1", 1000);
+        MappedSegmentStore.Reading stored = store.appendReading("IDS60901", reading(3, "ContentServer1", "13.3"), 1234);
+        store.appendReading("IDS60902", new WeatherFormat(4, null, null), 1235);
+        store.appendRemove("IDS60901", "ContentServer1", 2000);
+        store.close();
+        assertEquals("13.3", stored.getData().get("air_temp").getAsString());
+
+        Collector collected = new Collector();
+        assertEquals(4, new MappedSegmentStore(tempDir.resolve("store").toString(), 4096).replay(collected));
+        assertEquals(List.of("IDS60901", "IDS60902"), collected.stations);
+        MappedSegmentStore.Reading first = collected.readings.get(0);
+        assertEquals(3, first.getLamport());
+        assertEquals("ContentServer1", first.getSource());
+        assertEquals(1234, first.getStoredAt());
+        assertEquals("13.3", first.getData().get("air_temp").getAsString());
+        assertNull(collected.readings.get(1).getSource());
+        assertNull(collected.readings.get(1).getData());
+        assertEquals(Long.valueOf(1000), collected.times.get("ContentServer1"));
+        assertEquals(List.of("IDS60901/ContentServer1/2000"), collected.removed);
+    }
+
+    @Test
+    void testTornRecordIsDropped(@TempDir Path tempDir) throws IOException {
+        MappedSegmentStore store = open(tempDir, 4096);
+        store.appendReading("IDS60901", reading(1, "ContentServer1", "10"), 1);
+        store.appendReading("IDS60901", reading(2, "ContentServer1", "11"), 2);
+        store.close();
+        // a crash in the middle of the second record, its length made it to disk but not all of its bytes
+        try (FileChannel file = FileChannel.open(tempDir.resolve("store-000001.seg"), StandardOpenOption.WRITE)) {
+            long second = store.size() - 10;
+            file.write(ByteBuffer.wrap(new byte[]{0x7f, 0x7f, 0x7f}), second);
+        }
+
+        Collector collected = new Collector();
+        MappedSegmentStore reopened = new MappedSegmentStore(tempDir.resolve("store").toString(), 4096);
+        assertEquals(1, reopened.replay(collected));
+        assertEquals(1, collected.readings.get(0).getLamport());
+
+        // new records go after the last good one
+        reopened.appendReading("IDS60901", reading(3, "ContentServer1", "12"), 3);
+        reopened.close();
+        Collector again = new Collector();
+        assertEquals(2, new MappedSegmentStore(tempDir.resolve("store").toString(), 4096).replay(again));
+        assertEquals(3, again.readings.get(1).getLamport());
+    }
+
+    @Test
+    void testSegmentsAndCompaction(@TempDir Path tempDir) throws IOException {
+        MappedSegmentStore store = open(tempDir, 512);
+        List<MappedSegmentStore.Reading> live = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            MappedSegmentStore.Reading stored = store.appendReading("IDS60901", reading(i, "ContentServer1", "t" + i), i);
+            if (i >= 35) {
+                live.add(stored);
+            }
+        }
+        assertTrue(store.getSegmentCount() > 1, "Records should spill into more segments");
+        long before = store.size();
+
+        store.beginBase();
+        List<MappedSegmentStore.Reading> copies = new ArrayList<>();
+        for (MappedSegmentStore.Reading reading : live) {
+            copies.add(store.copyReading("IDS60901", reading));
+        }
+        store.appendTime("ContentServer1", 99);
+        store.endBase();
+        store.close();
+        assertTrue(store.size() < before / 4);
+        assertEquals("t35", copies.get(0).getData().get("air_temp").getAsString());
+        assertEquals(35, copies.get(0).getStoredAt());
+
+        Collector collected = new Collector();
+        assertEquals(6, new MappedSegmentStore(tempDir.resolve("store").toString(), 512).replay(collected));
+        assertEquals(5, collected.readings.size());
+        assertEquals(35, collected.readings.get(0).getLamport());
+        assertEquals(Long.valueOf(99), collected.times.get("ContentServer1"));
+    }
+
+    @Test
+    void testUnfinishedCompactionIsDropped(@TempDir Path tempDir) throws IOException {
+        MappedSegmentStore store = open(tempDir, 512);
+        List<MappedSegmentStore.Reading> stored = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            stored.add(store.appendReading("IDS60901", reading(i, "ContentServer1", "t" + i), i));
+        }
+        // a crash before endBase
+        store.beginBase();
+        store.copyReading("IDS60901", stored.get(2));
+        store.close();
+
+        Collector collected = new Collector();
+        MappedSegmentStore reopened = new MappedSegmentStore(tempDir.resolve("store").toString(), 512);
+        assertEquals(3, reopened.replay(collected));
+        assertEquals(3, collected.readings.size());
+        assertEquals(1, reopened.getSegmentCount(), "The unfinished base should be deleted");
+
+        reopened.appendReading("IDS60901", reading(3, "ContentServer1", "t3"), 3);
+        reopened.close();
+        assertEquals(4, new MappedSegmentStore(tempDir.resolve("store").toString(), 512).replay(new Collector()));
+    }
+
+    @Test
+    void testClear(@TempDir Path tempDir) throws IOException {
+        MappedSegmentStore store = open(tempDir, 4096);
+        store.appendTime("ContentServer1", 1);
+        store.truncate();
+        assertEquals(0, store.size());
+        store.appendTime("ContentServer2", 2);
+        store.close();
+
+        Collector collected = new Collector();
+        assertEquals(1, new MappedSegmentStore(tempDir.resolve("store").toString(), 4096).replay(collected));
+        assertEquals(Long.valueOf(2), collected.times.get("ContentServer2"));
+    }
+}
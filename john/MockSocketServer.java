@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.net.Socket;
 
 public class MockSocketServer extends SocketServer {
@@ -17,6 +18,15 @@ public class MockSocketServer extends SocketServer {
         return lastRequest;
     }
 
+    @Override
+    public HttpRequest readRequest(Socket clientSocket) {
+        try {
+            return lastRequest != null ? HttpParser.parse(lastRequest) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     @Override
     public void response(String response, Socket clientSocket) {
         // Instead of actually writing to a socket, just store the response
@@ -49,6 +59,13 @@ public class MockSocketServer extends SocketServer {
         return preparedResponse;
     }
 
+    @Override
+    public String sendRequest(String serverName, int portNumber, String data, boolean isContentServer) {
+        lastRequest = data;
+        requestCount++;
+        return preparedResponse;
+    }
+
     // @Override
     // public void start(int port) {
     //     isClosed = false;
@@ -0,0 +1,382 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking alternative to SocketServer built on a Selector.
+ * A single event loop accepts connections and reads requests from all of them, and complete
+ * requests are handed to a worker pool. Idle connections only cost a registered channel and a
+ * small buffer, so thousands of them can stay open without a thread each.
+ * AggregationServer and MainAggregationServer switch to this engine when constructed with it.
+ */
+public class NioSocketServer {
+    private static final int INITIAL_BUFFER = 512;
+
+    /**
+     * Callbacks used by the event loop.
+     * onConnect runs on the selector thread and must not block, handle runs on the worker pool.
+     */
+    public interface Handler {
+        /**
+         * Called once when a connection is accepted.
+         * @param connection The new connection.
+         * @return Text pushed to the client straight away (e.g. the Lamport greeting), or null.
+         */
+        String onConnect(Connection connection);
+
+        /**
+         * Called with every complete request read from the connection.
+         * @param connection The connection the request arrived on.
+         * @param request The parsed request, it owns its bytes and can be kept.
+         * @return The response to write back.
+         */
+        String handle(Connection connection, HttpRequest request);
+    }
+
+    /**
+     * Per-connection state owned by the event loop.
+     */
+    public static class Connection {
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER);
+        private volatile boolean closeAfterWrite;
+        private volatile Object attachment;
+        // a request is with a worker, the next one is not read until its response is queued
+        private volatile boolean busy;
+        private long lastActivity = System.currentTimeMillis();
+        private int requestCount;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Closes the connection once everything queued so far has been written.
+         */
+        public void closeAfterWrite() {
+            this.closeAfterWrite = true;
+        }
+
+        public void attach(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public Object attachment() {
+            return this.attachment;
+        }
+
+        public String getRemoteAddress() {
+            try {
+                return String.valueOf(this.channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "unknown";
+            }
+        }
+    }
+
+    private final int workerCount;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private ExecutorService workers;
+    private volatile boolean running;
+    private final Queue<Connection> readyToWrite = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    // only used by the event loop thread
+    private final HttpParser parser = new HttpParser();
+    private Handler handler;
+    private int idleTimeout = SocketServer.DEFAULT_IDLE_TIMEOUT;
+    private int maxRequestsPerConnection = SocketServer.DEFAULT_MAX_REQUESTS;
+    private long lastIdleSweep;
+
+    public NioSocketServer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param workerCount Number of threads handling complete requests.
+     */
+    public NioSocketServer(int workerCount) {
+        this.workerCount = Math.max(1, workerCount);
+    }
+
+    /**
+     * Configures keep-alive connections, for clients that send Connection: keep-alive.
+     * Idle connections cost no thread on this engine, they are closed by the event loop once idle too long.
+     * @param idleTimeout Milliseconds a connection may stay without a request before it is closed.
+     * @param maxRequestsPerConnection Requests served on one connection before it is closed.
+     */
+    public void setKeepAlive(int idleTimeout, int maxRequestsPerConnection) {
+        this.idleTimeout = Math.max(1, idleTimeout);
+        this.maxRequestsPerConnection = Math.max(1, maxRequestsPerConnection);
+    }
+
+    /**
+     * Binds the listening channel on the specified port.
+     * The event loop is started separately with serve().
+     * @param port The port number to start the server on.
+     */
+    public void start(int port) {
+        this.close();
+        try {
+            this.selector = Selector.open();
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.configureBlocking(false);
+            this.serverChannel.bind(new InetSocketAddress(port));
+            this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+            this.workers = Executors.newFixedThreadPool(this.workerCount);
+            this.running = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the event loop on the calling thread until close() is called.
+     * @param handler Callbacks for new connections and complete requests.
+     */
+    public void serve(Handler handler) {
+        if (this.selector == null) {
+            throw new IllegalStateException("Server not started");
+        }
+        this.handler = handler;
+        try {
+            while (this.running) {
+                this.selector.select(1000);
+                this.flushReadyToWrite();
+                this.closeIdleConnections();
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            this.acceptConnection(handler);
+                        } else {
+                            if (key.isReadable()) {
+                                this.readConnection(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                this.writeConnection(key);
+                            }
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        // a key is cancelled under the loop when close() closes its channel
+                        this.closeConnection((Connection) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (this.running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Number of connections currently open on this engine.
+     * @return The open connection count.
+     */
+    public int getOpenConnections() {
+        return this.openConnections.get();
+    }
+
+    /**
+     * Stops the event loop, the worker pool and closes every open connection.
+     */
+    public void close() {
+        this.running = false;
+        try {
+            if (this.selector != null) {
+                for (SelectionKey key : this.selector.keys()) {
+                    key.channel().close();
+                }
+                this.selector.close();
+            }
+            if (this.serverChannel != null) this.serverChannel.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (this.workers != null) {
+            this.workers.shutdownNow();
+        }
+    }
+
+    private void acceptConnection(Handler handler) throws IOException {
+        SocketChannel channel = this.serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+        this.openConnections.incrementAndGet();
+
+        String greeting = handler.onConnect(connection);
+        if (greeting != null) {
+            connection.pendingWrites.add(ByteBuffer.wrap(greeting.getBytes(StandardCharsets.UTF_8)));
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void readConnection(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (!connection.readBuffer.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(connection.readBuffer.capacity() * 2);
+            connection.readBuffer.flip();
+            bigger.put(connection.readBuffer);
+            connection.readBuffer = bigger;
+        }
+        int read = connection.channel.read(connection.readBuffer);
+        if (read == -1) {
+            this.closeConnection(connection);
+            return;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+        this.dispatchBuffered(connection);
+    }
+
+    /**
+     * Hands the next complete request in the connection buffer to a worker, if there is one.
+     * @param connection A connection that is not busy with another request.
+     */
+    private void dispatchBuffered(Connection connection) throws IOException {
+        HttpRequest parsed = this.parser.parse(connection.readBuffer.array(), 0, connection.readBuffer.position());
+        if (parsed == null) {
+            return;
+        }
+        // the worker gets its own copy, the connection buffer is reused for the next request
+        HttpRequest request = parsed.detach();
+        connection.readBuffer.flip();
+        connection.readBuffer.position(parsed.getEnd());
+        connection.readBuffer.compact();
+
+        if (!this.running) {
+            this.closeConnection(connection);
+            return;
+        }
+        boolean keepAlive = request.isKeepAlive() && ++connection.requestCount < this.maxRequestsPerConnection;
+        // Stop reading until the response is queued, the protocol is one request at a time.
+        connection.busy = true;
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        Handler handler = this.handler;
+        try {
+            this.workers.execute(() -> {
+                try {
+                    String response = handler.handle(connection, request);
+                    boolean keep = keepAlive && this.running && !connection.closeAfterWrite;
+                    if (!keep) {
+                        connection.closeAfterWrite();
+                    }
+                    this.send(connection, request.isKeepAlive() ? SocketServer.withConnectionHeader(response, keep) : response);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    connection.closeAfterWrite();
+                    this.send(connection, null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // close() shut the pool down while this request was being read, it is dropped with its connection
+            this.closeConnection(connection);
+        }
+    }
+
+    /**
+     * Closes connections that have been waiting for a request longer than the idle timeout.
+     * Runs on the event loop at most once a second.
+     */
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastIdleSweep < 1000) {
+            return;
+        }
+        this.lastIdleSweep = now;
+        for (SelectionKey key : this.selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection connection = (Connection) attachment;
+                if (!connection.busy && connection.pendingWrites.isEmpty()
+                        && now - connection.lastActivity > this.idleTimeout) {
+                    this.closeConnection(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a response for the event loop to write. Safe to call from any thread.
+     * @param connection The connection to write to.
+     * @param response The response text, or null to only apply a pending close.
+     */
+    private void send(Connection connection, String response) {
+        if (response != null) {
+            connection.pendingWrites.add(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)));
+        }
+        connection.busy = false;
+        this.readyToWrite.add(connection);
+        this.selector.wakeup();
+    }
+
+    private void flushReadyToWrite() {
+        Connection connection;
+        while ((connection = this.readyToWrite.poll()) != null) {
+            if (connection.key.isValid()) {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void writeConnection(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer;
+        while ((buffer = connection.pendingWrites.peek()) != null) {
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            connection.pendingWrites.poll();
+        }
+        if (connection.closeAfterWrite) {
+            this.closeConnection(connection);
+        } else if (connection.busy) {
+            // only the greeting went out, the request is still with a worker
+            key.interestOps(0);
+        } else {
+            connection.lastActivity = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ);
+            // the client may have sent its next request while this response was pending
+            this.dispatchBuffered(connection);
+        }
+    }
+
+    private void closeConnection(Connection connection) {
+        if (connection == null || !connection.channel.isOpen()) {
+            return;
+        }
+        try {
+            connection.key.cancel();
+            connection.channel.close();
+            this.openConnections.decrementAndGet();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
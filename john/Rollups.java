@@ -0,0 +1,292 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Running count, sum, minimum and maximum of the numeric fields of each station's readings, kept in
+ * buckets of ingest time and of Lamport time, so a windowed aggregate is a merge of a window's buckets
+ * and no reading is read again. DatabaseManagement adds each reading as it is saved.
+ * A window is widened to whole buckets, the answer says which bounds it covers. Time buckets older than
+ * HORIZON are dropped, and a station keeps MAX_BUCKETS of each kind per sender at most.
+ * The buckets of a station are kept per sender, and DatabaseManagement removes a sender's buckets when the
+ * sender expires, so count, sum, minimum and maximum leave out expired readings exactly. Readings dropped
+ * by the retention are still counted; a station with no readings left is left out of the answers by
+ * DatabaseManagement.
+ */
+public class Rollups {
+    // the fields that are rolled up, in the order of a bucket's slots
+    public static final List<String> FIELDS = List.of(
+        "air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt");
+    static final long TIME_BUCKET = 10000;
+    static final long LAMPORT_BUCKET = 16;
+    static final long HORIZON = 3600000;
+    static final int MAX_BUCKETS = 256;
+
+    private final Map<String, StationRollup> stations = new ConcurrentHashMap<>();
+
+    /**
+     * A span of ingest times or of Lamport times, bounds included.
+     */
+    public static final class Window {
+        private final boolean lamport;
+        private final long from;
+        private final long to;
+
+        private Window(boolean lamport, long from, long to) {
+            this.lamport = lamport;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @param from First ingest time, in milliseconds.
+         * @param to Last ingest time, in milliseconds.
+         */
+        public static Window byTime(long from, long to) {
+            return new Window(false, from, to);
+        }
+
+        /**
+         * @param from First Lamport time.
+         * @param to Last Lamport time.
+         */
+        public static Window byLamport(long from, long to) {
+            return new Window(true, from, to);
+        }
+
+        private long width() {
+            return this.lamport ? LAMPORT_BUCKET : TIME_BUCKET;
+        }
+
+        /**
+         * The window widened to whole buckets.
+         * @return The kind and the bounds the buckets cover.
+         */
+        public JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("by", this.lamport ? "lamport" : "time");
+            json.addProperty("from", Math.floorDiv(this.from, this.width()) * this.width());
+            json.addProperty("to", Math.floorDiv(this.to, this.width()) * this.width() + this.width() - 1);
+            return json;
+        }
+    }
+
+    /**
+     * Count, sum, minimum and maximum of every rolled up field.
+     */
+    public static final class Aggregate {
+        private final long[] count = new long[FIELDS.size()];
+        private final double[] sum = new double[FIELDS.size()];
+        private final double[] min = new double[FIELDS.size()];
+        private final double[] max = new double[FIELDS.size()];
+
+        private Aggregate() {
+            Arrays.fill(this.min, Double.POSITIVE_INFINITY);
+            Arrays.fill(this.max, Double.NEGATIVE_INFINITY);
+        }
+
+        private void add(int field, double value) {
+            this.count[field]++;
+            this.sum[field] += value;
+            this.min[field] = Math.min(this.min[field], value);
+            this.max[field] = Math.max(this.max[field], value);
+        }
+
+        private void merge(Aggregate other) {
+            for (int i = 0; i < this.count.length; i++) {
+                this.count[i] += other.count[i];
+                this.sum[i] += other.sum[i];
+                this.min[i] = Math.min(this.min[i], other.min[i]);
+                this.max[i] = Math.max(this.max[i], other.max[i]);
+            }
+        }
+
+        /**
+         * Readings in the window with a value of a field.
+         * @param field One of FIELDS.
+         */
+        public long getCount(String field) {
+            return this.count[FIELDS.indexOf(field)];
+        }
+
+        public double getMin(String field) {
+            int i = FIELDS.indexOf(field);
+            return this.count[i] == 0 ? Double.NaN : this.min[i];
+        }
+
+        public double getMax(String field) {
+            int i = FIELDS.indexOf(field);
+            return this.count[i] == 0 ? Double.NaN : this.max[i];
+        }
+
+        public double getAverage(String field) {
+            int i = FIELDS.indexOf(field);
+            return this.count[i] == 0 ? Double.NaN : this.sum[i] / this.count[i];
+        }
+
+        /**
+         * The aggregates of some fields, a field without values has only its count.
+         * @param fields Fields out of FIELDS.
+         * @return One object per field with count, min, max and avg.
+         */
+        public JsonObject toJson(List<String> fields) {
+            JsonObject json = new JsonObject();
+            for (String field : fields) {
+                JsonObject values = new JsonObject();
+                values.addProperty("count", this.getCount(field));
+                if (this.getCount(field) > 0) {
+                    values.addProperty("min", this.getMin(field));
+                    values.addProperty("max", this.getMax(field));
+                    values.addProperty("avg", this.getAverage(field));
+                }
+                json.add(field, values);
+            }
+            return json;
+        }
+    }
+
+    /**
+     * The buckets of one sender's readings of a station.
+     */
+    private static final class Buckets {
+        private final TreeMap<Long, Aggregate> byTime = new TreeMap<>();
+        private final TreeMap<Long, Aggregate> byLamport = new TreeMap<>();
+
+        private void add(double[] values, int lamport, long storedAt) {
+            long timeBucket = Math.floorDiv(storedAt, TIME_BUCKET);
+            addTo(this.byTime, timeBucket, values);
+            addTo(this.byLamport, Math.floorDiv(lamport, LAMPORT_BUCKET), values);
+            this.byTime.headMap(Math.floorDiv(storedAt - HORIZON, TIME_BUCKET)).clear();
+        }
+
+        private static void addTo(TreeMap<Long, Aggregate> buckets, long bucket, double[] values) {
+            Aggregate aggregate = buckets.computeIfAbsent(bucket, b -> new Aggregate());
+            for (int i = 0; i < values.length; i++) {
+                if (!Double.isNaN(values[i])) {
+                    aggregate.add(i, values[i]);
+                }
+            }
+            while (buckets.size() > MAX_BUCKETS) {
+                buckets.pollFirstEntry();
+            }
+        }
+
+        /**
+         * Merges the buckets of the window into total.
+         * @return true if the window has a bucket.
+         */
+        private boolean query(Window window, Aggregate total) {
+            TreeMap<Long, Aggregate> buckets = window.lamport ? this.byLamport : this.byTime;
+            long from = Math.floorDiv(window.from, window.width());
+            long to = Math.floorDiv(window.to, window.width());
+            if (from > to) {
+                return false;
+            }
+            Map<Long, Aggregate> inWindow = buckets.subMap(from, true, to, true);
+            for (Aggregate bucket : inWindow.values()) {
+                total.merge(bucket);
+            }
+            return !inWindow.isEmpty();
+        }
+    }
+
+    /**
+     * The buckets of one station, by sender.
+     */
+    private static final class StationRollup {
+        // a reading without a sender is kept under null
+        private final Map<String, Buckets> bySource = new HashMap<>();
+
+        private synchronized void add(String source, double[] values, int lamport, long storedAt) {
+            this.bySource.computeIfAbsent(source, s -> new Buckets()).add(values, lamport, storedAt);
+        }
+
+        private synchronized void removeSource(String source) {
+            this.bySource.remove(source);
+        }
+
+        /**
+         * @return The merged buckets of the window, null if it has none.
+         */
+        private synchronized Aggregate query(Window window) {
+            Aggregate total = new Aggregate();
+            boolean any = false;
+            for (Buckets buckets : this.bySource.values()) {
+                any |= buckets.query(window, total);
+            }
+            return any ? total : null;
+        }
+    }
+
+    /**
+     * Adds a saved reading to its station's buckets.
+     * @param station The station ID.
+     * @param reading The reading, fields that are missing or not numbers are not counted.
+     * @param storedAt The time it was saved, in milliseconds.
+     */
+    public void add(String station, WeatherFormat reading, long storedAt) {
+        double[] values = new double[FIELDS.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = reading.getNumber(FIELDS.get(i));
+        }
+        this.stations.computeIfAbsent(station, s -> new StationRollup())
+                .add(reading.getSource(), values, reading.getLamport(), storedAt);
+    }
+
+    /**
+     * Takes an expired sender's readings out of every station's buckets.
+     * @param source The sender.
+     */
+    public void removeSource(String source) {
+        for (StationRollup station : this.stations.values()) {
+            station.removeSource(source);
+        }
+    }
+
+    /**
+     * Aggregates of the stations over a window.
+     * @param station A station ID, or null for every station.
+     * @param window The window.
+     * @param include Which stations to answer for, stations without data are left out.
+     * @return The aggregates of each station with buckets in the window.
+     */
+    public Map<String, Aggregate> query(String station, Window window, Predicate<String> include) {
+        Map<String, Aggregate> result = new HashMap<>();
+        StationRollup one = station == null ? null : this.stations.get(station);
+        Map<String, StationRollup> stations = station == null ? this.stations
+                : one == null ? Map.of() : Map.of(station, one);
+        for (Map.Entry<String, StationRollup> entry : stations.entrySet()) {
+            Aggregate aggregate = include.test(entry.getKey()) ? entry.getValue().query(window) : null;
+            if (aggregate != null) {
+                result.put(entry.getKey(), aggregate);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges the aggregates of several stations.
+     * @param aggregates Aggregates as returned by query.
+     * @return Their combined aggregate.
+     */
+    public static Aggregate combine(Iterable<Aggregate> aggregates) {
+        Aggregate total = new Aggregate();
+        for (Aggregate aggregate : aggregates) {
+            total.merge(aggregate);
+        }
+        return total;
+    }
+
+    /**
+     * Drops every station's buckets.
+     */
+    public void clear() {
+        this.stations.clear();
+    }
+}
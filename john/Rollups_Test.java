@@ -0,0 +1,107 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+public class Rollups_Test {
+
+    private static WeatherFormat reading(int lamport, String temperature, Double pressure) {
+        return reading(lamport, temperature, pressure, "ContentServer1");
+    }
+
+    private static WeatherFormat reading(int lamport, String temperature, Double pressure, String source) {
+        JsonObject data = new JsonObject();
+        data.addProperty("id", "IDS60901");
+        data.addProperty("air_temp", temperature);
+        if (pressure != null) {
+            data.addProperty("press", pressure);
+        }
+        return new WeatherFormat(lamport, source, data);
+    }
+
+    @Test
+    void testTimeWindow() {
+        Rollups rollups = new Rollups();
+        rollups.add("IDS60901", reading(1, "10.5", 1000.0), 0);
+        rollups.add("IDS60901", reading(2, "12.5", null), 5000);
+        rollups.add("IDS60901", reading(3, "-3", 1020.0), 25000);
+        rollups.add("IDS60902", reading(4, "30", 990.0), 26000);
+        rollups.add("IDS60902", reading(5, "n/a", null), 27000);
+
+        Map<String, Rollups.Aggregate> first = rollups.query(null, Rollups.Window.byTime(0, 9999), s -> true);
+        assertEquals(1, first.size());
+        Rollups.Aggregate station = first.get("IDS60901");
+        assertEquals(2, station.getCount("air_temp"));
+        assertEquals(10.5, station.getMin("air_temp"));
+        assertEquals(12.5, station.getMax("air_temp"));
+        assertEquals(11.5, station.getAverage("air_temp"));
+        assertEquals(1, station.getCount("press"));
+        assertEquals(0, station.getCount("dewpt"));
+        assertTrue(Double.isNaN(station.getAverage("dewpt")));
+
+        Map<String, Rollups.Aggregate> all = rollups.query(null, Rollups.Window.byTime(0, 30000), s -> true);
+        Rollups.Aggregate combined = Rollups.combine(all.values());
+        assertEquals(4, combined.getCount("air_temp"), "A value that is not a number is not counted");
+        assertEquals(-3, combined.getMin("air_temp"));
+        assertEquals(30, combined.getMax("air_temp"));
+        assertEquals(990, combined.getMin("press"));
+
+        assertTrue(rollups.query(null, Rollups.Window.byTime(0, 30000), s -> !s.equals("IDS60902")).containsKey("IDS60901"));
+        assertEquals(1, rollups.query(null, Rollups.Window.byTime(0, 30000), s -> !s.equals("IDS60902")).size());
+        assertTrue(rollups.query("IDS60903", Rollups.Window.byTime(0, 30000), s -> true).isEmpty());
+    }
+
+    @Test
+    void testLamportWindowAndBounds() {
+        Rollups rollups = new Rollups();
+        for (int lamport = 0; lamport < 64; lamport++) {
+            rollups.add("IDS60901", reading(lamport, String.valueOf(lamport), null), 0);
+        }
+        Rollups.Window window = Rollups.Window.byLamport(20, 40);
+        // widened to the buckets 16..31 and 32..47
+        assertEquals(16, window.toJson().get("from").getAsLong());
+        assertEquals(47, window.toJson().get("to").getAsLong());
+        Rollups.Aggregate aggregate = rollups.query("IDS60901", window, s -> true).get("IDS60901");
+        assertEquals(32, aggregate.getCount("air_temp"));
+        assertEquals(16, aggregate.getMin("air_temp"));
+        assertEquals(47, aggregate.getMax("air_temp"));
+
+        JsonObject json = aggregate.toJson(List.of("air_temp", "press"));
+        assertEquals(31.5, json.getAsJsonObject("air_temp").get("avg").getAsDouble());
+        assertFalse(json.getAsJsonObject("press").has("min"));
+    }
+
+    @Test
+    void testRemoveSource() {
+        Rollups rollups = new Rollups();
+        rollups.add("IDS60901", reading(1, "10", null, "ContentServer1"), 0);
+        rollups.add("IDS60901", reading(2, "40", null, "ContentServer2"), 1000);
+        rollups.add("IDS60901", reading(3, "20", null, "ContentServer1"), 2000);
+        rollups.add("IDS60902", reading(4, "50", null, "ContentServer2"), 3000);
+
+        // the sender's readings leave count, sum, minimum and maximum, the other sender's stay
+        rollups.removeSource("ContentServer2");
+        Rollups.Aggregate station = rollups.query("IDS60901", Rollups.Window.byTime(0, 9999), s -> true).get("IDS60901");
+        assertEquals(2, station.getCount("air_temp"));
+        assertEquals(10, station.getMin("air_temp"));
+        assertEquals(20, station.getMax("air_temp"));
+        assertEquals(15, station.getAverage("air_temp"));
+        assertTrue(rollups.query("IDS60902", Rollups.Window.byLamport(0, 15), s -> true).isEmpty());
+    }
+
+    @Test
+    void testOldBucketsAreDropped() {
+        Rollups rollups = new Rollups();
+        rollups.add("IDS60901", reading(1, "1", null), 0);
+        rollups.add("IDS60901", reading(2, "2", null), Rollups.HORIZON + Rollups.TIME_BUCKET);
+        assertTrue(rollups.query(null, Rollups.Window.byTime(0, 1), s -> true).isEmpty());
+        for (int i = 0; i < Rollups.MAX_BUCKETS + 10; i++) {
+            rollups.add("IDS60901", reading(100 + (int) Rollups.LAMPORT_BUCKET * i, "3", null), Rollups.HORIZON);
+        }
+        assertTrue(rollups.query(null, Rollups.Window.byLamport(0, 100), s -> true).isEmpty());
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Converts a shard's JSON snapshot, data.json and sender.json, into mapped segments encoded with
+ * WeatherCodec, so data kept with storage=json can be served with storage=mapped.
+ * Readings keep their order and count as stored at the time of the conversion. The JSON files are left
+ * in place. Run it once per shard directory, while the server is stopped and after its last checkpoint.
+ */
+public class SnapshotConverter {
+    private SnapshotConverter() {}
+
+    /**
+     * Converts the snapshot in a directory.
+     * @param directory The shard directory, data/ with a single shard.
+     * @return One line with the readings converted, the bytes before and after and the load times.
+     * @throws IOException If the snapshot could not be read or the segments written.
+     */
+    public static String convert(String directory) throws IOException {
+        Path dataFile = Paths.get(directory, "data.json");
+        Path senderFile = Paths.get(directory, "sender.json");
+        String basePath = directory + File.separator + "store";
+        MappedSegmentStore store = new MappedSegmentStore(basePath, MappedSegmentStore.DEFAULT_SEGMENT_SIZE);
+        if (store.replay(new Counter()) > 0) {
+            throw new IOException("Segments already exist in " + directory);
+        }
+
+        long jsonBytes = size(dataFile) + size(senderFile);
+        long started = System.nanoTime();
+        Map<String, List<WeatherFormat>> weatherData = read(dataFile,
+            new TypeToken<Map<String, List<WeatherFormat>>>(){}.getType());
+        Map<String, Long> senderTimestamp = read(senderFile, new TypeToken<Map<String, Long>>(){}.getType());
+        double jsonLoad = (System.nanoTime() - started) / 1e6;
+
+        int readings = 0;
+        long now = System.currentTimeMillis();
+        if (weatherData != null) {
+            for (Map.Entry<String, List<WeatherFormat>> entry : weatherData.entrySet()) {
+                for (WeatherFormat reading : entry.getValue()) {
+                    store.appendReading(entry.getKey(), reading, now);
+                    readings++;
+                }
+            }
+        }
+        if (senderTimestamp != null) {
+            for (Map.Entry<String, Long> entry : senderTimestamp.entrySet()) {
+                store.appendTime(entry.getKey(), entry.getValue());
+            }
+        }
+        store.sync();
+        store.close();
+        long storeBytes = store.size();
+
+        started = System.nanoTime();
+        new MappedSegmentStore(basePath, MappedSegmentStore.DEFAULT_SEGMENT_SIZE).replay(new Counter());
+        double storeLoad = (System.nanoTime() - started) / 1e6;
+        return String.format("readings=%d jsonBytes=%d storeBytes=%d jsonLoad=%.2fms storeLoad=%.2fms",
+                readings, jsonBytes, storeBytes, jsonLoad, storeLoad);
+    }
+
+    private static long size(Path file) throws IOException {
+        return Files.exists(file) ? Files.size(file) : 0;
+    }
+
+    private static <T> T read(Path file, Type type) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        return JsonHandling.convertObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), type);
+    }
+
+    /**
+     * Only counts the records, the conversion checks for existing segments and times a replay with it.
+     */
+    private static class Counter implements MappedSegmentStore.Visitor {
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void reading(String station, MappedSegmentStore.Reading reading) {
+        }
+
+        @Override
+        public void time(String source, long time) {
+        }
+
+        @Override
+        public void remove(String station, String source, long storedUntil) {
+        }
+    }
+
+    public static void main(String[] args) {
+        String directory = args.length > 0 ? args[0] : "data";
+        try {
+            System.out.println(convert(directory));
+        } catch (IOException e) {
+            System.out.println("Error converting " + directory + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class SnapshotConverter_Test {
+
+    @Test
+    void testConvert(@TempDir Path tempDir) throws IOException {
+        String data = "{\"IDS60901\":[{\"lamport\":1,\"source\":\"ContentServer1\",\"data\":{\"id\":\"IDS60901\",\"air_temp\":\"13.3\"}},"
+                + "{\"lamport\":4,\"source\":\"ContentServer1\",\"data\":{\"id\":\"IDS60901\",\"air_temp\":\"14.1\"}}],"
+                + "\"IDS60902\":[{\"lamport\":2,\"source\":\"ContentServer2\",\"data\":{\"id\":\"IDS60902\",\"air_temp\":\"9\"}}]}";
+        long now = System.currentTimeMillis();
+        Files.write(tempDir.resolve("data.json"), data.getBytes(StandardCharsets.UTF_8));
+        Files.write(tempDir.resolve("sender.json"), ("{\"ContentServer1\":" + now + ",\"ContentServer2\":" + now + "}")
+                .getBytes(StandardCharsets.UTF_8));
+
+        String report = SnapshotConverter.convert(tempDir.toString());
+        assertTrue(report.startsWith("readings=3 "), report);
+        assertThrows(IOException.class, () -> SnapshotConverter.convert(tempDir.toString()),
+                "A directory that already has segments is not converted again");
+
+        DatabaseManagement mapped = new DatabaseManagement(1, tempDir.toString(), StorageShard.Backend.MAPPED);
+        assertEquals(2, mapped.getWeatherData("IDS60901").size());
+        assertEquals("14.1", mapped.getWeatherData("IDS60901").latestAtOrBefore(10).getData().get("air_temp").getAsString());
+        assertEquals("9", mapped.getWeatherData("IDS60902").peek().getData().get("air_temp").getAsString());
+        assertEquals(4, mapped.getHighestLamportClock());
+        assertEquals(Long.valueOf(now), mapped.getSenderTimestamp("ContentServer2"));
+        mapped.close();
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming reader of a data.json snapshot, used by StorageShard on startup.
+ * The file is walked token by token, one station at a time, instead of being read into a String and
+ * bound as a whole, so the memory it needs is one station's readings and not a copy of the file.
+ * Each station's readings are handed to a pool that builds its StationHistory, which estimates every
+ * reading's size, while the next station is parsed. A bounded number of stations is in flight, so a
+ * slow pool holds the parser back rather than letting parsed readings pile up.
+ */
+final class SnapshotLoader {
+    private static final WeatherFormat.Adapter READING = new WeatherFormat.Adapter();
+
+    private SnapshotLoader() {}
+
+    /**
+     * What a load read and how long it took.
+     */
+    static final class Result {
+        final Map<String, StationHistory> histories;
+        final int readings;
+        final long bytes;
+        final long nanos;
+
+        private Result(Map<String, StationHistory> histories, int readings, long bytes, long nanos) {
+            this.histories = histories;
+            this.readings = readings;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Reads a snapshot and builds the history of each of its stations.
+     * @param file The data.json file.
+     * @param retention Retention of the new histories.
+     * @param storedAt Time the readings count as stored at for the age limit.
+     * @param pool Builds the histories.
+     * @param parallelism Stations parsed but not yet built at most.
+     * @return The histories, or null if the file is empty or holds null, as binding it with Gson gives.
+     * @throws IOException If the file could not be read or is not a snapshot.
+     */
+    static Result load(Path file, StationHistory.Retention retention, long storedAt, ExecutorService pool,
+                       int parallelism) throws IOException {
+        long started = System.nanoTime();
+        long bytes = Files.size(file);
+        Map<String, StationHistory> histories = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> builds = new ArrayList<>();
+        Semaphore inFlight = new Semaphore(Math.max(1, parallelism));
+        int readings = 0;
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             JsonReader reader = new JsonReader(in)) {
+            // as lenient as Gson.fromJson, which read the snapshots before
+            reader.setLenient(true);
+            try {
+                if (reader.peek() == JsonToken.NULL) {
+                    return null;
+                }
+            } catch (EOFException e) {
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String station = reader.nextName();
+                List<WeatherFormat> stationReadings = new ArrayList<>();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        WeatherFormat reading = READING.read(reader);
+                        if (reading != null) {
+                            stationReadings.add(reading);
+                        }
+                    }
+                    reader.endArray();
+                }
+                readings += stationReadings.size();
+                inFlight.acquireUninterruptibly();
+                builds.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        StationHistory history = new StationHistory(retention);
+                        for (WeatherFormat reading : stationReadings) {
+                            history.add(reading, storedAt);
+                        }
+                        histories.put(station, history);
+                    } finally {
+                        inFlight.release();
+                    }
+                }, pool));
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException | JsonParseException e) {
+            throw new IOException("Not a snapshot: " + e.getMessage(), e);
+        } finally {
+            // nothing is returned or thrown while a build still adds to the histories
+            CompletableFuture.allOf(builds.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+        }
+        for (CompletableFuture<Void> build : builds) {
+            build.join();
+        }
+        return new Result(histories, readings, bytes, System.nanoTime() - started);
+    }
+}
@@ -0,0 +1,108 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+public class SnapshotLoader_Test {
+
+    private static String snapshot(int stations, int readings) {
+        StringBuilder json = new StringBuilder("{");
+        int lamport = 0;
+        for (int s = 0; s < stations; s++) {
+            json.append(s == 0 ? "" : ",").append("\"IDS").append(60900 + s).append("\":[");
+            for (int r = 0; r < readings; r++) {
+                json.append(r == 0 ? "" : ",").append("{\"lamport\":").append(++lamport)
+                    .append(",\"source\":\"ContentServer").append(r % 3).append("\",\"data\":{\"id\":\"IDS")
+                    .append(60900 + s).append("\",\"air_temp\":\"").append(r).append(".5\",\"wind_spd_kt\":8}}");
+            }
+            json.append("]");
+        }
+        return json.append("}").toString();
+    }
+
+    @Test
+    void testMatchesGsonBinding(@TempDir Path tempDir) throws IOException {
+        String json = snapshot(40, 25);
+        Path file = tempDir.resolve("data.json");
+        Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+        Map<String, List<WeatherFormat>> bound = JsonHandling.convertObject(json,
+            new TypeToken<Map<String, List<WeatherFormat>>>(){}.getType());
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        SnapshotLoader.Result loaded = SnapshotLoader.load(file, StationHistory.Retention.DEFAULT, 0, pool, 2);
+        pool.shutdown();
+        assertEquals(1000, loaded.readings);
+        assertEquals(Files.size(file), loaded.bytes);
+        assertEquals(bound.keySet(), loaded.histories.keySet());
+        for (Map.Entry<String, List<WeatherFormat>> entry : bound.entrySet()) {
+            List<WeatherFormat> history = loaded.histories.get(entry.getKey()).toList();
+            assertEquals(entry.getValue().size(), history.size());
+            for (int i = 0; i < history.size(); i++) {
+                WeatherFormat expected = entry.getValue().get(i);
+                assertEquals(expected.getLamport(), history.get(i).getLamport());
+                assertEquals(expected.getSource(), history.get(i).getSource());
+                assertEquals(expected.getData(), history.get(i).getData());
+            }
+        }
+    }
+
+    @Test
+    void testEmptyAndMalformed(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("data.json");
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Files.write(file, new byte[0]);
+        assertNull(SnapshotLoader.load(file, StationHistory.Retention.DEFAULT, 0, pool, 1));
+        Files.write(file, "{\"IDS60901\":[{\"lamport\":1,\"data\":{\"id\"".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> SnapshotLoader.load(file, StationHistory.Retention.DEFAULT, 0, pool, 1));
+        Files.write(file, "[1, 2]".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> SnapshotLoader.load(file, StationHistory.Retention.DEFAULT, 0, pool, 1));
+        pool.shutdown();
+    }
+
+    @Test
+    void testBackupIsReadWhenTheSnapshotIsBroken(@TempDir Path tempDir) throws IOException {
+        Files.write(tempDir.resolve("data.json"), "{\"IDS60901\":[{\"lamp".getBytes(StandardCharsets.UTF_8));
+        Files.write(tempDir.resolve("data_backup.json"), snapshot(2, 3).getBytes(StandardCharsets.UTF_8));
+
+        DatabaseManagement db = new DatabaseManagement(1, tempDir.toString(), StorageShard.Backend.JSON);
+        assertEquals(3, db.getWeatherData("IDS60901").size());
+        assertEquals(6, db.getHighestLamportClock());
+        assertTrue(db.getLoadStats().startsWith("records=6 "), db.getLoadStats());
+        db.close();
+    }
+
+    @Test
+    void testAdapterWritesWhatGsonWrites() throws IOException {
+        JsonObject data = new JsonObject();
+        data.addProperty("id", "IDS60901");
+        data.addProperty("air_temp", 13.3);
+        WeatherFormat.Adapter adapter = new WeatherFormat.Adapter();
+        for (WeatherFormat reading : List.of(new WeatherFormat(7, "ContentServer1", data), new WeatherFormat(8, null, null))) {
+            StringWriter written = new StringWriter();
+            adapter.write(new JsonWriter(written), reading);
+            assertEquals(new Gson().toJson(reading), written.toString());
+
+            WeatherFormat read = adapter.read(new JsonReader(new StringReader(written.toString())));
+            assertEquals(reading.getLamport(), read.getLamport());
+            assertEquals(reading.getSource(), read.getSource());
+            assertEquals(reading.getData(), read.getData());
+        }
+    }
+}
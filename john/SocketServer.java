@@ -3,12 +3,41 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 
 public class SocketServer {
+    // one parser per thread, its buffers are reused for every request the thread reads
+    private static final ThreadLocal<HttpParser> PARSERS = ThreadLocal.withInitial(HttpParser::new);
+    public static final int DEFAULT_IDLE_TIMEOUT = 15000; // 15 seconds
+    public static final int DEFAULT_MAX_REQUESTS = 1000;
     private ServerSocket server;
     private Socket client;
     private PrintWriter outLog;
     private BufferedReader inLog;
+    private final boolean keepAlive;
+    private String clientHost;
+    private int clientPort;
+
+    public SocketServer() {
+        this(false);
+    }
+
+    /**
+     * @param keepAlive When true, connections opened by sendRequest stay open and are reused by the next
+     *                  request to the same server, until the server closes them.
+     */
+    public SocketServer(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Whether client connections are kept open between requests.
+     * ContentServer and GETClient ask the server to keep the connection when this is set.
+     * @return true if connections are reused.
+     */
+    public boolean isKeepAlive() {
+        return this.keepAlive;
+    }
 
     /**
      * Starts the server on the specified port.
@@ -25,7 +54,7 @@ public class SocketServer {
     }
 
     /**
-     * Closes the server socket.
+     * Closes the server socket and any client connection kept open.
      * Called during shutdown procedures in various classes to ensure proper resource cleanup.
      */
     public void close() {
@@ -34,6 +63,7 @@ public class SocketServer {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        this.closeClient();
     }
 
 
@@ -76,11 +106,7 @@ public class SocketServer {
     public int initializeSocketandGetLamport(String serverName, int portNumber) {
         this.close();
         try {
-            this.client = new Socket(serverName, portNumber);
-            
-            this.outLog = new PrintWriter(client.getOutputStream(), true);
-            
-            this.inLog = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            this.openClient(serverName, portNumber);
             
             String res = this.inLog.readLine();
             if (res == null) {
@@ -119,35 +145,165 @@ public class SocketServer {
     public String requestAndGetData(String serverName, int portNumber, String data, boolean isContentServer) {
         try {
             this.outLog.println(data);
-            StringBuilder responseBuilder = new StringBuilder();
-            String line;
-            int contentLength = 0;
-            boolean isHeader = true;
-            
-            while (isHeader && (line = this.inLog.readLine()) != null) {
-                if (line.startsWith("Content-Length: ")) {
-                    contentLength = Integer.parseInt(line.split(":")[1].trim());
+            return this.readResponse(isContentServer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Opens a connection and sends the request straight away, without waiting for the Lamport greeting.
+     * The server still pushes the greeting for older clients, it is read and dropped here because
+     * the response carries the server's clock in its own Lamport header.
+     * With keep-alive the connection to the same server is reused, and reopened once if the server
+     * had already closed it.
+     * Used by ContentServer and Client in single round trip and keep-alive mode.
+     * @param serverName The server's hostname.
+     * @param portNumber The server's port number.
+     * @param data The request data to send.
+     * @param isContentServer Boolean flag to differentiate between ContentServer and Client behavior.
+     * @return The server's response as a String.
+     */
+    public String sendRequest(String serverName, int portNumber, String data, boolean isContentServer) {
+        boolean reused = this.keepAlive && this.isConnectedTo(serverName, portNumber);
+        boolean keepConnection = false;
+        try {
+            if (!reused) {
+                this.openClient(serverName, portNumber);
+            }
+            String res;
+            try {
+                res = this.exchange(data, isContentServer);
+            } catch (IOException e) {
+                if (!reused) {
+                    throw e;
                 }
+                res = "";
+            }
+            if (res.isEmpty() && reused) {
+                // the server closed the idle connection, send again on a new one
+                this.openClient(serverName, portNumber);
+                res = this.exchange(data, isContentServer);
+            }
+            if (res.isEmpty()) {
+                throw new IOException("Server closed the connection unexpectedly.");
+            }
+            if (res.startsWith("HTTP/1.1 503")) {
+                throw new IOException("Received 503 Service Unavailable from the server.");
+            }
+            keepConnection = this.keepAlive && res.contains("\r\nConnection: keep-alive\r\n");
+            return res;
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("Error socket", e);
+        } finally {
+            if (!keepConnection) {
+                this.closeClient();
+            }
+        }
+    }
+
+    /**
+     * Whether a kept-alive connection to this server is open, a new one starts with the Lamport greeting.
+     * @param serverName The server's hostname.
+     * @param portNumber The server's port number.
+     * @return true if the next sendRequest to this server reuses the open connection.
+     */
+    public boolean isConnectedTo(String serverName, int portNumber) {
+        return this.client != null && !this.client.isClosed()
+                && portNumber == this.clientPort && serverName.equals(this.clientHost);
+    }
+
+    private void openClient(String serverName, int portNumber) throws IOException {
+        this.closeClient();
+        this.client = new Socket(serverName, portNumber);
+        this.clientHost = serverName;
+        this.clientPort = portNumber;
+        this.outLog = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), true);
+        this.inLog = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a request on the open client connection and reads its response.
+     * @return The response, empty if the server closed the connection before answering.
+     */
+    private String exchange(String data, boolean isContentServer) throws IOException {
+        this.outLog.print(data);
+        this.outLog.flush();
+        if (this.outLog.checkError()) {
+            return "";
+        }
+        return this.readResponse(isContentServer);
+    }
 
-                responseBuilder.append(line).append("\r\n");
+    /**
+     * Reads a response from the client connection, skipping a leading Lamport greeting line.
+     * @param isContentServer Content servers only read the headers of the response.
+     * @return The response headers, followed by the body for clients.
+     * @throws IOException If the connection fails.
+     */
+    private String readResponse(boolean isContentServer) throws IOException {
+        StringBuilder responseBuilder = new StringBuilder();
+        String line;
+        int contentLength = 0;
+        boolean isHeader = true;
+        boolean isFirstLine = true;
 
-                if (line.isEmpty()) {
-                    isHeader = false;
+        while (isHeader && (line = this.inLog.readLine()) != null) {
+            if (isFirstLine) {
+                isFirstLine = false;
+                if (line.startsWith("Lamport:")) {
+                    continue;
                 }
             }
+            if (line.startsWith("Content-Length: ")) {
+                contentLength = Integer.parseInt(line.split(":")[1].trim());
+            }
+
+            responseBuilder.append(line).append("\r\n");
 
-            if (!isContentServer && contentLength > 0) {
-                char[] bodyChars = new char[contentLength];
-                this.inLog.read(bodyChars, 0, contentLength);
-                responseBuilder.append(bodyChars);
+            if (line.isEmpty()) {
+                isHeader = false;
             }
-            return responseBuilder.toString();
+        }
 
-        } catch (IOException e) {
+        if (!isContentServer && contentLength > 0) {
+            // Content-Length counts UTF-8 bytes, the reader hands out chars
+            int bytesRead = 0;
+            while (bytesRead < contentLength) {
+                int c = this.inLog.read();
+                if (c == -1) {
+                    break;
+                }
+                responseBuilder.append((char) c);
+                bytesRead += utf8Length((char) c);
+            }
+        }
+        return responseBuilder.toString();
+    }
+
+    /**
+     * Number of bytes a char takes in UTF-8, a surrogate pair counts 2 for each half.
+     * @param c The char read from the response.
+     * @return The encoded length in bytes.
+     */
+    private static int utf8Length(char c) {
+        if (c < 0x80) return 1;
+        if (c < 0x800) return 2;
+        if (Character.isSurrogate(c)) return 2;
+        return 3;
+    }
+
+    /**
+     * Closes the client connection opened by initializeSocketandGetLamport or sendRequest.
+     */
+    private void closeClient() {
+        try {
+            if (this.client != null) this.client.close();
+        } catch (Exception e) {
             e.printStackTrace();
-            return null;
-        } finally {
-            this.close();
         }
     }
 
@@ -158,41 +314,38 @@ public class SocketServer {
      * @return The complete request as a String.
      */
     public String request(Socket clientSocket) {
-        StringBuilder requestBuilder = new StringBuilder();
+        HttpRequest request = this.readRequest(clientSocket);
+        return request != null ? request.toString() : null;
+    }
 
-        try {
-            InputStream input = clientSocket.getInputStream();
-            BufferedReader in = new BufferedReader(new InputStreamReader(input));
-            
-            String line;
-            int contentLength = 0;
-            boolean isHeader = true;
-            while (isHeader && (line = in.readLine()) != null) {
-                if (line.startsWith("Content-Length: ")) {
-                    contentLength = Integer.parseInt(line.split(":")[1].trim());
-                }
-                requestBuilder.append(line).append("\r\n");
-                if (line.isEmpty()) {
-                    isHeader = false;
-                }
-            }
-            if (contentLength > 0) {
-                char[] bodyChars = new char[contentLength];
-                int bytesRead = 0;
-                while (bytesRead < contentLength) {
-                    int result = in.read(bodyChars, bytesRead, contentLength - bytesRead);
-                    if (result == -1) {
-                        break;
-                    }
-                    bytesRead += result;
-                }
-                requestBuilder.append(bodyChars);
-            }
-            
-            return requestBuilder.toString();
+    /**
+     * Reads the first request from a client socket with the calling thread's HttpParser.
+     * Content-Length is counted in bytes, so the body is read exactly whatever its encoding.
+     * The request is only valid until the same thread reads the next one.
+     * @param clientSocket The client's socket connection.
+     * @return The parsed request, or null if the client sent nothing or the request could not be read.
+     */
+    public HttpRequest readRequest(Socket clientSocket) {
+        PARSERS.get().reset();
+        return this.readNextRequest(clientSocket);
+    }
 
+    /**
+     * Reads the next request on a kept-alive connection, after readRequest was called for it on this thread.
+     * Bytes the client already sent after the previous request are kept.
+     * @param clientSocket The client's socket connection.
+     * @return The parsed request, or null if the client closed the connection, went idle past the socket
+     *         timeout, or the request could not be read.
+     */
+    public HttpRequest readNextRequest(Socket clientSocket) {
+        try {
+            return PARSERS.get().read(clientSocket.getInputStream());
+        } catch (SocketTimeoutException e) {
+            return null;
         } catch (Exception e) {
-            e.printStackTrace();
+            if (!clientSocket.isClosed()) {
+                e.printStackTrace();
+            }
             return null;
         }
     }
@@ -217,13 +370,43 @@ public class SocketServer {
      * @param clientSocket The client's socket connection.
      */
     public void response(String response, Socket clientSocket) {
+        // local writer, the server's workers share this instance and answer different sockets at once
+        PrintWriter out = null;
         try {
-            this.outLog = new PrintWriter(clientSocket.getOutputStream(), true);
-            this.outLog.println(response);
+            out = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+            out.println(response);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            this.outLog.close();
+            if (out != null) out.close();
+        }
+    }
+
+    /**
+     * Sends a response and leaves the connection open for the next request.
+     * @param response The response string to send.
+     * @param clientSocket The client's socket connection.
+     * @throws IOException If the client is gone.
+     */
+    public void write(String response, Socket clientSocket) throws IOException {
+        OutputStream out = clientSocket.getOutputStream();
+        out.write(response.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Adds the Connection header telling the client whether it may send another request on this connection.
+     * @param response A response starting with its status line.
+     * @param keepAlive true to keep the connection open.
+     * @return The response with the header after the status line.
+     */
+    public static String withConnectionHeader(String response, boolean keepAlive) {
+        int statusEnd = response.indexOf("\r\n");
+        if (statusEnd < 0) {
+            return response;
         }
+        return response.substring(0, statusEnd + 2)
+                + (keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n")
+                + response.substring(statusEnd + 2);
     }
 }
@@ -0,0 +1,394 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Columnar storage of one station's readings, used by StationHistory instead of a JsonObject per reading.
+ * The numeric fields of a reading (air_temp, press, dewpt, wind_spd_kmh and the rest) go to a double
+ * column each, the categorical ones (id, name, state, time_zone, cloud, wind_dir) to an int column of
+ * codes into the station's dictionary, and local_date_time to a String column. A field of another name,
+ * or whose value does not fit its column, is kept as JSON text with the row.
+ * Which fields a row has, in which order, how each value was sent (a string like "13.3" or the number
+ * 13.3) and its decimal places are the row's shape, one int code per row, since a station sends the same
+ * shape over and over. getData() rebuilds the same JsonObject, field order and text included.
+ *
+ * Rows are appended to blocks of columns. A block never grows, a full one is followed by a new block twice
+ * its size up to MAX_BLOCK rows, so a published row is never moved and readers take no lock. A block is
+ * dropped with the last of its readings.
+ */
+final class StationColumns {
+    private static final String[] NUMBERS = {
+        "lat", "lon", "local_date_time_full", "air_temp", "apparent_t", "dewpt", "press", "rel_hum",
+        "wind_spd_kmh", "wind_spd_kt"
+    };
+    private static final String[] CODES = {"id", "name", "state", "time_zone", "cloud", "wind_dir"};
+    private static final String[] TEXTS = {"local_date_time"};
+    private static final Map<String, Integer> NUMBER_COLUMNS = columns(NUMBERS);
+    private static final Map<String, Integer> CODE_COLUMNS = columns(CODES);
+    private static final Map<String, Integer> TEXT_COLUMNS = columns(TEXTS);
+
+    // how a field of a row is kept
+    private static final byte DECIMAL_STRING = 0;
+    private static final byte DECIMAL = 1;
+    private static final byte CODE = 2;
+    private static final byte TEXT = 3;
+    private static final byte EXTRA = 4;
+    // a double holds at most this many significant decimal digits exactly
+    private static final int MAX_PRECISION = 15;
+    private static final int FIRST_BLOCK = 4;
+    private static final int MAX_BLOCK = 512;
+    // past these a station's readings are no longer packed, they keep their JsonObject
+    private static final int MAX_DICTIONARY = 4096;
+    private static final int MAX_SHAPES = 1024;
+    // per row besides its values: the shape code, StationHistory counts the Reading itself
+    private static final int ROW_BYTES = 4;
+
+    // both only grow; they are replaced by a longer copy, so a reader always sees filled entries
+    private volatile String[] dictionary = new String[0];
+    private volatile Shape[] shapes = new Shape[0];
+    // the lookups and the current block are guarded by this
+    private final Map<String, Integer> dictionaryCodes = new HashMap<>();
+    private final Map<String, Integer> shapeCodes = new HashMap<>();
+    private int dictionarySize;
+    private int shapeCount;
+    private Block block;
+
+    /**
+     * The fields of a row in order, and for each how it is kept.
+     */
+    private static final class Shape {
+        private final String[] names;
+        private final byte[] kinds;
+        private final int[] columns;
+        private final int[] scales;
+        private final boolean extras;
+
+        private Shape(String[] names, byte[] kinds, int[] columns, int[] scales) {
+            this.names = names;
+            this.kinds = kinds;
+            this.columns = columns;
+            this.scales = scales;
+            boolean extras = false;
+            for (byte kind : kinds) {
+                extras |= kind == EXTRA;
+            }
+            this.extras = extras;
+        }
+
+        private int indexOf(String name) {
+            for (int i = 0; i < this.names.length; i++) {
+                if (this.names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Rows stored together, a column is only allocated once a row uses it.
+     */
+    private static final class Block {
+        private final int capacity;
+        private final int[] shapes;
+        private final double[][] numbers = new double[NUMBERS.length][];
+        private final int[][] codes = new int[CODES.length][];
+        private final String[][] texts = new String[TEXTS.length][];
+        private String[] extras;
+        private int rows;
+
+        private Block(int capacity) {
+            this.capacity = capacity;
+            this.shapes = new int[capacity];
+        }
+
+        private double[] numbers(int column) {
+            if (this.numbers[column] == null) {
+                this.numbers[column] = new double[this.capacity];
+            }
+            return this.numbers[column];
+        }
+
+        private int[] codes(int column) {
+            if (this.codes[column] == null) {
+                this.codes[column] = new int[this.capacity];
+            }
+            return this.codes[column];
+        }
+
+        private String[] texts(int column) {
+            if (this.texts[column] == null) {
+                this.texts[column] = new String[this.capacity];
+            }
+            return this.texts[column];
+        }
+    }
+
+    /**
+     * A reading stored in the columns. Its data is rebuilt on every getData(), numbers are read from
+     * their column without building it.
+     */
+    static final class Reading extends WeatherFormat {
+        private final transient StationColumns owner;
+        private final transient Block block;
+        private final transient int row;
+        private final transient int estimatedBytes;
+
+        private Reading(int lamport, String source, StationColumns owner, Block block, int row, int estimatedBytes) {
+            super(lamport, source, null);
+            this.owner = owner;
+            this.block = block;
+            this.row = row;
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        /**
+         * Rebuilds the reading's data, a new object on every call.
+         * @return The data as it was stored.
+         */
+        @Override
+        public JsonObject getData() {
+            Shape shape = this.owner.shapes[this.block.shapes[this.row]];
+            JsonObject extras = shape.extras
+                    ? JsonParser.parseString(this.block.extras[this.row]).getAsJsonObject() : null;
+            String[] dictionary = this.owner.dictionary;
+            JsonObject data = new JsonObject();
+            for (int i = 0; i < shape.names.length; i++) {
+                int column = shape.columns[i];
+                switch (shape.kinds[i]) {
+                    case DECIMAL_STRING:
+                        data.addProperty(shape.names[i],
+                                decimal(this.block.numbers[column][this.row], shape.scales[i]).toPlainString());
+                        break;
+                    case DECIMAL:
+                        data.add(shape.names[i],
+                                new JsonPrimitive(decimal(this.block.numbers[column][this.row], shape.scales[i])));
+                        break;
+                    case CODE:
+                        data.addProperty(shape.names[i], dictionary[this.block.codes[column][this.row]]);
+                        break;
+                    case TEXT:
+                        data.addProperty(shape.names[i], this.block.texts[column][this.row]);
+                        break;
+                    default:
+                        data.add(shape.names[i], extras.get(shape.names[i]));
+                }
+            }
+            return data;
+        }
+
+        @Override
+        public double getNumber(String field) {
+            Shape shape = this.owner.shapes[this.block.shapes[this.row]];
+            int i = shape.indexOf(field);
+            if (i >= 0 && (shape.kinds[i] == DECIMAL_STRING || shape.kinds[i] == DECIMAL)) {
+                return this.block.numbers[shape.columns[i]][this.row];
+            }
+            return i >= 0 && shape.kinds[i] == EXTRA ? super.getNumber(field) : Double.NaN;
+        }
+
+        @Override
+        int dataLength() {
+            return this.getData().toString().length();
+        }
+
+        @Override
+        int estimatedDataBytes() {
+            return this.estimatedBytes;
+        }
+    }
+
+    /**
+     * Stores a reading's data in the columns.
+     * @param reading The reading.
+     * @return The stored reading, or the reading itself if it has no data or the station has as many
+     *         shapes as it may.
+     */
+    synchronized WeatherFormat pack(WeatherFormat reading) {
+        JsonObject data = reading.getData();
+        if (data == null) {
+            return reading;
+        }
+        int fields = data.size();
+        String[] names = new String[fields];
+        byte[] kinds = new byte[fields];
+        int[] columns = new int[fields];
+        int[] scales = new int[fields];
+        double[] numbers = new double[fields];
+        int[] codes = new int[fields];
+        JsonObject extras = null;
+        StringBuilder key = new StringBuilder();
+        int newCodes = 0;
+        int i = 0;
+        for (Map.Entry<String, JsonElement> field : data.entrySet()) {
+            String name = field.getKey();
+            JsonElement value = field.getValue();
+            names[i] = name;
+            byte kind = EXTRA;
+            Integer column = null;
+            if (value.isJsonPrimitive()) {
+                JsonPrimitive primitive = value.getAsJsonPrimitive();
+                if ((column = NUMBER_COLUMNS.get(name)) != null) {
+                    BigDecimal decimal = primitive.isBoolean() ? null
+                            : exactDecimal(primitive.getAsString(), primitive.isNumber());
+                    if (decimal != null) {
+                        kind = primitive.isString() ? DECIMAL_STRING : DECIMAL;
+                        scales[i] = decimal.scale();
+                        numbers[i] = decimal.doubleValue();
+                    }
+                } else if ((column = CODE_COLUMNS.get(name)) != null) {
+                    Integer code = primitive.isString() ? this.dictionaryCodes.get(primitive.getAsString()) : null;
+                    if (code == null && primitive.isString() && this.dictionarySize + newCodes < MAX_DICTIONARY) {
+                        // a new entry, added once the reading is known to be packed
+                        code = -1 - newCodes++;
+                    }
+                    if (code != null) {
+                        kind = CODE;
+                        codes[i] = code;
+                    }
+                } else if ((column = TEXT_COLUMNS.get(name)) != null && primitive.isString()) {
+                    kind = TEXT;
+                }
+            }
+            if (kind == EXTRA) {
+                if (extras == null) {
+                    extras = new JsonObject();
+                }
+                extras.add(name, value);
+            }
+            kinds[i] = kind;
+            columns[i] = column == null ? -1 : column;
+            key.append(name).append('\u0000').append(kind).append(':').append(scales[i]).append('\u0000');
+            i++;
+        }
+        Integer shapeCode = this.shapeCodes.get(key.toString());
+        if (shapeCode == null && this.shapeCount >= MAX_SHAPES) {
+            return reading;
+        }
+
+        // the reading is packed from here on, new dictionary entries and the shape are published first
+        for (i = 0; i < fields; i++) {
+            if (kinds[i] == CODE && codes[i] < 0) {
+                String text = data.get(names[i]).getAsString();
+                Integer code = this.dictionaryCodes.get(text);
+                codes[i] = code != null ? code : this.addToDictionary(text);
+            }
+        }
+        if (shapeCode == null) {
+            shapeCode = this.addShape(key.toString(), new Shape(names, kinds, columns, scales));
+        }
+        if (this.block == null || this.block.rows == this.block.capacity) {
+            this.block = new Block(this.block == null ? FIRST_BLOCK : Math.min(MAX_BLOCK, this.block.capacity * 2));
+        }
+        Block block = this.block;
+        int row = block.rows;
+        block.shapes[row] = shapeCode;
+        int estimatedBytes = ROW_BYTES;
+        for (i = 0; i < fields; i++) {
+            switch (kinds[i]) {
+                case DECIMAL_STRING:
+                case DECIMAL:
+                    block.numbers(columns[i])[row] = numbers[i];
+                    estimatedBytes += 8;
+                    break;
+                case CODE:
+                    block.codes(columns[i])[row] = codes[i];
+                    estimatedBytes += 4;
+                    break;
+                case TEXT:
+                    String text = data.get(names[i]).getAsString();
+                    block.texts(columns[i])[row] = text;
+                    estimatedBytes += 4 + 40 + text.length() * 2;
+                    break;
+                default:
+            }
+        }
+        if (extras != null) {
+            if (block.extras == null) {
+                block.extras = new String[block.capacity];
+            }
+            String text = extras.toString();
+            block.extras[row] = text;
+            estimatedBytes += 4 + 40 + text.length() * 2;
+        }
+        block.rows++;
+        return new Reading(reading.getLamport(), reading.getSource(), this, block, row, estimatedBytes);
+    }
+
+    private int addToDictionary(String text) {
+        String[] dictionary = this.dictionary;
+        if (this.dictionarySize == dictionary.length) {
+            dictionary = Arrays.copyOf(dictionary, Math.max(8, dictionary.length * 2));
+        }
+        dictionary[this.dictionarySize] = text;
+        this.dictionary = dictionary;
+        this.dictionaryCodes.put(text, this.dictionarySize);
+        return this.dictionarySize++;
+    }
+
+    private int addShape(String key, Shape shape) {
+        Shape[] shapes = this.shapes;
+        if (this.shapeCount == shapes.length) {
+            shapes = Arrays.copyOf(shapes, Math.max(4, shapes.length * 2));
+        }
+        shapes[this.shapeCount] = shape;
+        this.shapes = shapes;
+        this.shapeCodes.put(key, this.shapeCount);
+        return this.shapeCount++;
+    }
+
+    /**
+     * Entries of the station's dictionary.
+     * @return The number of distinct categorical values seen.
+     */
+    synchronized int getDictionarySize() {
+        return this.dictionarySize;
+    }
+
+    /**
+     * Distinct shapes of the station's readings.
+     * @return The number of shapes.
+     */
+    synchronized int getShapeCount() {
+        return this.shapeCount;
+    }
+
+    private static Map<String, Integer> columns(String[] names) {
+        Map<String, Integer> columns = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            columns.put(names[i], i);
+        }
+        return columns;
+    }
+
+    private static BigDecimal decimal(double value, int scale) {
+        return BigDecimal.valueOf(value).setScale(scale, RoundingMode.HALF_EVEN);
+    }
+
+    /**
+     * The text as a decimal, if a double holds it and rebuilding it from the double gives the same text.
+     * "13.3", "-34.9" and "20230715160000" qualify, "05", "-0", "1e5" and "+1" stay JSON.
+     * @param number Whether the text is a JSON number, rebuilt with BigDecimal.toString, or a string, rebuilt
+     *               with toPlainString.
+     */
+    private static BigDecimal exactDecimal(String text, boolean number) {
+        BigDecimal decimal;
+        try {
+            decimal = new BigDecimal(text);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (decimal.scale() < 0 || decimal.precision() > MAX_PRECISION) {
+            return null;
+        }
+        BigDecimal rebuilt = decimal(decimal.doubleValue(), decimal.scale());
+        return (number ? rebuilt.toString() : rebuilt.toPlainString()).equals(text) ? decimal : null;
+    }
+}
@@ -0,0 +1,96 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+
+public class StationColumns_Test {
+
+    private static JsonObject reading(int i) {
+        JsonObject data = new JsonObject();
+        data.addProperty("id", "IDS60901");
+        data.addProperty("name", "Adelaide (West Terrace /  ngayirdapira)");
+        data.addProperty("state", "SA");
+        data.addProperty("time_zone", "CST");
+        data.addProperty("lat", "-34.9");
+        data.addProperty("lon", "138.6");
+        data.addProperty("local_date_time", "15/04:" + (i % 60) + "pm");
+        data.addProperty("local_date_time_full", String.valueOf(20230715160000L + i));
+        data.addProperty("air_temp", (i % 30) + "." + (i % 10));
+        data.addProperty("apparent_t", "9.5");
+        data.addProperty("cloud", i % 2 == 0 ? "Partly cloudy" : "Cloudy");
+        data.addProperty("dewpt", "5.7");
+        data.addProperty("press", "1023.9");
+        data.addProperty("rel_hum", "60");
+        data.addProperty("wind_dir", i % 3 == 0 ? "S" : "SSW");
+        data.addProperty("wind_spd_kmh", "15");
+        data.addProperty("wind_spd_kt", "8");
+        return data;
+    }
+
+    @Test
+    void testRoundTrip() {
+        StationColumns columns = new StationColumns();
+        for (int i = 0; i < 100; i++) {
+            JsonObject data = reading(i);
+            WeatherFormat packed = columns.pack(new WeatherFormat(i, "ContentServer1", data));
+            assertTrue(packed instanceof StationColumns.Reading);
+            assertEquals(i, packed.getLamport());
+            assertEquals("ContentServer1", packed.getSource());
+            assertEquals(data.toString(), packed.getData().toString());
+            assertEquals(data, packed.getData());
+            assertEquals(Double.parseDouble(data.get("air_temp").getAsString()), packed.getNumber("air_temp"));
+        }
+        assertEquals(1, columns.getShapeCount(), "Readings of one format share their shape");
+        // id, name, state, time_zone, two clouds, two wind directions
+        assertEquals(8, columns.getDictionarySize());
+    }
+
+    @Test
+    void testValuesKeptAsSent() {
+        JsonObject data = new JsonObject();
+        data.addProperty("air_temp", 13.3);
+        data.addProperty("press", "1023.90");
+        data.addProperty("dewpt", "05");
+        data.addProperty("rel_hum", "-0");
+        data.addProperty("lat", "1e5");
+        data.addProperty("lon", true);
+        data.addProperty("wind_spd_kt", 8);
+        data.addProperty("apparent_t", "");
+        data.add("cloud", JsonNull.INSTANCE);
+        data.addProperty("wind_dir", 3);
+        JsonArray extra = new JsonArray();
+        extra.add("a");
+        data.add("extra", extra);
+        data.addProperty("note", "x");
+
+        WeatherFormat packed = new StationColumns().pack(new WeatherFormat(1, null, data));
+        assertEquals(data.toString(), packed.getData().toString());
+        assertEquals(data, packed.getData());
+        assertEquals(13.3, packed.getNumber("air_temp"));
+        assertEquals(1023.9, packed.getNumber("press"));
+        assertEquals(5, packed.getNumber("dewpt"));
+        assertTrue(Double.isNaN(packed.getNumber("lon")));
+        assertTrue(Double.isNaN(packed.getNumber("cloud")));
+        assertTrue(Double.isNaN(packed.getNumber("missing")));
+    }
+
+    @Test
+    void testHistoryPacksAndSnapshotsFullReadings() {
+        StationHistory history = new StationHistory(StationHistory.Retention.DEFAULT);
+        WeatherFormat original = new WeatherFormat(1, "ContentServer1", reading(1));
+        history.add(original, 0);
+        history.add(new WeatherFormat(2, null, null), 0);
+        List<WeatherFormat> stored = history.toList();
+        assertTrue(stored.get(0) instanceof StationColumns.Reading);
+        assertEquals(original.getData(), stored.get(0).getData());
+        assertNull(stored.get(1).getData());
+        assertEquals(JsonHandling.convertJSON(original), JsonHandling.convertJSON(stored.get(0)));
+        assertTrue(stored.get(0).estimatedDataBytes() * 4 < original.estimatedDataBytes(),
+                stored.get(0).estimatedDataBytes() + " bytes packed, " + original.estimatedDataBytes() + " as JSON");
+    }
+}
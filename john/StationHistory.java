@@ -0,0 +1,541 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Bounded history of the readings stored for one station.
+ * The history is an immutable Version: the readings in arrival order and the same readings sorted by
+ * Lamport time, as ranges of arrays that grow by doubling and are shared between versions. A change builds
+ * a new Version and publishes it with a compare-and-set, so readers take no lock and never see a half-made
+ * change, however many writes are going on. The latest reading a reader
+ * may see is a binary search in the Lamport order and a span of Lamport times is a range of it.
+ * The oldest readings are dropped once the history holds more than the retention allows by count,
+ * age or estimated size, so a station that reports forever uses a steady amount of memory.
+ * The newest reading is always kept.
+ * A reading's data is packed into the station's StationColumns when it is added, and rebuilt when asked for.
+ */
+public class StationHistory implements Iterable<WeatherFormat> {
+    // rough per-reading cost besides its JSON text: the WeatherFormat, its JsonObject and its slots in a Version
+    private static final int READING_OVERHEAD = 112;
+    // dropped readings are found by a scan up to this many, by an identity map above
+    private static final int SMALL_DROP = 8;
+    // smallest arrays a history grows from
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * How much history a station keeps. A limit of 0 or less means no limit of that kind.
+     */
+    public static class Retention {
+        public static final int DEFAULT_MAX_READINGS = 500;
+        public static final long DEFAULT_MAX_AGE = 0;
+        public static final long DEFAULT_MAX_BYTES = 1 << 20; // 1 MB
+        public static final Retention DEFAULT = new Retention(DEFAULT_MAX_READINGS, DEFAULT_MAX_AGE, DEFAULT_MAX_BYTES);
+
+        private final int maxReadings;
+        private final long maxAge;
+        private final long maxBytes;
+
+        /**
+         * @param maxReadings Readings kept per station.
+         * @param maxAge Milliseconds a reading is kept after it was stored.
+         * @param maxBytes Estimated bytes kept per station.
+         */
+        public Retention(int maxReadings, long maxAge, long maxBytes) {
+            this.maxReadings = maxReadings;
+            this.maxAge = maxAge;
+            this.maxBytes = maxBytes;
+        }
+
+        public int getMaxReadings() {
+            return this.maxReadings;
+        }
+
+        public long getMaxAge() {
+            return this.maxAge;
+        }
+
+        public long getMaxBytes() {
+            return this.maxBytes;
+        }
+    }
+
+    /**
+     * Arrays shared by successive versions, each version sees a range of their slots. A slot past the end of
+     * every version is claimed once, by the writer that fills it, so a published slot never changes and a
+     * reading added to the newest version is written in place. A full array is copied into one twice as
+     * large, so an add costs a constant amount on average however long the history is.
+     */
+    private static final class Slots {
+        private final WeatherFormat[] readings;
+        // only kept for the arrival order
+        private final long[] storedAt;
+        private final int[] sizes;
+        private final AtomicInteger filled;
+
+        private Slots(WeatherFormat[] readings, long[] storedAt, int[] sizes, int filled) {
+            this.readings = readings;
+            this.storedAt = storedAt;
+            this.sizes = sizes;
+            this.filled = new AtomicInteger(filled);
+        }
+
+        private static Slots empty(int capacity, boolean arrival) {
+            return new Slots(new WeatherFormat[capacity], arrival ? new long[capacity] : null,
+                    arrival ? new int[capacity] : null, 0);
+        }
+
+        /**
+         * Claims the slot at index for a new reading, if no version has been given it yet.
+         */
+        private boolean claim(int index) {
+            return index < this.readings.length && this.filled.compareAndSet(index, index + 1);
+        }
+
+        /**
+         * Copies the slots [from, to) to the start of new arrays with room to grow.
+         */
+        private Slots copy(int from, int to, int capacity) {
+            int count = to - from;
+            Slots copy = empty(capacity, this.storedAt != null);
+            System.arraycopy(this.readings, from, copy.readings, 0, count);
+            if (this.storedAt != null) {
+                System.arraycopy(this.storedAt, from, copy.storedAt, 0, count);
+                System.arraycopy(this.sizes, from, copy.sizes, 0, count);
+            }
+            copy.filled.set(count);
+            return copy;
+        }
+    }
+
+    /**
+     * One published state of the history, never changed after it is built.
+     */
+    private static final class Version {
+        private static final Version EMPTY = new Version(Slots.empty(0, true), 0, 0, Slots.empty(0, false), 0, 0, 0);
+
+        // arrival order, oldest first, the slots [from, to) of arrival
+        private final Slots arrival;
+        private final int from;
+        private final int to;
+        // the same readings by Lamport time, of equal times the later arrival last, the slots [sortedFrom, sortedTo)
+        private final Slots sorted;
+        private final int sortedFrom;
+        private final int sortedTo;
+        private final long bytes;
+
+        private Version(Slots arrival, int from, int to, Slots sorted, int sortedFrom, int sortedTo, long bytes) {
+            this.arrival = arrival;
+            this.from = from;
+            this.to = to;
+            this.sorted = sorted;
+            this.sortedFrom = sortedFrom;
+            this.sortedTo = sortedTo;
+            this.bytes = bytes;
+        }
+
+        private int size() {
+            return this.to - this.from;
+        }
+
+        /**
+         * Builds the version with a new reading, written in place when this is the newest version and
+         * the reading is the latest by Lamport time, which is the usual case.
+         */
+        private Version add(WeatherFormat added, long addedAt, int addedSize) {
+            Slots arrival = this.arrival;
+            int from = this.from;
+            int to = this.to;
+            if (!arrival.claim(to)) {
+                arrival = arrival.copy(from, to, grow(to - from));
+                to -= from;
+                from = 0;
+                arrival.claim(to);
+            }
+            arrival.readings[to] = added;
+            arrival.storedAt[to] = addedAt;
+            arrival.sizes[to] = addedSize;
+
+            Slots sorted = this.sorted;
+            int sortedFrom = this.sortedFrom;
+            int sortedTo = this.sortedTo;
+            int at = upperBound(sorted.readings, sortedFrom, sortedTo, added.getLamport());
+            if (at == sortedTo) {
+                if (!sorted.claim(sortedTo)) {
+                    sorted = sorted.copy(sortedFrom, sortedTo, grow(sortedTo - sortedFrom));
+                    sortedTo -= sortedFrom;
+                    sortedFrom = 0;
+                    sorted.claim(sortedTo);
+                }
+                sorted.readings[sortedTo] = added;
+            } else {
+                // a reading older than the latest is inserted into a copy
+                int count = sortedTo - sortedFrom;
+                Slots inserted = Slots.empty(grow(count), false);
+                System.arraycopy(sorted.readings, sortedFrom, inserted.readings, 0, at - sortedFrom);
+                inserted.readings[at - sortedFrom] = added;
+                System.arraycopy(sorted.readings, at, inserted.readings, at - sortedFrom + 1, sortedTo - at);
+                inserted.filled.set(count + 1);
+                sorted = inserted;
+                sortedTo = count;
+                sortedFrom = 0;
+            }
+            return new Version(arrival, from, to + 1, sorted, sortedFrom, sortedTo + 1, this.bytes + addedSize);
+        }
+
+        /**
+         * Builds the version without the count oldest readings. The arrays are shared unless few of
+         * their slots are still in use, and in the Lamport order the dropped readings are usually the first ones.
+         */
+        private Version drop(int count) {
+            int from = this.from + count;
+            long newBytes = this.bytes;
+            for (int i = this.from; i < from; i++) {
+                newBytes -= this.arrival.sizes[i];
+            }
+            Slots arrival = this.arrival;
+            int to = this.to;
+            if (this.isSparse(arrival, to - from)) {
+                arrival = arrival.copy(from, to, grow(to - from));
+                to -= from;
+                from = 0;
+            }
+
+            Predicate<WeatherFormat> dropped = this.oldest(count);
+            Slots sorted = this.sorted;
+            int sortedFrom = this.sortedFrom + count;
+            int sortedTo = this.sortedTo;
+            boolean first = true;
+            for (int i = this.sortedFrom; i < sortedFrom && first; i++) {
+                first = dropped.test(sorted.readings[i]);
+            }
+            if (!first) {
+                sorted = Slots.empty(grow(sortedTo - sortedFrom), false);
+                int j = 0;
+                for (int i = this.sortedFrom; i < this.sortedTo; i++) {
+                    if (!dropped.test(this.sorted.readings[i])) {
+                        sorted.readings[j++] = this.sorted.readings[i];
+                    }
+                }
+                sorted.filled.set(j);
+                sortedFrom = 0;
+                sortedTo = j;
+            } else if (this.isSparse(sorted, sortedTo - sortedFrom)) {
+                sorted = sorted.copy(sortedFrom, sortedTo, grow(sortedTo - sortedFrom));
+                sortedTo -= sortedFrom;
+                sortedFrom = 0;
+            }
+            return new Version(arrival, from, to, sorted, sortedFrom, sortedTo, newBytes);
+        }
+
+        /**
+         * Whether arrays are mostly slots of dropped readings, which are then copied so they can be collected.
+         */
+        private boolean isSparse(Slots slots, int kept) {
+            return slots.readings.length > MIN_CAPACITY && kept * 4 < slots.readings.length;
+        }
+
+        /**
+         * Tells the count oldest readings, by a scan when they are few and an identity map otherwise.
+         */
+        private Predicate<WeatherFormat> oldest(int count) {
+            if (count <= SMALL_DROP) {
+                // the usual case, one reading pushed out by a new one
+                return reading -> {
+                    for (int i = this.from; i < this.from + count; i++) {
+                        if (this.arrival.readings[i] == reading) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            }
+            Map<WeatherFormat, Boolean> dropped = new IdentityHashMap<>();
+            for (int i = this.from; i < this.from + count; i++) {
+                dropped.put(this.arrival.readings[i], Boolean.TRUE);
+            }
+            return dropped::containsKey;
+        }
+
+        /**
+         * Number of oldest readings the retention drops, never the newest one.
+         */
+        private int overLimits(Retention limits, long now) {
+            int drop = 0;
+            long bytes = this.bytes;
+            while (this.size() - drop > 1) {
+                boolean overCount = limits.getMaxReadings() > 0 && this.size() - drop > limits.getMaxReadings();
+                boolean overBytes = limits.getMaxBytes() > 0 && bytes > limits.getMaxBytes();
+                boolean tooOld = limits.getMaxAge() > 0 && now - this.arrival.storedAt[this.from + drop] > limits.getMaxAge();
+                if (!overCount && !overBytes && !tooOld) {
+                    break;
+                }
+                bytes -= this.arrival.sizes[this.from + drop];
+                drop++;
+            }
+            return drop;
+        }
+    }
+
+    private final AtomicReference<Version> current = new AtomicReference<>(Version.EMPTY);
+    private volatile Retention retention;
+    private final AtomicLong evicted = new AtomicLong();
+    // the data of the readings added, in primitive columns instead of a JsonObject each
+    private final StationColumns columns = new StationColumns();
+
+    /**
+     * @param retention How much history to keep.
+     */
+    public StationHistory(Retention retention) {
+        this.retention = retention;
+    }
+
+    /**
+     * Changes the retention, readings over the new limits are dropped straight away.
+     * @param retention How much history to keep.
+     */
+    public void setRetention(Retention retention) {
+        this.retention = retention;
+        this.evictExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Adds the newest reading and drops the oldest ones the retention no longer allows.
+     * @param reading The reading.
+     * @param now The time the reading is stored, in milliseconds.
+     */
+    public void add(WeatherFormat reading, long now) {
+        // a reading that keeps its data elsewhere, in a mapped segment or another history's columns, stays as it is
+        if (reading.getClass() == WeatherFormat.class) {
+            reading = this.columns.pack(reading);
+        }
+        int size = estimateSize(reading);
+        while (true) {
+            Version before = this.current.get();
+            Version added = before.add(reading, now, size);
+            int drop = added.overLimits(this.retention, now);
+            Version after = drop == 0 ? added : added.drop(drop);
+            if (this.current.compareAndSet(before, after)) {
+                this.evicted.addAndGet(drop);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest readings the retention no longer allows, by age in particular.
+     * @param now The current time in milliseconds.
+     * @return The number of readings dropped.
+     */
+    public int evictExpired(long now) {
+        while (true) {
+            Version before = this.current.get();
+            int drop = before.overLimits(this.retention, now);
+            if (drop == 0) {
+                return 0;
+            }
+            if (this.current.compareAndSet(before, before.drop(drop))) {
+                this.evicted.addAndGet(drop);
+                return drop;
+            }
+        }
+    }
+
+    /**
+     * Removes every reading matching the filter, keeping the order of the others.
+     * @param filter Selects the readings to remove.
+     * @return true if anything was removed.
+     */
+    public boolean removeIf(Predicate<WeatherFormat> filter) {
+        return this.removeIf(filter, Long.MAX_VALUE);
+    }
+
+    /**
+     * Removes every reading matching the filter that was stored at or before a time, so readings
+     * that arrive while a removal is decided elsewhere are kept.
+     * @param filter Selects the readings to remove.
+     * @param storedUntil Only readings stored at or before this time are removed.
+     * @return true if anything was removed.
+     */
+    public boolean removeIf(Predicate<WeatherFormat> filter, long storedUntil) {
+        while (true) {
+            Version before = this.current.get();
+            int length = before.size();
+            Slots kept = Slots.empty(grow(length), true);
+            Map<WeatherFormat, Boolean> removed = new IdentityHashMap<>();
+            int count = 0;
+            long bytes = before.bytes;
+            for (int i = before.from; i < before.to; i++) {
+                if (before.arrival.storedAt[i] <= storedUntil && filter.test(before.arrival.readings[i])) {
+                    removed.put(before.arrival.readings[i], Boolean.TRUE);
+                    bytes -= before.arrival.sizes[i];
+                    continue;
+                }
+                kept.readings[count] = before.arrival.readings[i];
+                kept.storedAt[count] = before.arrival.storedAt[i];
+                kept.sizes[count] = before.arrival.sizes[i];
+                count++;
+            }
+            if (removed.isEmpty()) {
+                return false;
+            }
+            kept.filled.set(count);
+            Slots sorted = Slots.empty(grow(count), false);
+            int j = 0;
+            for (int i = before.sortedFrom; i < before.sortedTo; i++) {
+                if (!removed.containsKey(before.sorted.readings[i])) {
+                    sorted.readings[j++] = before.sorted.readings[i];
+                }
+            }
+            sorted.filled.set(j);
+            Version after = new Version(kept, 0, count, sorted, 0, j, bytes);
+            if (this.current.compareAndSet(before, after)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Latest reading, by Lamport time, that is not after the given time.
+     * Of readings with the same Lamport time the one stored last is returned.
+     * @param lamport The Lamport time of the reader.
+     * @return The reading, or null if every reading is newer.
+     */
+    public WeatherFormat latestAtOrBefore(int lamport) {
+        Version version = this.current.get();
+        int at = upperBound(version.sorted.readings, version.sortedFrom, version.sortedTo, lamport);
+        return at == version.sortedFrom ? null : version.sorted.readings[at - 1];
+    }
+
+    /**
+     * Latest reading, by Lamport time, sent by one source.
+     * @param source The sender of the reading.
+     * @return The reading, or null if the source has none kept.
+     */
+    public WeatherFormat latestFrom(String source) {
+        Version version = this.current.get();
+        for (int i = version.sortedTo - 1; i >= version.sortedFrom; i--) {
+            if (Objects.equals(version.sorted.readings[i].getSource(), source)) {
+                return version.sorted.readings[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Readings with a Lamport time in a range, in Lamport order.
+     * @param fromLamport The lowest Lamport time, inclusive.
+     * @param toLamport The highest Lamport time, inclusive.
+     * @return An unmodifiable list, empty if no reading is in the range.
+     */
+    public List<WeatherFormat> range(int fromLamport, int toLamport) {
+        if (fromLamport > toLamport) {
+            return Collections.emptyList();
+        }
+        Version version = this.current.get();
+        WeatherFormat[] byLamport = version.sorted.readings;
+        int from = upperBound(byLamport, version.sortedFrom, version.sortedTo, fromLamport - 1L);
+        int to = upperBound(byLamport, version.sortedFrom, version.sortedTo, toLamport);
+        return Collections.unmodifiableList(Arrays.asList(byLamport).subList(from, to));
+    }
+
+    /**
+     * The oldest reading kept.
+     * @return The reading, or null if the history is empty.
+     */
+    public WeatherFormat peek() {
+        Version version = this.current.get();
+        return version.size() == 0 ? null : version.arrival.readings[version.from];
+    }
+
+    public int size() {
+        return this.current.get().size();
+    }
+
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * Estimated memory held by the readings of this station.
+     * @return The estimate in bytes.
+     */
+    public long getEstimatedBytes() {
+        return this.current.get().bytes;
+    }
+
+    /**
+     * Number of readings dropped by the retention so far.
+     * @return The eviction count.
+     */
+    public long getEvicted() {
+        return this.evicted.get();
+    }
+
+    /**
+     * Highest Lamport time among the readings kept, the last one in Lamport order.
+     * @return The highest Lamport time, 0 when the history is empty.
+     */
+    public int getMaxLamport() {
+        Version version = this.current.get();
+        return version.sortedTo == version.sortedFrom ? 0
+                : Math.max(0, version.sorted.readings[version.sortedTo - 1].getLamport());
+    }
+
+    /**
+     * The readings as they are now, oldest first. Later changes do not show in the list, so it needs no copy.
+     * @return An unmodifiable list.
+     */
+    public List<WeatherFormat> toList() {
+        Version version = this.current.get();
+        return Collections.unmodifiableList(Arrays.asList(version.arrival.readings).subList(version.from, version.to));
+    }
+
+    /**
+     * Iterates over the readings as they were when it was created, oldest first.
+     */
+    @Override
+    public Iterator<WeatherFormat> iterator() {
+        return this.toList().iterator();
+    }
+
+    /**
+     * Index of the first reading of byLamport[from, to) with a Lamport time after lamport.
+     */
+    private static int upperBound(WeatherFormat[] byLamport, int from, int to, long lamport) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (byLamport[mid].getLamport() <= lamport) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Capacity of new arrays for count readings, with room for as many more.
+     */
+    private static int grow(int count) {
+        return Math.max(MIN_CAPACITY, 2 * (count + 1));
+    }
+
+    private static int estimateSize(WeatherFormat reading) {
+        int size = READING_OVERHEAD;
+        if (reading.getSource() != null) {
+            size += reading.getSource().length() * 2;
+        }
+        size += reading.estimatedDataBytes();
+        return size;
+    }
+}
@@ -0,0 +1,201 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonObject;
+
+public class StationHistory_Test {
+
+    private static WeatherFormat reading(int lamport, String source) {
+        JsonObject data = new JsonObject();
+        data.addProperty("id", "IDS60901");
+        data.addProperty("air_temp", 13.3);
+        return new WeatherFormat(lamport, source, data);
+    }
+
+    @Test
+    void testCountRetentionWrapsAround() {
+        StationHistory history = new StationHistory(new StationHistory.Retention(3, 0, 0));
+        for (int i = 1; i <= 10; i++) {
+            history.add(reading(i, "ContentServer1"), 1000);
+        }
+
+        assertEquals(3, history.size());
+        assertEquals(7, history.getEvicted());
+        assertEquals(8, history.peek().getLamport(), "The oldest readings should be dropped first");
+        List<WeatherFormat> kept = history.toList();
+        assertEquals(10, kept.get(2).getLamport());
+        assertEquals(10, history.getMaxLamport());
+    }
+
+    @Test
+    void testByteAndAgeRetention() {
+        StationHistory history = new StationHistory(new StationHistory.Retention(0, 0, 1));
+        history.add(reading(1, "ContentServer1"), 1000);
+        history.add(reading(2, "ContentServer1"), 1000);
+        assertEquals(1, history.size(), "Over the byte budget only the newest reading is kept");
+        assertEquals(2, history.peek().getLamport());
+        assertTrue(history.getEstimatedBytes() > 0);
+
+        StationHistory aging = new StationHistory(new StationHistory.Retention(0, 5000, 0));
+        aging.add(reading(1, "ContentServer1"), 1000);
+        aging.add(reading(2, "ContentServer1"), 4000);
+        aging.add(reading(3, "ContentServer1"), 8000);
+        assertEquals(2, aging.size(), "Readings older than the age limit are dropped on add");
+        assertEquals(1, aging.evictExpired(9500));
+        assertEquals(3, aging.peek().getLamport());
+    }
+
+    @Test
+    void testRemoveIfAndLookup() {
+        StationHistory history = new StationHistory(StationHistory.Retention.DEFAULT);
+        history.add(reading(5, "ContentServer1"), 1000);
+        history.add(reading(3, "ContentServer2"), 1000);
+        history.add(reading(9, "ContentServer1"), 1000);
+        long bytes = history.getEstimatedBytes();
+
+        assertEquals(5, history.latestAtOrBefore(8).getLamport());
+        assertNull(history.latestAtOrBefore(2));
+        assertEquals(9, history.latestFrom("ContentServer1").getLamport());
+        assertEquals(3, history.latestFrom("ContentServer2").getLamport());
+        assertNull(history.latestFrom("ContentServer3"));
+
+        assertEquals(9, history.getMaxLamport());
+        assertTrue(history.removeIf(r -> "ContentServer1".equals(r.getSource())));
+        assertEquals(1, history.size());
+        assertEquals(3, history.getMaxLamport(), "Dropping the highest reading lowers the maximum");
+        assertEquals(3, history.peek().getLamport());
+        assertTrue(history.getEstimatedBytes() < bytes);
+        assertFalse(history.removeIf(r -> false));
+    }
+
+    @Test
+    void testLamportIndex() {
+        StationHistory history = new StationHistory(new StationHistory.Retention(4, 0, 0));
+        int[] arrivals = {12, 4, 8, 4, 20, 16};
+        for (int i = 0; i < arrivals.length; i++) {
+            history.add(reading(arrivals[i], "ContentServer" + i), 1000);
+        }
+
+        // 12 and the first 4 were dropped by the count limit, the index follows
+        assertNull(history.latestAtOrBefore(3));
+        assertEquals(4, history.latestAtOrBefore(7).getLamport());
+        assertEquals("ContentServer3", history.latestAtOrBefore(4).getSource());
+        assertEquals(16, history.latestAtOrBefore(19).getLamport());
+        assertEquals(20, history.latestAtOrBefore(Integer.MAX_VALUE).getLamport());
+        assertEquals(20, history.getMaxLamport());
+
+        List<WeatherFormat> span = history.range(5, 16);
+        assertEquals(2, span.size());
+        assertEquals(8, span.get(0).getLamport());
+        assertEquals(16, span.get(1).getLamport());
+        assertTrue(history.range(9, 15).isEmpty());
+        assertTrue(history.range(16, 5).isEmpty());
+    }
+
+    @Test
+    void testLongHistoryKeepsEarlierVersions() {
+        StationHistory history = new StationHistory(new StationHistory.Retention(0, 100000, 0));
+        List<List<WeatherFormat>> taken = new ArrayList<>();
+        for (int i = 1; i <= 5000; i++) {
+            // every tenth reading arrives late and goes before the latest in the Lamport order
+            history.add(reading(i % 10 == 0 ? i - 5 : i, "ContentServer1"), i);
+            if (i % 500 == 0) {
+                taken.add(history.toList());
+            }
+        }
+        assertEquals(5000, history.size());
+        assertEquals(4999, history.getMaxLamport());
+        // readings added to the shared arrays after a list was taken do not show in it
+        for (int t = 0; t < taken.size(); t++) {
+            List<WeatherFormat> list = taken.get(t);
+            assertEquals(500 * (t + 1), list.size());
+            assertSame(history.toList().get(list.size() - 1), list.get(list.size() - 1));
+        }
+        List<WeatherFormat> all = history.range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        assertEquals(5000, all.size());
+        for (int i = 1; i < all.size(); i++) {
+            assertTrue(all.get(i).getLamport() >= all.get(i - 1).getLamport());
+        }
+
+        // nearly everything ages out, what is left is still in order
+        assertEquals(4989, history.evictExpired(100000 + 4990));
+        assertEquals(11, history.size());
+        assertEquals(4985, history.peek().getLamport());
+        assertEquals(List.of(4985, 4991), history.range(4985, 4991).stream().map(WeatherFormat::getLamport).toList());
+        history.add(reading(6000, "ContentServer1"), 5001);
+        assertEquals(6000, history.latestAtOrBefore(Integer.MAX_VALUE).getLamport());
+        assertTrue(history.removeIf(r -> r.getLamport() == 6000));
+        assertEquals(4999, history.getMaxLamport());
+
+        StationHistory inOrder = new StationHistory(new StationHistory.Retention(0, 100000, 0));
+        for (int i = 1; i <= 1000; i++) {
+            inOrder.add(reading(i, "ContentServer1"), i);
+        }
+        assertEquals(994, inOrder.evictExpired(100000 + 995));
+        assertEquals(List.of(995, 996, 997, 998, 999, 1000), inOrder.toList().stream().map(WeatherFormat::getLamport).toList());
+        assertEquals(997, inOrder.latestAtOrBefore(997).getLamport());
+        inOrder.add(reading(1001, "ContentServer1"), 1001);
+        assertEquals(7, inOrder.range(0, 2000).size());
+    }
+
+    @Test
+    void testReadersDuringWrites() throws Exception {
+        StationHistory history = new StationHistory(new StationHistory.Retention(64, 0, 0));
+        history.add(reading(0, "ContentServer0"), 1000);
+        List<WeatherFormat> before = history.toList();
+
+        int writers = 4;
+        int perWriter = 2000;
+        AtomicInteger lamport = new AtomicInteger();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    history.add(reading(lamport.incrementAndGet(), "ContentServer1"), 1000);
+                }
+            }));
+        }
+        Thread reader = new Thread(() -> {
+            try {
+                while (writing.get()) {
+                    int count = 0;
+                    int previous = Integer.MIN_VALUE;
+                    for (WeatherFormat r : history.range(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+                        assertTrue(r.getLamport() >= previous, "A version is always in Lamport order");
+                        previous = r.getLamport();
+                        count++;
+                    }
+                    assertTrue(count >= 1 && count <= 64);
+                    assertNotNull(history.latestAtOrBefore(Integer.MAX_VALUE));
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        reader.start();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        writing.set(false);
+        reader.join();
+
+        assertTrue(errors.isEmpty(), "Reader failed: " + errors);
+        // every write was published by compare-and-set, none was lost
+        assertEquals(64, history.size());
+        assertEquals(writers * perWriter + 1 - 64, history.getEvicted());
+        assertEquals(writers * perWriter, history.getMaxLamport());
+        assertEquals(1, before.size(), "A list taken earlier does not change");
+    }
+}
@@ -0,0 +1,1025 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * One part of the data kept by DatabaseManagement, with its own lock, snapshot files, write-ahead log
+ * and expiry timer, so shards are saved, checkpointed, recovered and expired independently.
+ * A shard holds the stations whose ID hashes to it and the timestamps of the senders whose ID hashes to it.
+ * When a sender expires the shard holding its timestamp reports it, and DatabaseManagement drops the
+ * sender's readings from every shard.
+ *
+ * A shard persists its changes with one of two backends. JSON appends them to a write-ahead log and
+ * writes data.json, sender.json and meta.json snapshots. MAPPED appends them to memory-mapped segments
+ * (see MappedSegmentStore), keeps only the place of each reading's JSON in memory, and compacts the
+ * segments instead of writing snapshots.
+ */
+public class StorageShard {
+    /**
+     * How a shard persists its changes.
+     */
+    public enum Backend {
+        JSON,
+        MAPPED
+    }
+
+    static final long EXPIRE_SAVE = 30000;
+    static final long CHECKPOINT_INTERVAL = 5000;
+    // the MAPPED backend leaves fewer dead bytes than this in place
+    private static final long MIN_COMPACTION_BYTES = 1 << 20;
+    private static final String HIGHEST_LAMPORT = "highestLamport";
+
+    private final String dataFile;
+    private final String dataBackupFile;
+    private final String senderFile;
+    private final String senderBackupFile;
+    private final String metaFile;
+    private final String metaBackupFile;
+    private final ScheduledExecutorService schedule;
+    // told about each sender whose deadline passed and the time it was found expired, outside the lock
+    private final BiConsumer<String, Long> senderExpired;
+    private String latestStationID;
+    private Map<String, StationHistory> weatherData = new ConcurrentHashMap<>();
+    private volatile StationHistory.Retention retention = StationHistory.Retention.DEFAULT;
+    // highest Lamport time of each station and how many stations have it, guarded by this
+    private final Map<String, Integer> stationMaxLamport = new HashMap<>();
+    private final TreeMap<Integer, Integer> maxLamportCounts = new TreeMap<>();
+    private volatile int highestLamport;
+    private Map<String, Long> senderTimestamp = new ConcurrentHashMap<>();
+    // changes made since the snapshot files were last written, with the JSON backend
+    private final WriteAheadLog log;
+    // every change, with the MAPPED backend
+    private final MappedSegmentStore store;
+    // counts changes under the lock, the checkpointer only writes when it moved since the last snapshot
+    private long changes;
+    private long checkpointedChanges;
+    // one checkpoint at a time, and clear() does not interleave with one
+    private final Object checkpointLock = new Object();
+    // stations of this shard each sender has readings in, so expiring a sender only visits its own stations, guarded by this
+    private final Map<String, Set<String>> stationsBySource = new HashMap<>();
+    // when each sender expires, earliest first; guarded by this
+    private final PriorityQueue<ExpiryDeadline> deadlines = new PriorityQueue<>();
+    private final Map<String, Long> queuedDeadline = new HashMap<>();
+    // no timer is set until every shard is loaded, an expired sender may have readings in any of them
+    private boolean started;
+    // what loadData() read, guarded by this
+    private long loadedRecords;
+    private long loadedBytes;
+    private ScheduledFuture<?> expiryTimer;
+    private long expiryTimerAt = Long.MAX_VALUE;
+
+    /**
+     * The time a sender's data expires unless it sends again before.
+     */
+    private static class ExpiryDeadline implements Comparable<ExpiryDeadline> {
+        private final long at;
+        private final String source;
+
+        private ExpiryDeadline(long at, String source) {
+            this.at = at;
+            this.source = source;
+        }
+
+        @Override
+        public int compareTo(ExpiryDeadline other) {
+            return Long.compare(this.at, other.at);
+        }
+    }
+
+    /**
+     * One line of the write-ahead log: a weather reading stored under a station, or a sender timestamp.
+     */
+    private static class LogRecord {
+        private static final String DATA = "data";
+        private static final String TIME = "time";
+
+        private String op;
+        private String key;
+        private WeatherFormat value;
+        private long time;
+
+        private LogRecord(String op, String key, WeatherFormat value, long time) {
+            this.op = op;
+            this.key = key;
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Creates an empty shard, loadData() reads what it has on disk.
+     * @param directory Directory of the shard's snapshot files and log segments.
+     * @param schedule Runs the shard's expiry timer and maintenance.
+     * @param senderExpired Called with each sender found expired and the time it was found so.
+     * @param backend How the shard persists its changes.
+     */
+    StorageShard(String directory, ScheduledExecutorService schedule, BiConsumer<String, Long> senderExpired,
+                 Backend backend) {
+        this.dataFile = directory + File.separator + "data.json";
+        this.dataBackupFile = directory + File.separator + "data_backup.json";
+        this.senderFile = directory + File.separator + "sender.json";
+        this.senderBackupFile = directory + File.separator + "sender_backup.json";
+        this.metaFile = directory + File.separator + "meta.json";
+        this.metaBackupFile = directory + File.separator + "meta_backup.json";
+        this.schedule = schedule;
+        this.senderExpired = senderExpired;
+        new File(directory).mkdirs();
+        if (backend == Backend.MAPPED) {
+            this.log = null;
+            this.store = new MappedSegmentStore(directory + File.separator + "store", MappedSegmentStore.DEFAULT_SEGMENT_SIZE);
+        } else {
+            this.log = new WriteAheadLog(directory + File.separator + "wal");
+            this.store = null;
+        }
+    }
+
+    /**
+     * Starts the shard's expiry timer, periodic age eviction and checkpoints.
+     */
+    void startMaintenance() {
+        synchronized (this) {
+            this.started = true;
+            if (!this.deadlines.isEmpty()) {
+                this.scheduleExpiry(this.deadlines.peek().at);
+            }
+        }
+        this.schedule.scheduleAtFixedRate(this::evictAged, 5, 5, TimeUnit.SECONDS);
+        this.schedule.scheduleWithFixedDelay(this::runCheckpoint, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Loads the shard's data from persistent storage into memory.
+     * Streams the weather data from data.json (see SnapshotLoader) and retrieves sender timestamps from
+     * JSON files, handling potential file errors, then replays the write-ahead log for the changes made after those files were written.
+     * Loaded readings count as stored now for the retention's age limit.
+     * Every loaded sender gets its expiry deadline.
+     */
+    public synchronized void loadData() {
+        if (this.store != null) {
+            this.loadStore();
+            return;
+        }
+        SnapshotLoader.Result snapshot = this.loadSnapshot();
+
+        Map<String, Long> loadedSenderTimestamp = loadDataFromFile(this.senderFile, this.senderBackupFile,
+            new TypeToken<ConcurrentHashMap<String, Long>>(){}.getType());
+
+        Map<String, Integer> loadedMeta = loadDataFromFile(this.metaFile, this.metaBackupFile,
+            new TypeToken<Map<String, Integer>>(){}.getType());
+
+        if (snapshot != null) {
+            this.weatherData = snapshot.histories;
+            this.loadedRecords = snapshot.readings;
+            this.loadedBytes = snapshot.bytes;
+            this.resetHighestLamport();
+            for (Map.Entry<String, StationHistory> entry : snapshot.histories.entrySet()) {
+                for (WeatherFormat reading : entry.getValue()) {
+                    this.indexSource(reading.getSource(), entry.getKey());
+                }
+            }
+        }
+        // the histories track their highest Lamport time as they are rebuilt, the snapshot's own value checks them
+        if (snapshot != null && loadedMeta != null && loadedMeta.containsKey(HIGHEST_LAMPORT)
+                && loadedMeta.get(HIGHEST_LAMPORT) != this.highestLamport) {
+            System.out.println("Snapshot highest Lamport " + loadedMeta.get(HIGHEST_LAMPORT)
+                    + " does not match the loaded data, using " + this.highestLamport);
+        }
+
+        if (loadedSenderTimestamp != null) {
+            this.senderTimestamp = loadedSenderTimestamp;
+            for (Map.Entry<String, Long> entry : loadedSenderTimestamp.entrySet()) {
+                this.trackDeadline(entry.getKey(), entry.getValue());
+            }
+        }
+
+        this.loadedBytes += this.log.size();
+        int replayed = this.log.replay(this::applyLogRecord);
+        this.loadedRecords += replayed;
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " log records");
+        }
+    }
+
+    /**
+     * Rebuilds the shard from its mapped segments. Only record headers are read, each reading's JSON
+     * stays in its segment, and readings keep the time they were first stored for the age limit.
+     */
+    private void loadStore() {
+        int replayed;
+        try {
+            replayed = this.store.replay(new MappedSegmentStore.Visitor() {
+                @Override
+                public void reset() {
+                    weatherData.clear();
+                    senderTimestamp.clear();
+                    stationsBySource.clear();
+                    latestStationID = null;
+                }
+
+                @Override
+                public void reading(String station, MappedSegmentStore.Reading reading) {
+                    history(station).add(reading, reading.getStoredAt());
+                    indexSource(reading.getSource(), station);
+                    latestStationID = station;
+                }
+
+                @Override
+                public void time(String source, long time) {
+                    senderTimestamp.put(source, time);
+                }
+
+                @Override
+                public void remove(String station, String source, long storedUntil) {
+                    StationHistory history = weatherData.get(station);
+                    if (history != null && history.removeIf(d -> source.equals(d.getSource()), storedUntil)
+                            && history.isEmpty()) {
+                        weatherData.remove(station);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Error mapping store: " + e.getMessage());
+        }
+        this.loadedRecords = replayed;
+        this.loadedBytes = this.store.size();
+        this.resetHighestLamport();
+        for (Map.Entry<String, Long> entry : this.senderTimestamp.entrySet()) {
+            this.trackDeadline(entry.getKey(), entry.getValue());
+        }
+        if (replayed > 0) {
+            System.out.println("Mapped " + replayed + " store records");
+        }
+    }
+
+    /**
+     * Applies one write-ahead log record to the in-memory data.
+     * @param line The record as written by appendLog.
+     */
+    private void applyLogRecord(String line) {
+        LogRecord record = JsonHandling.convertObject(line, LogRecord.class);
+        if (record == null || record.key == null) {
+            throw new IllegalArgumentException("Incomplete record");
+        }
+        if (LogRecord.DATA.equals(record.op)) {
+            StationHistory readings = this.history(record.key);
+            // a crash after the snapshot was written but before its segments were deleted replays them again
+            int lamport = record.value.getLamport();
+            if (readings.range(lamport, lamport).stream().noneMatch(r -> sameReading(r, record.value))) {
+                readings.add(record.value, System.currentTimeMillis());
+                this.updateHighestLamport(record.key, readings);
+                this.indexSource(record.value.getSource(), record.key);
+            }
+            this.latestStationID = record.key;
+        } else if (LogRecord.TIME.equals(record.op)) {
+            this.senderTimestamp.put(record.key, record.time);
+            this.trackDeadline(record.key, record.time);
+        } else {
+            throw new IllegalArgumentException("Unknown record " + record.op);
+        }
+    }
+
+    private static boolean sameReading(WeatherFormat a, WeatherFormat b) {
+        return a.getLamport() == b.getLamport() && Objects.equals(a.getSource(), b.getSource())
+                && Objects.equals(a.getData(), b.getData());
+    }
+
+    /**
+     * Queues a change for the write-ahead log, the caller holds the lock so records keep the order of the changes.
+     * @param record The change to log.
+     * @return The log sequence number of the record.
+     */
+    private long appendLog(LogRecord record) {
+        return this.log.append(JsonHandling.convertJSON(record));
+    }
+
+    /**
+     * The write-ahead log of the JSON backend.
+     * @return The log, or null with the MAPPED backend.
+     */
+    WriteAheadLog getLog() {
+        return this.log;
+    }
+
+    /**
+     * Selects when the shard's changes are forced to disk.
+     */
+    void setSyncPolicy(WriteAheadLog.SyncPolicy syncPolicy, long syncInterval) {
+        if (this.store != null) {
+            this.store.setSyncPolicy(syncPolicy, syncInterval);
+        } else {
+            this.log.setSyncPolicy(syncPolicy, syncInterval);
+        }
+    }
+
+    WriteAheadLog.SyncPolicy getSyncPolicy() {
+        return this.store != null ? this.store.getSyncPolicy() : this.log.getSyncPolicy();
+    }
+
+    /**
+     * Waits until every change made so far is as durable as the sync policy makes it.
+     * @throws IOException If the changes could not be written.
+     */
+    void sync() throws IOException {
+        if (this.store != null) {
+            this.store.sync();
+        } else {
+            this.log.flush();
+        }
+    }
+
+    /**
+     * Bytes of the log, or of the mapped segments, on disk.
+     * @return The size.
+     */
+    long getLogSize() {
+        return this.store != null ? this.store.size() : this.log.size();
+    }
+
+    /**
+     * Writes out what is pending, the shard is not used afterwards.
+     */
+    void close() {
+        if (this.store != null) {
+            this.store.close();
+        } else {
+            this.log.close();
+        }
+    }
+
+    /**
+     * The highest Lamport time stored in this shard.
+     * @return The highest Lamport time, 0 when the shard is empty.
+     */
+    public int getHighestLamportClock() {
+        return this.highestLamport;
+    }
+
+    /**
+     * Records a station's highest Lamport time after its history changed, and updates the shard's highest.
+     * Costs a lookup in the table of station maxima, no reading is scanned; an emptied station leaves the table,
+     * so the highest goes down when the readings holding it expire.
+     * Called under the lock.
+     * @param key The station ID.
+     * @param history The station's history, empty if the station was removed.
+     */
+    private void updateHighestLamport(String key, StationHistory history) {
+        Integer before = this.stationMaxLamport.remove(key);
+        if (before != null) {
+            this.maxLamportCounts.computeIfPresent(before, (lamport, stations) -> stations == 1 ? null : stations - 1);
+        }
+        if (history != null && !history.isEmpty()) {
+            int after = history.getMaxLamport();
+            this.stationMaxLamport.put(key, after);
+            this.maxLamportCounts.merge(after, 1, Integer::sum);
+        }
+        this.highestLamport = this.maxLamportCounts.isEmpty() ? 0 : this.maxLamportCounts.lastKey();
+    }
+
+    private void resetHighestLamport() {
+        this.stationMaxLamport.clear();
+        this.maxLamportCounts.clear();
+        this.highestLamport = 0;
+        for (Map.Entry<String, StationHistory> entry : this.weatherData.entrySet()) {
+            this.updateHighestLamport(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Streams data.json into the stations' histories, see SnapshotLoader, and reads the backup file
+     * when the main file cannot be read, as loadDataFromFile does for the other files.
+     * Loaded readings count as stored now for the retention's age limit.
+     * @return The histories, or null if neither file holds a snapshot.
+     */
+    private SnapshotLoader.Result loadSnapshot() {
+        long now = System.currentTimeMillis();
+        // stations parsed ahead of the pool building their histories
+        int parallelism = 2 * ForkJoinPool.getCommonPoolParallelism();
+        try {
+            File file = new File(this.dataFile);
+            if (!file.exists()) {
+                file.getParentFile().mkdirs();
+                Files.write(file.toPath(), "{}".getBytes());
+            }
+            return SnapshotLoader.load(file.toPath(), this.retention, now, ForkJoinPool.commonPool(), parallelism);
+        } catch (IOException e) {
+            System.out.println("Error reading from main file: " + e.getMessage());
+            System.out.println("Attempting to read from backup file...");
+            try {
+                return SnapshotLoader.load(Paths.get(this.dataBackupFile), this.retention, now,
+                        ForkJoinPool.commonPool(), parallelism);
+            } catch (IOException ex) {
+                System.out.println("Error reading from backup file: " + ex.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Records read by the last loadData(): snapshot readings and replayed log records, or store records.
+     */
+    synchronized long getLoadedRecords() {
+        return this.loadedRecords;
+    }
+
+    /**
+     * Bytes read by the last loadData(): data.json and the log, or the mapped segments.
+     */
+    synchronized long getLoadedBytes() {
+        return this.loadedBytes;
+    }
+
+    /**
+     * Generic method to load data from a file with error handling and backup support.
+     * @param filePath The primary file path to load from.
+     * @param backupFilePath The backup file path to use if the primary fails.
+     * @param type The type of data to deserialize into.
+     * @return The deserialized data of type T, or null if loading fails.
+     */
+    private <T> T loadDataFromFile(String filePath, String backupFilePath, Type type) {
+        try {
+            File file = new File(filePath);
+            if (!file.exists()) {
+                file.getParentFile().mkdirs();
+                file.createNewFile();
+                Files.write(Paths.get(filePath), "{}".getBytes());
+            }
+
+            String jsonData = new String(Files.readAllBytes(Paths.get(filePath)), StandardCharsets.UTF_8);
+            return JsonHandling.convertObject(jsonData, type);
+        } catch (IOException e) {
+            System.out.println("Error reading from main file: " + e.getMessage());
+            System.out.println("Attempting to read from backup file...");
+            try {
+                String backupData = new String(Files.readAllBytes(Paths.get(backupFilePath)), StandardCharsets.UTF_8);
+                return JsonHandling.convertObject(backupData, type);
+            } catch (IOException ex) {
+                System.out.println("Error reading from backup file: " + ex.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Saves a reading of one of the shard's stations.
+     * Updates the in-memory data and appends the reading to the write-ahead log, the data files are only
+     * rewritten by the checkpointer, so a save costs the size of one reading however much is stored.
+     * The change is made under the lock so log records keep its order, the wait for the log commit is not,
+     * so readings saved by several workers at once are written and synced together.
+     * @param key The station ID.
+     * @param data The reading.
+     * @return true once the reading is committed to the log.
+     */
+    public boolean saveData(String key, WeatherFormat data) {
+        if (this.store != null) {
+            return this.saveMapped(key, data);
+        }
+        try {
+            long sequence;
+            synchronized (this) {
+                StationHistory history = this.history(key);
+                history.add(data, System.currentTimeMillis());
+                this.updateHighestLamport(key, history);
+                this.indexSource(data.getSource(), key);
+                this.latestStationID = key;
+                this.changes++;
+                sequence = this.appendLog(new LogRecord(LogRecord.DATA, key, data, 0));
+            }
+            this.log.await(sequence);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Saves a delta reading, which carries only the fields changed since the sender's reading with the Lamport
+     * time baseVersion, merged onto that reading. A field sent as null is removed. The base is checked and the
+     * merged reading added under the lock, so of two deltas against the same base only the first is saved.
+     * @param key The station ID.
+     * @param delta The changed fields, with the Lamport time and sender of the new reading.
+     * @param baseVersion The Lamport time of the reading the delta was made against.
+     * @return The merged reading once it is committed, null if the sender's latest reading of the station
+     *         is not the base, the sender then has to send the full reading again.
+     * @throws IOException If the reading could not be committed.
+     */
+    public WeatherFormat saveDelta(String key, WeatherFormat delta, int baseVersion) throws IOException {
+        WeatherFormat merged;
+        long sequence = 0;
+        synchronized (this) {
+            StationHistory history = this.weatherData.get(key);
+            WeatherFormat base = history == null ? null : history.latestFrom(delta.getSource());
+            if (base == null || base.getLamport() != baseVersion || base.getData() == null) {
+                return null;
+            }
+            merged = new WeatherFormat(delta.getLamport(), delta.getSource(), merge(base.getData(), delta.getData()));
+            long now = System.currentTimeMillis();
+            if (this.store != null) {
+                history.add(this.store.appendReading(key, merged, now), now);
+            } else {
+                history.add(merged, now);
+                sequence = this.appendLog(new LogRecord(LogRecord.DATA, key, merged, 0));
+            }
+            this.updateHighestLamport(key, history);
+            this.indexSource(merged.getSource(), key);
+            this.latestStationID = key;
+            this.changes++;
+        }
+        if (this.store != null) {
+            this.store.sync();
+        } else {
+            this.log.await(sequence);
+        }
+        return merged;
+    }
+
+    /**
+     * Copies a reading's fields with a delta applied: a field of the delta replaces the field of the reading,
+     * a field sent as null removes it.
+     */
+    private static JsonObject merge(JsonObject base, JsonObject delta) {
+        JsonObject merged = base.deepCopy();
+        for (Map.Entry<String, JsonElement> field : delta.entrySet()) {
+            if (field.getValue().isJsonNull()) {
+                merged.remove(field.getKey());
+            } else {
+                merged.add(field.getKey(), field.getValue());
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Saves several readings of the shard's stations as one change: they are added under one hold of the lock
+     * and queued for the log together, so the batch is written and synced once.
+     * @param keys The station ID of each reading.
+     * @param data The readings, in the order they are applied.
+     * @return true once every reading is committed to the log.
+     */
+    public boolean saveBatch(List<String> keys, List<WeatherFormat> data) {
+        if (keys.isEmpty()) {
+            return true;
+        }
+        try {
+            long sequence = 0;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                List<String> records = new ArrayList<>();
+                for (int i = 0; i < keys.size(); i++) {
+                    String key = keys.get(i);
+                    WeatherFormat reading = data.get(i);
+                    StationHistory history = this.history(key);
+                    if (this.store != null) {
+                        history.add(this.store.appendReading(key, reading, now), now);
+                    } else {
+                        history.add(reading, now);
+                        records.add(JsonHandling.convertJSON(new LogRecord(LogRecord.DATA, key, reading, 0)));
+                    }
+                    this.updateHighestLamport(key, history);
+                    this.indexSource(reading.getSource(), key);
+                    this.changes++;
+                }
+                this.latestStationID = keys.get(keys.size() - 1);
+                if (this.store == null) {
+                    sequence = this.log.append(records);
+                }
+            }
+            if (this.store != null) {
+                this.store.sync();
+            } else {
+                this.log.await(sequence);
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Saves a reading with the MAPPED backend. The history holds the stored record, not the reading passed in,
+     * and the segment is forced outside the lock.
+     */
+    private boolean saveMapped(String key, WeatherFormat data) {
+        try {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                StationHistory history = this.history(key);
+                history.add(this.store.appendReading(key, data, now), now);
+                this.updateHighestLamport(key, history);
+                this.indexSource(data.getSource(), key);
+                this.latestStationID = key;
+                this.changes++;
+            }
+            this.store.sync();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Writes one snapshot file through its backup file, forced to disk before it replaces the old one.
+     * @param data The snapshot to write.
+     * @param filePath The snapshot file.
+     * @param backupFilePath The file written first and moved over filePath.
+     * @return true if the file was written.
+     */
+    private boolean saveSnapshotFile(Object data, String filePath, String backupFilePath) {
+        try (FileChannel out = FileChannel.open(Paths.get(backupFilePath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(JsonHandling.convertJSON(data).getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(false);
+        } catch (Exception e) {
+            System.out.println("Error writing " + backupFilePath + ": " + e.getMessage());
+            return false;
+        }
+        try {
+            Files.move(Paths.get(backupFilePath), Paths.get(filePath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (Exception e) {
+            System.out.println("Error writing " + filePath + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Updates the last timestamp of a sender whose ID hashes to this shard.
+     * The timestamp is queued for the write-ahead log without waiting.
+     * @param key The identifier for the content server.
+     * @param value The timestamp of the last update from this server.
+     */
+    public synchronized void saveTime(String key, long value) {
+        System.out.println("Saving timestampe: " + key + " " + value);
+        this.senderTimestamp.put(key, value);
+        this.trackDeadline(key, value);
+        this.changes++;
+        if (this.store != null) {
+            try {
+                this.store.appendTime(key, value);
+            } catch (IOException e) {
+                throw new RuntimeException("Error storing timestamp: " + e.getMessage());
+            }
+            return;
+        }
+        this.appendLog(new LogRecord(LogRecord.TIME, key, null, value));
+    }
+
+    private void indexSource(String source, String stationID) {
+        if (source != null) {
+            this.stationsBySource.computeIfAbsent(source, e -> new HashSet<>()).add(stationID);
+        }
+    }
+
+    /**
+     * Makes sure the sender has an expiry deadline queued no later than the one its timestamp gives.
+     * A later timestamp leaves the queued deadline alone, the deadline is checked again when it is due,
+     * so the queue holds about one entry per sender however often it sends.
+     * Called under the lock.
+     * @param source The sender.
+     * @param lastTime Its last update time.
+     */
+    private void trackDeadline(String source, long lastTime) {
+        long at = lastTime + EXPIRE_SAVE + 1;
+        Long queued = this.queuedDeadline.get(source);
+        if (queued == null || at < queued) {
+            this.queuedDeadline.put(source, at);
+            this.deadlines.add(new ExpiryDeadline(at, source));
+            this.scheduleExpiry(at);
+        }
+    }
+
+    /**
+     * Sets the expiry timer to fire at a deadline, unless it already fires earlier.
+     */
+    private void scheduleExpiry(long at) {
+        if (!this.started) {
+            return;
+        }
+        if (this.expiryTimer != null && this.expiryTimerAt <= at) {
+            return;
+        }
+        if (this.expiryTimer != null) {
+            this.expiryTimer.cancel(false);
+        }
+        this.expiryTimerAt = at;
+        this.expiryTimer = this.schedule.schedule(this::runExpiry,
+                Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void runExpiry() {
+        synchronized (this) {
+            this.expiryTimer = null;
+            this.expiryTimerAt = Long.MAX_VALUE;
+        }
+        try {
+            this.updateData();
+        } catch (Exception e) {
+            // keep expiring, the next deadline is scheduled below
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            if (!this.deadlines.isEmpty()) {
+                this.scheduleExpiry(this.deadlines.peek().at);
+            }
+        }
+    }
+
+    /**
+     * The shard's station histories.
+     * @return A map of station IDs to their respective weather histories.
+     */
+    public Map<String, StationHistory> getWeatherData() {
+        return this.weatherData;
+    }
+
+    private StationHistory history(String key) {
+        return this.weatherData.computeIfAbsent(key, e -> new StationHistory(this.retention));
+    }
+
+    /**
+     * Sets how much history every station keeps, stations over the new limits drop their oldest readings now.
+     * @param retention The limits by count, age and estimated size.
+     */
+    public synchronized void setRetention(StationHistory.Retention retention) {
+        this.retention = retention;
+        for (StationHistory history : this.weatherData.values()) {
+            history.setRetention(retention);
+        }
+        this.resetHighestLamport();
+        this.changes++;
+    }
+
+    /**
+     * Gets the last update timestamp for a sender whose ID hashes to this shard.
+     * @param k The identifier of the sender (content server).
+     * @return The timestamp of the last update from the specified sender.
+     */
+    public Long getSenderTimestamp(String k) {
+        return this.senderTimestamp.get(k);
+    }
+
+    /**
+     * The station of this shard that was updated last.
+     * @return The station ID, or null if none was updated since the shard was loaded.
+     */
+    public String getStationID() {
+        return this.latestStationID;
+    }
+
+    /**
+     * Drops the senders of this shard whose deadline passed and reports each of them, so their readings
+     * are removed from every shard. Only the senders whose deadline passed are looked at.
+     * The reports are made outside the lock, so removing readings from this shard does not wait on another.
+     */
+    public void updateData() {
+        List<String> expired = new ArrayList<>();
+        long currtime = System.currentTimeMillis();
+        synchronized (this) {
+            try {
+                while (!this.deadlines.isEmpty() && this.deadlines.peek().at <= currtime) {
+                    ExpiryDeadline deadline = this.deadlines.poll();
+                    if (!Long.valueOf(deadline.at).equals(this.queuedDeadline.get(deadline.source))) {
+                        continue; // an earlier deadline replaced this one
+                    }
+                    this.queuedDeadline.remove(deadline.source);
+                    Long lastTime = this.senderTimestamp.get(deadline.source);
+                    if (lastTime == null) {
+                        continue;
+                    }
+                    if (currtime - lastTime > EXPIRE_SAVE) {
+                        System.out.println("Expiring data from " + deadline.source);
+                        this.senderTimestamp.remove(deadline.source);
+                        this.changes++;
+                        expired.add(deadline.source);
+                    } else {
+                        // the sender updated since this deadline was queued
+                        this.trackDeadline(deadline.source, lastTime);
+                    }
+                }
+            } catch (Exception e) {
+               throw new RuntimeException("Error updating data: " + e.getMessage());
+            }
+        }
+        for (String source : expired) {
+            this.senderExpired.accept(source, currtime);
+        }
+    }
+
+    /**
+     * Drops an expired sender's readings from this shard, visiting only the stations it has written to.
+     * Readings stored after the sender was found expired belong to its next update and are kept.
+     * @param source The sender.
+     * @param expiredAt The time the sender was found expired.
+     */
+    public synchronized void expireReadings(String source, long expiredAt) {
+        Set<String> stations = this.stationsBySource.remove(source);
+        if (stations == null) {
+            return;
+        }
+        for (String stationID : stations) {
+            StationHistory data = this.weatherData.get(stationID);
+            if (data != null && data.removeIf(d -> source.equals(d.getSource()), expiredAt)) {
+                if (data.isEmpty()) {
+                    this.weatherData.remove(stationID);
+                }
+                this.updateHighestLamport(stationID, data);
+                this.changes++;
+                if (this.store != null) {
+                    try {
+                        this.store.appendRemove(stationID, source, expiredAt);
+                    } catch (IOException e) {
+                        // the sender's readings are dropped again when its timestamp is replayed
+                        System.out.println("Error storing expiry: " + e.getMessage());
+                    }
+                }
+            }
+            if (data != null) {
+                for (WeatherFormat reading : data) {
+                    if (source.equals(reading.getSource())) {
+                        this.indexSource(source, stationID);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops readings older than the retention's age limit, when one is set.
+     * Each station only checks its oldest readings, so this costs little when nothing is due.
+     */
+    public synchronized void evictAged() {
+        if (this.retention.getMaxAge() <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (String stationID : this.weatherData.keySet()) {
+            StationHistory data = this.weatherData.get(stationID);
+            if (data.evictExpired(now) > 0) {
+                if (data.isEmpty()) {
+                    this.weatherData.remove(stationID);
+                }
+                this.updateHighestLamport(stationID, data);
+                this.changes++;
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the shard and drops the log segments it covers, if anything changed since the last one.
+     * Only taking each station's current version, copying the sender map and starting a new log segment
+     * happens under the lock, serializing and writing the snapshot does not hold up saveData.
+     * The old segments are deleted once the files are on disk, otherwise a restart replays them on top
+     * of the previous snapshot.
+     * @return true if a snapshot was written.
+     */
+    public boolean checkpoint() {
+        if (this.store != null) {
+            return this.compact();
+        }
+        synchronized (this.checkpointLock) {
+            Map<String, List<WeatherFormat>> weatherSnapshot = new HashMap<>();
+            Map<String, Long> senderSnapshot;
+            Map<String, Integer> metaSnapshot;
+            long version;
+            int segment;
+            synchronized (this) {
+                if (this.changes == this.checkpointedChanges) {
+                    return false;
+                }
+                for (Map.Entry<String, StationHistory> entry : this.weatherData.entrySet()) {
+                    weatherSnapshot.put(entry.getKey(), entry.getValue().toList());
+                }
+                senderSnapshot = new HashMap<>(this.senderTimestamp);
+                metaSnapshot = Collections.singletonMap(HIGHEST_LAMPORT, this.highestLamport);
+                version = this.changes;
+                segment = this.log.roll();
+            }
+
+            if (!this.saveSnapshotFile(weatherSnapshot, this.dataFile, this.dataBackupFile)
+                    || !this.saveSnapshotFile(senderSnapshot, this.senderFile, this.senderBackupFile)
+                    || !this.saveSnapshotFile(metaSnapshot, this.metaFile, this.metaBackupFile)) {
+                return false;
+            }
+            try {
+                this.log.discardBefore(segment);
+            } catch (IOException e) {
+                System.out.println("Error dropping log segments: " + e.getMessage());
+            }
+            synchronized (this) {
+                this.checkpointedChanges = version;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Rewrites the MAPPED backend's live records into new segments and deletes the old ones, once more
+     * than half of the stored bytes belong to readings dropped by retention or expiry.
+     * Copying is done under the lock, it moves record bytes from segment to segment without decoding them,
+     * and each station's history is swapped for one holding the copies.
+     * @return true if the segments were compacted.
+     */
+    private boolean compact() {
+        synchronized (this.checkpointLock) {
+            synchronized (this) {
+                if (this.changes == this.checkpointedChanges) {
+                    return false;
+                }
+                long live = 0;
+                for (StationHistory history : this.weatherData.values()) {
+                    for (WeatherFormat reading : history) {
+                        live += ((MappedSegmentStore.Reading) reading).getRecordLength();
+                    }
+                }
+                long dead = this.store.size() - live;
+                if (dead <= live || dead < MIN_COMPACTION_BYTES) {
+                    // looked at again once something changes
+                    this.checkpointedChanges = this.changes;
+                    return false;
+                }
+                try {
+                    this.store.beginBase();
+                    Map<String, StationHistory> copies = new HashMap<>();
+                    for (Map.Entry<String, StationHistory> entry : this.weatherData.entrySet()) {
+                        StationHistory copy = new StationHistory(this.retention);
+                        for (WeatherFormat reading : entry.getValue()) {
+                            MappedSegmentStore.Reading stored = (MappedSegmentStore.Reading) reading;
+                            copy.add(this.store.copyReading(entry.getKey(), stored), stored.getStoredAt());
+                        }
+                        copies.put(entry.getKey(), copy);
+                    }
+                    for (Map.Entry<String, Long> entry : this.senderTimestamp.entrySet()) {
+                        this.store.appendTime(entry.getKey(), entry.getValue());
+                    }
+                    this.store.endBase();
+                    this.weatherData.putAll(copies);
+                    this.checkpointedChanges = this.changes;
+                    return true;
+                } catch (IOException e) {
+                    System.out.println("Error compacting store: " + e.getMessage());
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void runCheckpoint() {
+        try {
+            this.checkpoint();
+        } catch (Exception e) {
+            // keep the schedule running, the next run writes the snapshot
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Clears all data of the shard, including its write-ahead log.
+     */
+    public void clear() {
+        synchronized (this.checkpointLock) {
+            synchronized (this) {
+                try {
+                    this.weatherData.clear();
+                    this.senderTimestamp.clear();
+                    this.resetHighestLamport();
+                    this.stationsBySource.clear();
+                    this.deadlines.clear();
+                    this.queuedDeadline.clear();
+                    if (this.store != null) {
+                        this.store.truncate();
+                    } else {
+                        this.log.truncate();
+                    }
+                    this.changes = 0;
+                    this.checkpointedChanges = 0;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
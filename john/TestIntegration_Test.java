@@ -305,4 +305,192 @@ public class TestIntegration_Test {
         JsonObject afterExpirationResponse = this.client1.sendRequest("localhost", 4567, "IDS60902");
         assertNull(afterExpirationResponse, "Data should have been deleted after 30 seconds of inactivity");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testConcurrentClients() throws InterruptedException {
+        assertTrue(this.contentServer1.isLoadFileSuccess("data1_0.txt"));
+        this.contentServer1.uploadData("localhost", 4567);
+        Thread.sleep(500);
+
+        // Requests are processed by several workers per replica, none of them may get another client's response
+        List<Thread> clients = new ArrayList<>();
+        List<JsonObject> results = java.util.Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 20; i++) {
+            Thread t = new Thread(() -> results.add(new GETClient(new SocketServer()).sendRequest("localhost", 4567, "IDS60901")));
+            clients.add(t);
+            t.start();
+        }
+        for (Thread t : clients) {
+            t.join(10000);
+        }
+        assertEquals(20, results.size());
+        for (JsonObject res : results) {
+            assertNotNull(res);
+            assertEquals("IDS60901", res.get("id").getAsString());
+        }
+        // accepted clients went through the dispatch stage without being turned away
+        assertEquals(0, this.mainAggregationServer.getRejectedClients());
+        assertEquals(0, this.mainAggregationServer.getDispatchQueueDepth());
+        assertTrue(this.mainAggregationServer.getMaxQueueTime() >= this.mainAggregationServer.getAverageQueueTime());
+    }
+
+    @Test
+    public void testRoundRobinRouting() throws InterruptedException {
+        assertTrue(this.contentServer1.isLoadFileSuccess("data1_0.txt"));
+        this.contentServer1.uploadData("localhost", 4567);
+        Thread.sleep(500);
+
+        // every client after the upload lands on a different replica and still sees the data
+        for (int i = 0; i < 5; i++) {
+            JsonObject res = this.client1.sendRequest("localhost", 4567, "IDS60901");
+            assertNotNull(res);
+            assertEquals("IDS60901", res.get("id").getAsString());
+        }
+        for (AggregationServer server : this.servers) {
+            assertEquals(2, this.mainAggregationServer.getRoutedRequests(server),
+                    "Each replica should get its share of requests\n" + this.mainAggregationServer.getRoutingStats());
+        }
+    }
+
+    @Test
+    public void testKeepAlive() throws InterruptedException {
+        ContentServer keepAliveContent = new ContentServer(new SocketServer(true));
+        GETClient keepAliveClient = new GETClient(new SocketServer(true));
+        try {
+            assertTrue(keepAliveContent.isLoadFileSuccess("data1_0.txt"));
+            keepAliveContent.uploadData("localhost", 4567);
+            assertTrue(keepAliveContent.isLoadFileSuccess("data1_1.txt"));
+            keepAliveContent.uploadData("localhost", 4567);
+            Thread.sleep(500);
+
+            for (int i = 0; i < 3; i++) {
+                JsonObject res = keepAliveClient.sendRequest("localhost", 4567, "IDS60901");
+                assertNotNull(res);
+                assertEquals("40", res.get("lat").getAsString());
+            }
+
+            // one connection for the content server and one for the client
+            long connections = 0;
+            for (AggregationServer server : this.servers) {
+                connections += this.mainAggregationServer.getRoutedRequests(server);
+            }
+            assertEquals(2, connections, this.mainAggregationServer.getRoutingStats());
+        } finally {
+            keepAliveContent.shutdown();
+            keepAliveClient.shutdown();
+        }
+    }
+
+    @Test
+    public void testSingleRoundTrip() throws InterruptedException {
+        ContentServer singleRttContent = new ContentServer(new SocketServer(), true);
+        GETClient singleRttClient = new GETClient(new SocketServer(), true);
+
+        assertTrue(singleRttContent.isLoadFileSuccess("data1_0.txt"));
+        singleRttContent.uploadData("localhost", 4567);
+        Thread.sleep(500);
+
+        // A legacy client still gets the greeting first and reads the same data
+        JsonObject legacy = this.client1.sendRequest("localhost", 4567, "IDS60901");
+        JsonObject res = singleRttClient.sendRequest("localhost", 4567, "IDS60901");
+        assertNotNull(legacy);
+        assertNotNull(res);
+        assertEquals("IDS60901", res.get("id").getAsString());
+        assertEquals(legacy.get("lat").getAsString(), res.get("lat").getAsString());
+    }
+
+    @Test
+    public void testSingleRoundTripWithExistingData() throws InterruptedException {
+        // ordinary uploads move the server clocks well past a fresh client's clock
+        for (int i = 0; i < 3; i++) {
+            assertTrue(this.contentServer1.isLoadFileSuccess("data1_0.txt"));
+            this.contentServer1.uploadData("localhost", 4567);
+        }
+        Thread.sleep(500);
+
+        JsonObject first = new GETClient(new SocketServer(), true).sendRequest("localhost", 4567, "IDS60901");
+        assertNotNull(first, "A fresh single round trip client has to read the stored data");
+        assertEquals("-34.9", first.get("lat").getAsString());
+
+        ContentServer singleRttContent = new ContentServer(new SocketServer(), true);
+        assertTrue(singleRttContent.isLoadFileSuccess("data1_1.txt"));
+        singleRttContent.uploadData("localhost", 4567);
+        Thread.sleep(500);
+
+        // the single round trip PUT is the newest reading for ordinary and single round trip readers alike
+        JsonObject legacy = this.client1.sendRequest("localhost", 4567, "IDS60901");
+        assertNotNull(legacy);
+        assertEquals("40", legacy.get("lat").getAsString());
+        JsonObject fresh = new GETClient(new SocketServer(), true).sendRequest("localhost", 4567, "IDS60901");
+        assertNotNull(fresh);
+        assertEquals("40", fresh.get("lat").getAsString());
+    }
+
+    @Test
+    public void testSingleRoundTripKeepsReplicasUp() throws InterruptedException {
+        // probes are far apart, so a replica marked down by a failed hand-off stays down until the asserts
+        HealthMonitor monitor = new HealthMonitor(this.servers, 60000, 2, 1);
+        MainAggregationServer watched = new MainAggregationServer(new SocketServer(), this.servers, monitor);
+        watched.start(4571);
+        try {
+            // single round trip PUTs can be answered before the greeting would have been written
+            List<Thread> uploaders = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Thread t = new Thread(() -> {
+                    ContentServer uploader = new ContentServer(new SocketServer(), true);
+                    uploader.isLoadFileSuccess("data1_0.txt");
+                    for (int j = 0; j < 10; j++) {
+                        uploader.uploadData("localhost", 4571);
+                    }
+                    uploader.shutdown();
+                });
+                uploaders.add(t);
+                t.start();
+            }
+            for (Thread t : uploaders) {
+                t.join(30000);
+            }
+            for (AggregationServer server : this.servers) {
+                assertTrue(monitor.isUp(server), "Replica " + server.getPort() + " was marked down");
+            }
+        } finally {
+            watched.shutdown();
+        }
+    }
+
+    @Test
+    public void testNonBlockingEngine() throws InterruptedException {
+        int nioPort = 4600;
+        List<AggregationServer> nioServers = new ArrayList<>();
+        for (int i = 1; i < 3; i++) {
+            int serverPort = nioPort + i;
+            AggregationServer aggregationServer = new AggregationServer(new SocketServer());
+            nioServers.add(aggregationServer);
+            new Thread(() -> aggregationServer.start(serverPort)).start();
+        }
+        MainAggregationServer nioMain = new MainAggregationServer(new NioSocketServer(2), nioServers);
+        nioMain.start(nioPort);
+        Thread.sleep(500);
+
+        try {
+            assertTrue(this.contentServer1.isLoadFileSuccess("data1_0.txt"));
+            this.contentServer1.uploadData("localhost", nioPort);
+            Thread.sleep(500);
+
+            JsonObject res = this.client1.sendRequest("localhost", nioPort, "IDS60901");
+            assertNotNull(res);
+            assertEquals("IDS60901", res.get("id").getAsString());
+
+            // several requests on one kept-alive connection
+            GETClient keepAliveClient = new GETClient(new SocketServer(true));
+            for (int i = 0; i < 3; i++) {
+                JsonObject kept = keepAliveClient.sendRequest("localhost", nioPort, "IDS60901");
+                assertNotNull(kept);
+                assertEquals("IDS60901", kept.get("id").getAsString());
+            }
+            keepAliveClient.shutdown();
+        } finally {
+            nioMain.shutdown();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Binary encoding of a reading's data, used for the records of MappedSegmentStore.
+ * The known field names of a weather reading are written as a one byte code instead of their text, and a
+ * value that is a decimal number, whether sent as a JSON string like "13.3" or as a JSON number, is written
+ * as a scale and a variable-length integer. Anything else is kept as text. Decoding gives back the same
+ * names, values and value types, in the same order.
+ *
+ * Layout: version byte, field count, then per field its code (0 followed by the name for a field not in
+ * the dictionary), a value tag and the value. Counts, lengths and integers are unsigned or zigzag varints.
+ * The version byte is never '{', so data stored as JSON text before the codec is told apart by its first byte.
+ */
+public final class WeatherCodec {
+    public static final byte VERSION = 1;
+
+    // codes 1..n in this order, never reorder or remove an entry, only append
+    private static final String[] FIELDS = {
+        "id", "name", "state", "time_zone", "lat", "lon", "local_date_time", "local_date_time_full",
+        "air_temp", "apparent_t", "cloud", "dewpt", "press", "rel_hum", "wind_dir", "wind_spd_kmh", "wind_spd_kt"
+    };
+    private static final Map<String, Integer> CODES = new HashMap<>();
+    static {
+        for (int i = 0; i < FIELDS.length; i++) {
+            CODES.put(FIELDS[i], i + 1);
+        }
+    }
+
+    private static final byte STRING = 0;
+    // a JSON string holding a decimal number
+    private static final byte DECIMAL_STRING = 1;
+    // a JSON number
+    private static final byte DECIMAL = 2;
+    // anything else, as JSON text
+    private static final byte JSON = 3;
+    // digits of the largest unscaled value kept as a number, so it fits a long
+    private static final int MAX_DIGITS = 18;
+
+    private WeatherCodec() {}
+
+    /**
+     * Encodes a reading's data.
+     * @param data The data.
+     * @return The encoded bytes, starting with the version.
+     */
+    public static byte[] encode(JsonObject data) {
+        Output out = new Output(64 + data.size() * 8);
+        out.write(VERSION);
+        out.writeVarint(data.size());
+        for (Map.Entry<String, JsonElement> field : data.entrySet()) {
+            Integer code = CODES.get(field.getKey());
+            if (code == null) {
+                out.writeVarint(0);
+                out.writeString(field.getKey());
+            } else {
+                out.writeVarint(code);
+            }
+            writeValue(out, field.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes data written by encode(), or stored as JSON text before the codec was used.
+     * @param bytes The bytes.
+     * @return The data.
+     */
+    public static JsonObject decode(byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] != VERSION) {
+            return JsonParser.parseString(new String(bytes, StandardCharsets.UTF_8)).getAsJsonObject();
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+        int count = readVarint(in);
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < count; i++) {
+            int code = readVarint(in);
+            String name = code == 0 ? readString(in) : FIELDS[code - 1];
+            data.add(name, readValue(in));
+        }
+        return data;
+    }
+
+    private static void writeValue(Output out, JsonElement value) {
+        if (value.isJsonPrimitive()) {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            if (primitive.isString() || primitive.isNumber()) {
+                String text = primitive.getAsString();
+                BigDecimal decimal = exactDecimal(text);
+                if (decimal != null) {
+                    out.write(primitive.isString() ? DECIMAL_STRING : DECIMAL);
+                    out.write((byte) decimal.scale());
+                    out.writeVarlong(zigzag(decimal.unscaledValue().longValue()));
+                    return;
+                }
+                if (primitive.isString()) {
+                    out.write(STRING);
+                    out.writeString(text);
+                    return;
+                }
+            }
+        }
+        out.write(JSON);
+        out.writeString(value.toString());
+    }
+
+    private static JsonElement readValue(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case STRING:
+                return new JsonPrimitive(readString(in));
+            case DECIMAL_STRING:
+            case DECIMAL: {
+                int scale = in.get();
+                BigDecimal decimal = BigDecimal.valueOf(unzigzag(readVarlong(in)), scale);
+                // parsed from text, a number keeps the plain form it was sent in rather than BigDecimal's exponent form
+                return tag == DECIMAL ? JsonParser.parseString(decimal.toPlainString())
+                        : new JsonPrimitive(decimal.toPlainString());
+            }
+            case JSON:
+                return JsonParser.parseString(readString(in));
+            default:
+                throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * The text as a decimal, if writing the decimal back gives exactly the same text.
+     * "13.3", "-34.9" and "20230715160000" qualify, "05", "-0", "1e5" and "+1" stay text.
+     */
+    private static BigDecimal exactDecimal(String text) {
+        int length = text.length();
+        if (length == 0 || length > MAX_DIGITS + 2) {
+            return null;
+        }
+        int digits = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if (!(c == '-' && i == 0) && c != '.') {
+                return null;
+            }
+        }
+        if (digits == 0 || digits > MAX_DIGITS) {
+            return null;
+        }
+        try {
+            BigDecimal decimal = new BigDecimal(text);
+            if (decimal.scale() < 0 || decimal.scale() > Byte.MAX_VALUE || !decimal.toPlainString().equals(text)) {
+                return null;
+            }
+            return decimal;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        return (int) readVarlong(in);
+    }
+
+    private static long readVarlong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IllegalArgumentException("Malformed varint");
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        String text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return text;
+    }
+
+    /**
+     * Growable byte buffer, the encoder writes small pieces and knows no size up front.
+     */
+    private static class Output {
+        private byte[] bytes;
+        private int size;
+
+        private Output(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        private void write(byte b) {
+            this.ensure(1);
+            this.bytes[this.size++] = b;
+        }
+
+        private void writeVarint(int value) {
+            this.writeVarlong(value & 0xffffffffL);
+        }
+
+        private void writeVarlong(long value) {
+            this.ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                this.bytes[this.size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            this.bytes[this.size++] = (byte) value;
+        }
+
+        private void writeString(String text) {
+            byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            this.writeVarint(utf8.length);
+            this.ensure(utf8.length);
+            System.arraycopy(utf8, 0, this.bytes, this.size, utf8.length);
+            this.size += utf8.length;
+        }
+
+        private void ensure(int more) {
+            if (this.size + more > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + more));
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(this.bytes, this.size);
+        }
+    }
+}
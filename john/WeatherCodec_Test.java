@@ -0,0 +1,48 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class WeatherCodec_Test {
+    private static final String READING = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace /  ngayirdapira)\","
+            + "\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":\"-34.9\",\"lon\":\"138.6\",\"local_date_time\":\"15/04:00pm\","
+            + "\"local_date_time_full\":\"20230715160000\",\"air_temp\":\"13.3\",\"apparent_t\":\"9.5\",\"cloud\":\"Partly cloudy\","
+            + "\"dewpt\":\"5.7\",\"press\":\"1023.9\",\"rel_hum\":\"60\",\"wind_dir\":\"S\",\"wind_spd_kmh\":\"15\",\"wind_spd_kt\":\"8\"}";
+
+    @Test
+    void testRoundTrip() {
+        JsonObject data = JsonParser.parseString(READING).getAsJsonObject();
+        byte[] encoded = WeatherCodec.encode(data);
+        assertEquals(WeatherCodec.VERSION, encoded[0]);
+        JsonObject decoded = WeatherCodec.decode(encoded);
+        // same fields, order and text, numbers in strings stay strings
+        assertEquals(READING, decoded.toString());
+        assertTrue(encoded.length * 2 < READING.getBytes(StandardCharsets.UTF_8).length,
+                "Encoded " + encoded.length + " bytes, JSON text " + READING.length());
+    }
+
+    @Test
+    void testValuesThatAreNotPlainDecimals() {
+        String text = "{\"air_temp\":\"05\",\"dewpt\":\"-0\",\"press\":\"1e5\",\"rel_hum\":\"+1\",\"lat\":\"0.0000001\","
+                + "\"lon\":\"-0.5\",\"local_date_time_full\":\"1234567890123456789012\",\"gust\":\"12.40\","
+                + "\"count\":7,\"ratio\":0.0000001,\"big\":1e300,\"ok\":true,\"none\":null,\"nested\":{\"a\":[1,\"b\"]},"
+                + "\"name\":\"\\u00e9t\\u00e9\"}";
+        JsonObject data = JsonParser.parseString(text).getAsJsonObject();
+        JsonObject decoded = WeatherCodec.decode(WeatherCodec.encode(data));
+        assertEquals(data, decoded);
+        assertEquals(text.replace("\\u00e9", "\u00e9"), decoded.toString());
+        assertTrue(decoded.get("air_temp").getAsJsonPrimitive().isString());
+        assertTrue(decoded.get("count").getAsJsonPrimitive().isNumber());
+    }
+
+    @Test
+    void testJsonTextIsStillRead() {
+        // records stored before the codec hold the JSON text
+        JsonObject decoded = WeatherCodec.decode(READING.getBytes(StandardCharsets.UTF_8));
+        assertEquals(READING, decoded.toString());
+    }
+}
@@ -1,4 +1,12 @@
+import java.io.IOException;
+
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 public class WeatherFormat implements Comparable<WeatherFormat> {
     private int lamport;
@@ -24,4 +32,95 @@ public class WeatherFormat implements Comparable<WeatherFormat> {
     public String getSource() {
         return this.source;
     }
+
+    /**
+     * A numeric field of the data, whether it was sent as a JSON number or as a string like "13.3".
+     * @param field The field name.
+     * @return The value, or NaN if the field is missing or not a number.
+     */
+    public double getNumber(String field) {
+        JsonObject data = this.getData();
+        JsonElement value = data == null ? null : data.get(field);
+        if (value == null || !value.isJsonPrimitive() || value.getAsJsonPrimitive().isBoolean()) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value.getAsString());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Length of the data as JSON text, used to estimate the memory a reading holds.
+     */
+    int dataLength() {
+        return this.data == null ? 0 : this.data.toString().length();
+    }
+
+    /**
+     * Estimated heap bytes of the data, two per character of its JSON text.
+     */
+    int estimatedDataBytes() {
+        return this.dataLength() * 2;
+    }
+
+    /**
+     * Reads and writes a reading the way Gson binds WeatherFormat by reflection, without reflection:
+     * the fields lamport, source and data, a null field left out, an unknown field skipped.
+     * Writing asks for getData(), so a reading that keeps its data elsewhere is written in full.
+     */
+    static final class Adapter extends TypeAdapter<WeatherFormat> {
+        @Override
+        public WeatherFormat read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            int lamport = 0;
+            String source = null;
+            JsonElement data = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "lamport":
+                        lamport = in.nextInt();
+                        break;
+                    case "source":
+                        source = in.nextString();
+                        break;
+                    case "data":
+                        data = JsonParser.parseReader(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new WeatherFormat(lamport, source, data == null ? null : data.getAsJsonObject());
+        }
+
+        @Override
+        public void write(JsonWriter out, WeatherFormat reading) throws IOException {
+            if (reading == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("lamport").value(reading.getLamport());
+            if (reading.getSource() != null) {
+                out.name("source").value(reading.getSource());
+            }
+            JsonObject data = reading.getData();
+            if (data != null) {
+                out.name("data").jsonValue(data.toString());
+            }
+            out.endObject();
+        }
+    }
 }
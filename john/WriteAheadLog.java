@@ -0,0 +1,520 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of the changes made to DatabaseManagement since its last snapshot.
+ * Every change is one line of text, so a write costs the size of the record and not the size of the database.
+ * After a crash the log is replayed on top of the snapshot; a record cut short by the crash is dropped.
+ *
+ * Appends are group committed: append() only queues the record and returns its sequence number, a single
+ * writer thread writes everything queued in one go and syncs it according to the SyncPolicy, and await()
+ * releases a caller once its record is committed. Concurrent writers therefore share one write and one fsync.
+ *
+ * The log is split in numbered segment files. roll() starts a new segment at a point in the record order,
+ * and once a snapshot covers everything before that point discardBefore() deletes the older segments,
+ * so the log only holds what was written since the last snapshot.
+ */
+public class WriteAheadLog {
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+    /**
+     * When the log is forced to disk.
+     */
+    public enum SyncPolicy {
+        // fsync every batch before its callers are released, nothing acknowledged is lost in a crash
+        ALWAYS,
+        // release callers once the batch is written, fsync at most every interval
+        INTERVAL,
+        // release callers once the batch is written and leave flushing to the OS
+        OS
+    }
+
+    // marks the place of a roll() in the pending records, compared by identity
+    private static final String ROLL = new String("roll");
+
+    private final Path directory;
+    private final String prefix;
+    private FileChannel channel;
+    private SyncPolicy syncPolicy = SyncPolicy.ALWAYS;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+    // guarded by this
+    private List<String> pending = new ArrayList<>();
+    private long pendingSince;
+    private long appended;
+    private long committed;
+    private long failedThrough;
+    private IOException failure;
+    private Thread writer;
+
+    // guarded by this, only written by the writer thread
+    private long batches;
+    private long batchedRecords;
+    private int maxBatchSize;
+    private long totalCommitNanos;
+    private long maxCommitNanos;
+
+    // guarded by this, the segment started by the last roll()
+    private int rolledSegment;
+
+    // the segment being written and whether it has bytes not forced to disk yet, used by the writer thread
+    private final Object fileLock = new Object();
+    private int segment;
+    private boolean unsynced;
+    private long lastSync = System.currentTimeMillis();
+
+    /**
+     * Segments already on disk are kept for replay, new records go to a new segment after them.
+     * @param basePath Directory and name prefix of the segments, "data/wal" writes data/wal-000001.log and on.
+     */
+    public WriteAheadLog(String basePath) {
+        Path base = Paths.get(basePath).toAbsolutePath();
+        this.directory = base.getParent();
+        this.prefix = base.getFileName().toString() + "-";
+        List<Integer> existing = this.segments();
+        this.segment = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        this.rolledSegment = this.segment;
+    }
+
+    /**
+     * Selects when the log is forced to disk.
+     * @param syncPolicy The policy.
+     * @param syncInterval Milliseconds between two fsyncs for SyncPolicy.INTERVAL.
+     */
+    public synchronized void setSyncPolicy(SyncPolicy syncPolicy, long syncInterval) {
+        this.syncPolicy = syncPolicy;
+        this.syncInterval = Math.max(1, syncInterval);
+        this.notifyAll();
+    }
+
+    public synchronized SyncPolicy getSyncPolicy() {
+        return this.syncPolicy;
+    }
+
+    /**
+     * Queues one record for the writer thread.
+     * Records are written in the order they are queued.
+     * @param record The record text, it must not contain a line break.
+     * @return The sequence number of the record, pass it to await() to wait until it is committed.
+     */
+    public synchronized long append(String record) {
+        if (this.pending.isEmpty()) {
+            this.pendingSince = System.nanoTime();
+        }
+        this.pending.add(record);
+        this.appended++;
+        if (this.writer == null) {
+            this.writer = new Thread(this::writeLoop, "wal-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+        this.notifyAll();
+        return this.appended;
+    }
+
+    /**
+     * Queues several records at once, so the writer thread finds them together and commits them in one batch.
+     * @param records The record texts, none may contain a line break.
+     * @return The sequence number of the last record.
+     */
+    public synchronized long append(List<String> records) {
+        long sequence = this.appended;
+        for (String record : records) {
+            sequence = this.append(record);
+        }
+        return sequence;
+    }
+
+    /**
+     * Starts a new segment after the records queued so far.
+     * The caller holds the lock that orders its records, so the new segment starts exactly after the
+     * last change a snapshot taken under the same lock contains.
+     * @return The number of the new segment, pass it to discardBefore() once the snapshot is written.
+     */
+    public synchronized int roll() {
+        this.append(ROLL);
+        this.rolledSegment++;
+        return this.rolledSegment;
+    }
+
+    /**
+     * Deletes the segments before one started by roll(), their records are covered by a snapshot.
+     * Waits for the roll to be written first, so no record of those segments is still queued.
+     * @param segment A segment number returned by roll().
+     * @throws IOException If the roll could not be written or a segment could not be deleted.
+     */
+    public void discardBefore(int segment) throws IOException {
+        this.flush();
+        synchronized (this.fileLock) {
+            for (int number : this.segments()) {
+                if (number < segment && number < this.segment) {
+                    Files.deleteIfExists(this.segmentPath(number));
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until a record and every record queued before it are committed.
+     * @param sequence The sequence number returned by append().
+     * @throws IOException If the batch holding the record could not be written.
+     */
+    public synchronized void await(long sequence) throws IOException {
+        boolean interrupted = false;
+        while (this.committed < sequence) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (sequence <= this.failedThrough && this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Waits until everything queued so far is committed.
+     * @throws IOException If a batch could not be written.
+     */
+    public void flush() throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = this.appended;
+        }
+        this.await(sequence);
+    }
+
+    /**
+     * Writer thread: takes everything queued, writes it with one call and syncs it by policy.
+     */
+    private void writeLoop() {
+        while (true) {
+            List<String> batch;
+            long last;
+            long since;
+            SyncPolicy policy;
+            long interval;
+            synchronized (this) {
+                while (this.pending.isEmpty()) {
+                    try {
+                        this.wait(this.syncPolicy == SyncPolicy.INTERVAL ? this.syncInterval : 0);
+                    } catch (InterruptedException e) {
+                        // the writer lives as long as the log, there is nothing to stop
+                    }
+                    if (this.pending.isEmpty() && this.syncPolicy == SyncPolicy.INTERVAL) {
+                        this.syncIfDue(this.syncInterval);
+                    }
+                }
+                batch = this.pending;
+                this.pending = new ArrayList<>(batch.size());
+                last = this.appended;
+                since = this.pendingSince;
+                policy = this.syncPolicy;
+                interval = this.syncInterval;
+            }
+
+            IOException error = null;
+            try {
+                this.write(batch);
+                if (policy == SyncPolicy.ALWAYS) {
+                    this.sync();
+                } else if (policy == SyncPolicy.INTERVAL) {
+                    this.syncIfDue(interval);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            long elapsed = System.nanoTime() - since;
+            synchronized (this) {
+                this.committed = last;
+                if (error != null) {
+                    this.failure = error;
+                    this.failedThrough = last;
+                }
+                this.batches++;
+                this.batchedRecords += batch.size();
+                this.maxBatchSize = Math.max(this.maxBatchSize, batch.size());
+                this.totalCommitNanos += elapsed;
+                this.maxCommitNanos = Math.max(this.maxCommitNanos, elapsed);
+                this.notifyAll();
+            }
+        }
+    }
+
+    private void write(List<String> batch) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(batch.size() * 256);
+        for (String record : batch) {
+            if (record == ROLL) {
+                this.writeBytes(out);
+                this.nextSegment();
+                continue;
+            }
+            out.write(record.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+        this.writeBytes(out);
+    }
+
+    private void writeBytes(ByteArrayOutputStream out) throws IOException {
+        if (out.size() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(out.toByteArray());
+        out.reset();
+        synchronized (this.fileLock) {
+            FileChannel file = this.open();
+            while (bytes.hasRemaining()) {
+                file.write(bytes);
+            }
+            this.unsynced = true;
+        }
+    }
+
+    /**
+     * Forces and closes the current segment, the next write opens the following one.
+     */
+    private void nextSegment() throws IOException {
+        synchronized (this.fileLock) {
+            if (this.channel != null) {
+                if (this.unsynced) {
+                    this.channel.force(false);
+                }
+                this.channel.close();
+                this.channel = null;
+            }
+            this.unsynced = false;
+            this.segment++;
+        }
+    }
+
+    private void sync() throws IOException {
+        synchronized (this.fileLock) {
+            if (this.unsynced && this.channel != null) {
+                this.channel.force(false);
+                this.unsynced = false;
+            }
+            this.lastSync = System.currentTimeMillis();
+        }
+    }
+
+    private void syncIfDue(long interval) {
+        try {
+            if (System.currentTimeMillis() - this.lastSync >= interval) {
+                this.sync();
+            }
+        } catch (IOException e) {
+            System.out.println("Error syncing log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Passes every complete record in the segments on disk to apply, oldest first.
+     * Replay of a segment stops at the first record apply rejects, which can only be one torn by a crash,
+     * and the segment is cut back to the last good record.
+     * Called before anything is appended.
+     * @param apply Called with each record, throws a RuntimeException for a record it cannot read.
+     * @return The number of records replayed.
+     */
+    public int replay(Consumer<String> apply) {
+        int replayed = 0;
+        for (int number : this.segments()) {
+            if (number < this.segment) {
+                replayed += this.replaySegment(this.segmentPath(number), apply);
+            }
+        }
+        return replayed;
+    }
+
+    private int replaySegment(Path file, Consumer<String> apply) {
+        int replayed = 0;
+        long good = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    try {
+                        apply.accept(line);
+                    } catch (RuntimeException e) {
+                        System.out.println("Dropping damaged log record: " + e.getMessage());
+                        break;
+                    }
+                    replayed++;
+                }
+                good += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading log: " + e.getMessage());
+        }
+        try {
+            if (Files.size(file) > good) {
+                try (FileChannel damaged = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    damaged.truncate(good);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error trimming log: " + e.getMessage());
+        }
+        return replayed;
+    }
+
+    /**
+     * Drops every record, used when the store is cleared.
+     * Records still queued are written first, so none of them lands after the truncation.
+     * The caller must keep new records from being appended meanwhile.
+     * @throws IOException If the log could not be truncated.
+     */
+    public void truncate() throws IOException {
+        this.flush();
+        synchronized (this.fileLock) {
+            for (int number : this.segments()) {
+                if (number != this.segment) {
+                    Files.deleteIfExists(this.segmentPath(number));
+                }
+            }
+            if (this.channel != null) {
+                this.channel.truncate(0);
+                this.channel.force(false);
+            }
+            this.unsynced = false;
+        }
+    }
+
+    /**
+     * Size of the log in bytes.
+     * @return The size of all segments on disk.
+     */
+    public long size() {
+        long size = 0;
+        for (int number : this.segments()) {
+            try {
+                size += Files.size(this.segmentPath(number));
+            } catch (IOException e) {
+                // deleted by a checkpoint meanwhile
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Number of segment files on disk.
+     * @return The segment count.
+     */
+    public int getSegmentCount() {
+        return this.segments().size();
+    }
+
+    /**
+     * Number of batches committed by the writer thread.
+     * @return The batch count.
+     */
+    public synchronized long getCommittedBatches() {
+        return this.batches;
+    }
+
+    /**
+     * Average number of records written and synced together.
+     * @return The average batch size, 0 before the first commit.
+     */
+    public synchronized double getAverageBatchSize() {
+        return this.batches == 0 ? 0 : (double) this.batchedRecords / this.batches;
+    }
+
+    /**
+     * Largest number of records committed in one batch.
+     * @return The maximum batch size.
+     */
+    public synchronized int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+
+    /**
+     * Average time from the first record of a batch being queued to the batch being committed.
+     * @return The average commit latency in milliseconds, 0 before the first commit.
+     */
+    public synchronized double getAverageCommitLatency() {
+        return this.batches == 0 ? 0 : this.totalCommitNanos / 1_000_000.0 / this.batches;
+    }
+
+    /**
+     * Longest time a batch took from its first record being queued to being committed.
+     * @return The maximum commit latency in milliseconds.
+     */
+    public synchronized double getMaxCommitLatency() {
+        return this.maxCommitNanos / 1_000_000.0;
+    }
+
+    /**
+     * Commits what is queued, forces it to disk and closes the file.
+     * The writer thread stays idle, the next append opens the file again.
+     */
+    public void close() {
+        try {
+            this.flush();
+            this.sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (this.fileLock) {
+            try {
+                if (this.channel != null) {
+                    this.channel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.channel = null;
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        if (this.channel == null || !this.channel.isOpen()) {
+            Files.createDirectories(this.directory);
+            this.channel = FileChannel.open(this.segmentPath(this.segment), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return this.channel;
+    }
+
+    private Path segmentPath(int number) {
+        return this.directory.resolve(String.format("%s%06d.log", this.prefix, number));
+    }
+
+    /**
+     * Numbers of the segment files on disk, in ascending order.
+     */
+    private List<Integer> segments() {
+        List<Integer> numbers = new ArrayList<>();
+        if (!Files.isDirectory(this.directory)) {
+            return numbers;
+        }
+        try (Stream<Path> files = Files.list(this.directory)) {
+            files.map(file -> file.getFileName().toString())
+                 .filter(name -> name.startsWith(this.prefix) && name.endsWith(".log"))
+                 .map(name -> name.substring(this.prefix.length(), name.length() - ".log".length()))
+                 .filter(number -> !number.isEmpty() && number.chars().allMatch(Character::isDigit))
+                 .forEach(number -> numbers.add(Integer.parseInt(number)));
+        } catch (IOException e) {
+            System.out.println("Error listing log segments: " + e.getMessage());
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+}
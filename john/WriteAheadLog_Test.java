@@ -0,0 +1,133 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class WriteAheadLog_Test {
+
+    @Test
+    void testAppendAndReplay(@TempDir Path tempDir) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(tempDir.resolve("wal").toString());
+        log.append("{\"op\":\"data\",\"key\":\"IDS60901\"}");
+        log.append("{\"op\":\"time\",\"key\":\"ContentServer1\"}");
+        log.close();
+
+        List<String> records = new ArrayList<>();
+        assertEquals(2, new WriteAheadLog(tempDir.resolve("wal").toString()).replay(records::add));
+        assertEquals("{\"op\":\"data\",\"key\":\"IDS60901\"}", records.get(0));
+        assertEquals("{\"op\":\"time\",\"key\":\"ContentServer1\"}", records.get(1));
+    }
+
+    @Test
+    void testTornRecordIsDropped(@TempDir Path tempDir) throws IOException {
+        String base = tempDir.resolve("wal").toString();
+        WriteAheadLog log = new WriteAheadLog(base);
+        log.append("{\"op\":\"data\",\"key\":\"IDS60901\"}");
+        log.close();
+        // a crash in the middle of the second append
+        Files.write(tempDir.resolve("wal-000001.log"), "{\"op\":\"da".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        List<String> records = new ArrayList<>();
+        WriteAheadLog reopened = new WriteAheadLog(base);
+        int replayed = reopened.replay(line -> {
+            JsonHandling.parseJSONObject(line);
+            records.add(line);
+        });
+        assertEquals(1, replayed);
+        assertEquals(1, records.size());
+
+        // the damaged tail is cut off, and new records go to a new segment after it
+        reopened.append("{\"op\":\"time\",\"key\":\"ContentServer1\"}");
+        reopened.close();
+        assertEquals(2, reopened.getSegmentCount());
+        assertEquals(2, new WriteAheadLog(base).replay(line -> JsonHandling.parseJSONObject(line)));
+    }
+
+    @Test
+    void testTruncate(@TempDir Path tempDir) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(tempDir.resolve("wal").toString());
+        log.await(log.append("{\"op\":\"data\",\"key\":\"IDS60901\"}"));
+        assertTrue(log.size() > 0);
+
+        log.truncate();
+        assertEquals(0, log.size());
+        assertEquals(0, log.replay(line -> fail("Truncated log should be empty")));
+        log.close();
+    }
+
+    @Test
+    void testGroupCommit(@TempDir Path tempDir) throws Exception {
+        WriteAheadLog log = new WriteAheadLog(tempDir.resolve("wal").toString());
+        int threads = 8;
+        int perThread = 50;
+        List<Thread> writers = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        log.await(log.append("{\"op\":\"data\",\"key\":\"" + id + "-" + i + "\"}"));
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertTrue(errors.isEmpty(), "Writers failed: " + errors);
+
+        // every record is in the file once its writer was released, and writers shared batches
+        assertEquals(threads * perThread, new WriteAheadLog(tempDir.resolve("wal").toString()).replay(line -> { }));
+        long batches = log.getCommittedBatches();
+        assertTrue(batches > 0 && batches <= threads * perThread);
+        assertEquals((double) threads * perThread / batches, log.getAverageBatchSize(), 0.001);
+        assertTrue(log.getMaxBatchSize() >= 1);
+        assertTrue(log.getMaxCommitLatency() >= log.getAverageCommitLatency());
+        log.close();
+    }
+
+    @Test
+    void testSyncPolicies(@TempDir Path tempDir) throws IOException {
+        for (WriteAheadLog.SyncPolicy policy : WriteAheadLog.SyncPolicy.values()) {
+            WriteAheadLog log = new WriteAheadLog(tempDir.resolve(policy.toString()).toString());
+            log.setSyncPolicy(policy, 10);
+            assertEquals(policy, log.getSyncPolicy());
+            log.await(log.append("{\"op\":\"time\",\"key\":\"ContentServer1\"}"));
+            // a released writer's record has reached the file whatever the policy
+            assertTrue(log.size() > 0, policy + " should write before releasing");
+            log.close();
+        }
+    }
+
+    @Test
+    void testRollAndDiscard(@TempDir Path tempDir) throws IOException {
+        String base = tempDir.resolve("wal").toString();
+        WriteAheadLog log = new WriteAheadLog(base);
+        log.append("{\"op\":\"data\",\"key\":\"IDS60901\"}");
+        int segment = log.roll();
+        log.await(log.append("{\"op\":\"data\",\"key\":\"IDS60902\"}"));
+        assertEquals(2, log.getSegmentCount());
+
+        // a snapshot covers everything before the roll, only the newer record is left to replay
+        log.discardBefore(segment);
+        log.close();
+        assertEquals(1, log.getSegmentCount());
+        List<String> records = new ArrayList<>();
+        assertEquals(1, new WriteAheadLog(base).replay(records::add));
+        assertEquals("{\"op\":\"data\",\"key\":\"IDS60902\"}", records.get(0));
+    }
+}